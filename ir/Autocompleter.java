@@ -0,0 +1,169 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Completes a partly typed query, for suggesting queries as they are
+ * typed.
+ *
+ * Completions come from two weighted completion tries. The vocabulary
+ * trie is built once from the index statistics, and weighs every term by
+ * its document frequency plus the PageRank of the documents it occurs in,
+ * each divided by its largest value over all terms; both are summed up
+ * when the index is built, so no postings are read. The query trie holds
+ * the queries that found something, weighed by how often they were asked,
+ * and is rebuilt every <code>REBUILD_INTERVAL</code> recorded queries, on
+ * a background thread so that recording a query stays cheap. A
+ * prefix is completed as a whole from the queries, and by its last word
+ * from the vocabulary, and the completions are merged by weight.
+ *
+ * All methods may be called from any thread, so the same completer can
+ * serve the GUI and any other front end.
+ */
+public class Autocompleter {
+
+    /** Number of recorded queries after which the query trie is rebuilt */
+    private static final int REBUILD_INTERVAL = 50;
+
+    /** Largest number of distinct queries kept */
+    private static final int MAX_QUERIES = 100000;
+
+    /** The weight of the most frequent query, next to at most 2 for a term */
+    private static final float QUERY_WEIGHT = 2.0f;
+
+    /** Terms by weight */
+    private final CompletionTrie terms;
+
+    /** Queries by weight; replaced as a whole when it is rebuilt */
+    private volatile CompletionTrie queries = CompletionTrie.build(new String[0], new float[0]);
+
+    /** Number of times every query was asked */
+    private final ConcurrentHashMap<String, AtomicInteger> queryCounts = new ConcurrentHashMap<>();
+
+    private final AtomicInteger recorded = new AtomicInteger();
+
+    /** Rebuilds the query trie off the thread that records the queries */
+    private final ExecutorService rebuilder = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "autocomplete-rebuild");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** True while a rebuild is waiting to start; it will see all queries recorded until then */
+    private final AtomicBoolean rebuildPending = new AtomicBoolean();
+
+    private Autocompleter(CompletionTrie terms) {
+        this.terms = terms;
+    }
+
+    /**
+     * Builds the completer of the vocabulary of a k-gram index, weighing the
+     * terms by the statistics of the index.
+     */
+    public static Autocompleter build(KGramIndex kgIndex) {
+        int n = kgIndex.getTermCount();
+        String[] strings = new String[n];
+        float[] dfs = new float[n];
+        float[] masses = new float[n];
+        float maxDf = 0;
+        float maxMass = 0;
+        for (int id = 0; id < n; id++) {
+            strings[id] = kgIndex.getTermByID(id);
+            dfs[id] = Index.statistics.getDf(strings[id]);
+            masses[id] = (float) Index.statistics.getPagerankMass(strings[id]);
+            maxDf = Math.max(maxDf, dfs[id]);
+            maxMass = Math.max(maxMass, masses[id]);
+        }
+
+        float[] weights = new float[n];
+        for (int id = 0; id < n; id++) {
+            weights[id] = (maxDf > 0 ? dfs[id] / maxDf : 0) + (maxMass > 0 ? masses[id] / maxMass : 0);
+        }
+        return new Autocompleter(CompletionTrie.build(strings, weights));
+    }
+
+    /**
+     * Returns up to <code>k</code> completions of a partly typed query, the
+     * best first.
+     */
+    public List<String> complete(String prefix, int k) {
+        prefix = prefix.toLowerCase();
+        List<CompletionTrie.Completion> fromQueries = queries.complete(prefix, k);
+
+        int space = prefix.lastIndexOf(' ');
+        String head = prefix.substring(0, space + 1);
+        List<CompletionTrie.Completion> fromTerms = terms.complete(prefix.substring(space + 1), k);
+
+        List<String> completions = new ArrayList<>();
+        HashSet<String> seen = new HashSet<>();
+        int q = 0;
+        int t = 0;
+        while (completions.size() < k && (q < fromQueries.size() || t < fromTerms.size())) {
+            String completion;
+            if (t == fromTerms.size()
+                    || q < fromQueries.size() && fromQueries.get(q).weight >= fromTerms.get(t).weight) {
+                completion = fromQueries.get(q++).string;
+            } else {
+                completion = head + fromTerms.get(t++).string;
+            }
+            if (seen.add(completion))
+                completions.add(completion);
+        }
+        return completions;
+    }
+
+    /**
+     * Counts a query that found something, so that it is offered as a
+     * completion once the query trie is next rebuilt.
+     */
+    public void recordQuery(String query) {
+        query = query.toLowerCase().trim();
+        if (query.isEmpty())
+            return;
+        AtomicInteger count = queryCounts.get(query);
+        if (count == null && queryCounts.size() < MAX_QUERIES)
+            count = queryCounts.computeIfAbsent(query, key -> new AtomicInteger());
+        if (count != null)
+            count.incrementAndGet();
+        if (recorded.incrementAndGet() % REBUILD_INTERVAL == 0 && rebuildPending.compareAndSet(false, true)) {
+            rebuilder.execute(() -> {
+                rebuildPending.set(false);
+                rebuildQueries();
+            });
+        }
+    }
+
+    /**
+     * Rebuilds the query trie from the recorded queries, and swaps it in once
+     * it is built.
+     */
+    public synchronized void rebuildQueries() {
+        List<String> strings = new ArrayList<>();
+        List<Integer> counts = new ArrayList<>();
+        int max = 0;
+        for (Map.Entry<String, AtomicInteger> e : queryCounts.entrySet()) {
+            strings.add(e.getKey());
+            counts.add(e.getValue().get());
+            max = Math.max(max, counts.get(counts.size() - 1));
+        }
+
+        float[] weights = new float[strings.size()];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = QUERY_WEIGHT * counts.get(i) / max;
+        }
+        queries = CompletionTrie.build(strings.toArray(new String[0]), weights);
+    }
+
+    /** Returns the bytes used by the tries. */
+    public long getBytes() {
+        return terms.getBytes() + queries.getBytes();
+    }
+}
@@ -0,0 +1,394 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A deterministic automaton over chars, built lazily one transition at a
+ * time, for finding the terms of a dictionary that match a pattern.
+ *
+ * A subclass describes its states as int arrays and says how a char moves
+ * from one to the next. Every distinct state gets a number the first time
+ * it is reached, and every transition is computed once and then looked up
+ * in a table. A state that no continuation can take to an accepting state
+ * is dead, so a dictionary walk can skip every term below it.
+ *
+ * An automaton is not thread-safe and is meant to be built for one lookup.
+ */
+public abstract class Automaton {
+
+    /** Returned by <code>step</code> for the dead state */
+    public static final int DEAD = -1;
+
+    /** The states reached so far, by number */
+    private final ArrayList<int[]> states = new ArrayList<>();
+
+    /** Whether each state is accepting */
+    private boolean[] accepting = new boolean[16];
+
+    /** State numbers by state */
+    private final HashMap<String, Integer> numbers = new HashMap<>();
+
+    /** Computed transitions on chars below 128, by state and char; -2 if not computed yet */
+    private final ArrayList<int[]> asciiTransitions = new ArrayList<>();
+
+    /** Computed transitions on other chars, by state << 16 | char */
+    private final HashMap<Long, Integer> transitions = new HashMap<>();
+
+    private int start = -2;
+
+    /** Returns the start state. */
+    protected abstract int[] initial();
+
+    /** Returns the state after a char, or null if it is dead. */
+    protected abstract int[] next(int[] state, char c);
+
+    /** Returns true if a term ending in the state matches. */
+    protected abstract boolean accepts(int[] state);
+
+    /** Returns the number of the start state, or <code>DEAD</code> if nothing matches. */
+    public int start() {
+        if (start == -2)
+            start = number(initial());
+        return start;
+    }
+
+    /** Returns the number of the state after a char, or <code>DEAD</code>. */
+    public int step(int state, char c) {
+        if (c < 128) {
+            int[] row = asciiTransitions.get(state);
+            if (row[c] == -2)
+                row[c] = number(next(states.get(state), c));
+            return row[c];
+        }
+
+        long key = (long) state << 16 | c;
+        Integer to = transitions.get(key);
+        if (to == null) {
+            to = number(next(states.get(state), c));
+            transitions.put(key, to);
+        }
+        return to;
+    }
+
+    public boolean isAccepting(int state) {
+        return accepting[state];
+    }
+
+    /** Returns the number of distinct states reached so far. */
+    public int size() {
+        return states.size();
+    }
+
+    private int number(int[] state) {
+        if (state == null)
+            return DEAD;
+        char[] key = new char[2 * state.length];
+        for (int i = 0; i < state.length; i++) {
+            key[2 * i] = (char) (state[i] >>> 16);
+            key[2 * i + 1] = (char) state[i];
+        }
+        String k = new String(key);
+        Integer n = numbers.get(k);
+        if (n == null) {
+            n = states.size();
+            states.add(state);
+            int[] row = new int[128];
+            Arrays.fill(row, -2);
+            asciiTransitions.add(row);
+            if (n == accepting.length)
+                accepting = Arrays.copyOf(accepting, 2 * n);
+            accepting[n] = accepts(state);
+            numbers.put(k, n);
+        }
+        return n;
+    }
+
+    /**
+     * Accepts the terms that match a regular expression as a whole. The
+     * syntax is a subset of <code>java.util.regex</code>: literals,
+     * <code>.</code>, classes such as <code>[a-z]</code> and
+     * <code>[^0-9]</code>, grouping, <code>|</code>, <code>*</code>,
+     * <code>+</code>, <code>?</code> and escapes with <code>\</code>.
+     *
+     * The expression is compiled into a Thompson NFA, and a state of the
+     * automaton is the set of NFA states reachable after a prefix.
+     */
+    public static class Regex extends Automaton {
+
+        /** The NFA: for every state, its char ranges or up to two epsilon moves */
+        private final ArrayList<int[]> ranges = new ArrayList<>();
+        private final ArrayList<Boolean> negated = new ArrayList<>();
+        private final ArrayList<int[]> outs = new ArrayList<>();
+
+        private final String pattern;
+        private int pos = 0;
+        private final int first;
+        private final int accept;
+
+        public Regex(String pattern) {
+            this.pattern = pattern;
+            int[] fragment = parseAlternation();
+            if (pos < pattern.length())
+                throw new IllegalArgumentException("Unexpected '" + pattern.charAt(pos) + "' at " + pos + " in " + pattern);
+            first = fragment[0];
+            accept = fragment[1];
+        }
+
+        /**
+         * Returns the automaton of a wildcard pattern, in which a star
+         * stands for any sequence of chars.
+         */
+        public static Regex glob(String pattern) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c == '*')
+                    sb.append(".*");
+                else if ("\\.[]()|*+?^$".indexOf(c) >= 0)
+                    sb.append('\\').append(c);
+                else
+                    sb.append(c);
+            }
+            return new Regex(sb.toString());
+        }
+
+        /** Adds an NFA state and returns its number. */
+        private int state(int[] r, boolean negate) {
+            ranges.add(r);
+            negated.add(negate);
+            outs.add(new int[] { -1, -1 });
+            return outs.size() - 1;
+        }
+
+        /** Adds an epsilon move. */
+        private void epsilon(int from, int to) {
+            int[] out = outs.get(from);
+            out[out[0] < 0 ? 0 : 1] = to;
+        }
+
+        /** A fragment is the {start, end} of a piece of NFA. */
+        private int[] parseAlternation() {
+            int[] fragment = parseConcatenation();
+            while (pos < pattern.length() && pattern.charAt(pos) == '|') {
+                pos++;
+                int[] other = parseConcatenation();
+                int s = state(null, false);
+                int e = state(null, false);
+                epsilon(s, fragment[0]);
+                epsilon(s, other[0]);
+                epsilon(fragment[1], e);
+                epsilon(other[1], e);
+                fragment = new int[] { s, e };
+            }
+            return fragment;
+        }
+
+        private int[] parseConcatenation() {
+            int s = state(null, false);
+            int[] fragment = { s, s };
+            while (pos < pattern.length() && pattern.charAt(pos) != '|' && pattern.charAt(pos) != ')') {
+                int[] next = parseRepetition();
+                epsilon(fragment[1], next[0]);
+                fragment[1] = next[1];
+            }
+            return fragment;
+        }
+
+        private int[] parseRepetition() {
+            int[] fragment = parseAtom();
+            while (pos < pattern.length() && "*+?".indexOf(pattern.charAt(pos)) >= 0) {
+                char op = pattern.charAt(pos++);
+                int s = state(null, false);
+                int e = state(null, false);
+                epsilon(s, fragment[0]);
+                if (op != '+')
+                    epsilon(s, e);
+                if (op != '?')
+                    epsilon(fragment[1], fragment[0]);
+                epsilon(fragment[1], e);
+                fragment = new int[] { s, e };
+            }
+            return fragment;
+        }
+
+        private int[] parseAtom() {
+            char c = pattern.charAt(pos++);
+            if (c == '(') {
+                int[] fragment = parseAlternation();
+                if (pos >= pattern.length() || pattern.charAt(pos) != ')')
+                    throw new IllegalArgumentException("Unclosed group in " + pattern);
+                pos++;
+                return fragment;
+            }
+
+            int s;
+            if (c == '.') {
+                s = state(new int[0], true);
+            } else if (c == '[') {
+                boolean negate = pos < pattern.length() && pattern.charAt(pos) == '^';
+                if (negate)
+                    pos++;
+                ArrayList<Integer> r = new ArrayList<>();
+                while (pos < pattern.length() && (pattern.charAt(pos) != ']' || r.isEmpty())) {
+                    char from = literal();
+                    char to = from;
+                    if (pos + 1 < pattern.length() && pattern.charAt(pos) == '-' && pattern.charAt(pos + 1) != ']') {
+                        pos++;
+                        to = literal();
+                    }
+                    r.add((int) from);
+                    r.add((int) to);
+                }
+                if (pos >= pattern.length())
+                    throw new IllegalArgumentException("Unclosed class in " + pattern);
+                pos++;
+                int[] rs = new int[r.size()];
+                for (int i = 0; i < rs.length; i++) {
+                    rs[i] = r.get(i);
+                }
+                s = state(rs, negate);
+            } else if ("*+?)|".indexOf(c) >= 0) {
+                throw new IllegalArgumentException("Unexpected '" + c + "' at " + (pos - 1) + " in " + pattern);
+            } else {
+                pos--;
+                char l = literal();
+                s = state(new int[] { l, l }, false);
+            }
+            int e = state(null, false);
+            outs.get(s)[0] = e;
+            return new int[] { s, e };
+        }
+
+        /** Reads a char, unescaping it if it is escaped. */
+        private char literal() {
+            char c = pattern.charAt(pos++);
+            if (c == '\\') {
+                if (pos >= pattern.length())
+                    throw new IllegalArgumentException("Trailing \\ in " + pattern);
+                c = pattern.charAt(pos++);
+            }
+            return c;
+        }
+
+        private boolean matches(int state, char c) {
+            int[] r = ranges.get(state);
+            boolean in = false;
+            for (int i = 0; i < r.length && !in; i += 2) {
+                in = r[i] <= c && c <= r[i + 1];
+            }
+            return in != negated.get(state);
+        }
+
+        /**
+         * Returns the NFA states reachable from some states by epsilon
+         * moves that consume a char or accept, sorted, or null if there are
+         * none.
+         */
+        private int[] closure(int[] from, int n) {
+            boolean[] seen = new boolean[outs.size()];
+            int[] stack = new int[outs.size()];
+            int top = 0;
+            for (int i = 0; i < n; i++) {
+                if (!seen[from[i]]) {
+                    seen[from[i]] = true;
+                    stack[top++] = from[i];
+                }
+            }
+            int[] kept = new int[outs.size()];
+            int size = 0;
+            while (top > 0) {
+                int s = stack[--top];
+                if (ranges.get(s) != null || s == accept) {
+                    kept[size++] = s;
+                    continue;
+                }
+                for (int out : outs.get(s)) {
+                    if (out >= 0 && !seen[out]) {
+                        seen[out] = true;
+                        stack[top++] = out;
+                    }
+                }
+            }
+            if (size == 0)
+                return null;
+            int[] state = Arrays.copyOf(kept, size);
+            Arrays.sort(state);
+            return state;
+        }
+
+        @Override
+        protected int[] initial() {
+            return closure(new int[] { first }, 1);
+        }
+
+        @Override
+        protected int[] next(int[] state, char c) {
+            int[] moved = new int[state.length];
+            int n = 0;
+            for (int s : state) {
+                if (ranges.get(s) != null && matches(s, c))
+                    moved[n++] = outs.get(s)[0];
+            }
+            return n == 0 ? null : closure(moved, n);
+        }
+
+        @Override
+        protected boolean accepts(int[] state) {
+            return Arrays.binarySearch(state, accept) >= 0;
+        }
+    }
+
+    /**
+     * Accepts the terms within an edit distance of a word, where inserting
+     * or deleting a char costs 1 and substituting one costs
+     * <code>substitutionCost</code>.
+     *
+     * A state is the last row of the edit distance matrix between the word
+     * and the prefix read so far, with every entry above the maximal
+     * distance cut down to one more than it, so there are finitely many
+     * states. A state whose smallest entry exceeds the maximal distance is
+     * dead.
+     */
+    public static class Levenshtein extends Automaton {
+
+        private final String word;
+        private final int maxDistance;
+        private final int substitutionCost;
+
+        public Levenshtein(String word, int maxDistance, int substitutionCost) {
+            this.word = word;
+            this.maxDistance = maxDistance;
+            this.substitutionCost = substitutionCost;
+        }
+
+        @Override
+        protected int[] initial() {
+            int[] row = new int[word.length() + 1];
+            for (int j = 0; j < row.length; j++) {
+                row[j] = Math.min(j, maxDistance + 1);
+            }
+            return row;
+        }
+
+        @Override
+        protected int[] next(int[] row, char c) {
+            int[] next = new int[row.length];
+            next[0] = Math.min(row[0] + 1, maxDistance + 1);
+            int min = next[0];
+            for (int j = 1; j < row.length; j++) {
+                int substitute = row[j - 1] + (word.charAt(j - 1) == c ? 0 : substitutionCost);
+                int d = Math.min(substitute, Math.min(row[j] + 1, next[j - 1] + 1));
+                next[j] = Math.min(d, maxDistance + 1);
+                min = Math.min(min, next[j]);
+            }
+            return min > maxDistance ? null : next;
+        }
+
+        @Override
+        protected boolean accepts(int[] row) {
+            return row[row.length - 1] <= maxDistance;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package ir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * How often two terms occur next to each other in the collection, as a
+ * count-min sketch.
+ *
+ * A bigram is hashed into one counter in each of <code>DEPTH</code> rows,
+ * and its count is the smallest of those counters. Collisions can only
+ * make a count too large, and updating only the counters that hold the
+ * minimum keeps that error small. The memory used is fixed when the
+ * statistics are created, however many distinct bigrams there are, and a
+ * lookup is <code>DEPTH</code> array reads.
+ *
+ * A bigram is keyed by the hash codes of its terms rather than by termIDs,
+ * so the statistics need no term dictionary and work the same with an
+ * in-memory and a mapped k-gram index.
+ */
+public class BigramStatistics {
+
+    /** The bigram statistics file name */
+    public static final String FNAME = "bigrams";
+
+    /** Number of rows */
+    private static final int DEPTH = 4;
+
+    /**
+     * The counters and the width of their rows, which are replaced
+     * together when the statistics are read
+     */
+    private static class Sketch {
+        /** Number of counters per row, a power of two */
+        final int width;
+
+        /** The counters, row after row */
+        final int[] counters;
+
+        Sketch(int width) {
+            this(width, new int[DEPTH * width]);
+        }
+
+        Sketch(int width, int[] counters) {
+            this.width = width;
+            this.counters = counters;
+        }
+
+        /** Returns the counter of a bigram in a row. */
+        int slot(long key, int row) {
+            long h = key + row * 0x9E3779B97F4A7C15L;
+            h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+            h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+            h ^= h >>> 33;
+            return row * width + ((int) h & (width - 1));
+        }
+    }
+
+    private volatile Sketch sketch;
+
+    /** The largest count of any bigram */
+    private volatile int maxCount = 0;
+
+    /**
+     * Creates empty statistics using about <code>bytes</code> bytes.
+     */
+    public BigramStatistics(long bytes) {
+        long perRow = Math.max(16, bytes / (4L * DEPTH));
+        sketch = new Sketch(Integer.highestOneBit((int) Math.min(perRow, 1 << 28)));
+    }
+
+    private static long key(String first, String second) {
+        return (long) first.hashCode() << 32 | (second.hashCode() & 0xFFFFFFFFL);
+    }
+
+    /** Counts one occurrence of <code>second</code> right after <code>first</code>. */
+    public synchronized void add(String first, String second) {
+        Sketch sk = sketch;
+        int[] counters = sk.counters;
+        long key = key(first, second);
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counters[sk.slot(key, row)]);
+        }
+        if (min == Integer.MAX_VALUE)
+            return;
+        for (int row = 0; row < DEPTH; row++) {
+            int s = sk.slot(key, row);
+            if (counters[s] == min)
+                counters[s] = min + 1;
+        }
+        if (min + 1 > maxCount)
+            maxCount = min + 1;
+    }
+
+    /** Returns how often <code>second</code> follows <code>first</code>, or slightly more. */
+    public int getCount(String first, String second) {
+        Sketch sk = sketch;
+        long key = key(first, second);
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, sk.counters[sk.slot(key, row)]);
+        }
+        return min;
+    }
+
+    /**
+     * Returns how strongly two terms go together, between 0 if they never
+     * occur next to each other and 1 for the most frequent bigram, on a
+     * logarithmic scale.
+     */
+    public double getScore(String first, String second) {
+        int max = maxCount;
+        if (max == 0)
+            return 0.0;
+        return Math.log1p(getCount(first, second)) / Math.log1p(max);
+    }
+
+    /** Returns the bytes used by the counters. */
+    public long getBytes() {
+        return 4L * sketch.counters.length;
+    }
+
+    /**
+     * Writes the statistics to the given directory.
+     */
+    public synchronized void write(String dir) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dir, FNAME))))) {
+            Sketch sk = sketch;
+            out.writeInt(sk.width);
+            out.writeInt(maxCount);
+            for (int c : sk.counters) {
+                out.writeInt(c);
+            }
+        }
+    }
+
+    /**
+     * Reads the statistics from the given directory, replacing these,
+     * whatever size they were created with.
+     */
+    public synchronized void read(String dir) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(dir, FNAME))))) {
+            int readWidth = in.readInt();
+            int readMax = in.readInt();
+            int[] readCounters = new int[DEPTH * readWidth];
+            for (int i = 0; i < readCounters.length; i++) {
+                readCounters[i] = in.readInt();
+            }
+            sketch = new Sketch(readWidth, readCounters);
+            maxCount = readMax;
+        }
+    }
+}
@@ -0,0 +1,883 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+/**
+ * A query in the boolean query language, parsed into a tree of operators.
+ *
+ * <pre>
+ *   a b, a AND b    documents with both terms
+ *   a OR b          documents with either term
+ *   NOT a           documents without the term
+ *   (a OR b) c      grouping
+ *   "a b c"         the phrase
+ *   a NEAR/k b      both terms at most k positions apart (NEAR alone is NEAR/5)
+ *   a*b             any term matching the wildcard
+ * </pre>
+ *
+ * NOT and NEAR bind tighter than AND, and AND binds tighter than OR. The
+ * operators are recognized in any case, since the search window lowercases
+ * the query, so they can only be searched for inside a phrase.
+ *
+ * Before it is evaluated the query is planned. The planner estimates the
+ * number of documents every operator matches from the document frequencies
+ * of the terms, orders the operands of an AND from the rarest up so the
+ * rarest one leads the intersection, and applies the NOT operands of an
+ * AND last, as a filter that skips the candidates they contain. An OR that
+ * is expected to match a large part of the collection is evaluated into a
+ * bitset instead of merging its operands one document at a time.
+ *
+ * The planned tree is evaluated through cursors over the postings lists,
+ * one document at a time, so a page of results only walks the postings as
+ * far as that page needs.
+ */
+public class BooleanQuery {
+
+    /** Default distance of a NEAR operator */
+    public static final int DEFAULT_NEAR = 5;
+
+    /**
+     * An OR that is expected to match more than 1 / <code>DENSE_RATIO</code>
+     * of the documents is evaluated into a bitset. Beyond that, scanning a
+     * bitset word by word is cheaper than a heap merge of the postings.
+     */
+    static final int DENSE_RATIO = 32;
+
+    /** The parsed query */
+    private final Node root;
+
+    /** The query as planned by the last call to <code>open</code> */
+    private Node planned;
+
+    private BooleanQuery(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Parses a query.
+     *
+     * @throws IllegalArgumentException If the query is not well-formed
+     */
+    public static BooleanQuery parse(String text) throws IllegalArgumentException {
+        Parser parser = new Parser(tokenize(text));
+        if (parser.atEnd())
+            throw new IllegalArgumentException("Empty boolean query");
+        Node root = parser.parseOr();
+        if (!parser.atEnd())
+            throw new IllegalArgumentException("Unexpected '" + parser.peek() + "' in boolean query");
+        return new BooleanQuery(root);
+    }
+
+    /**
+     * Plans the query and starts evaluating it.
+     *
+     * @param postings Returns the postings of a term or wildcard, or null if
+     *                 nothing matches
+     * @return A cursor over the matching documents, in docID order
+     */
+    public ResultCursor open(Function<String, PostingsList> postings) {
+        Planner planner = new Planner(postings);
+        planned = root.plan(planner);
+        DocCursor cursor = planned.open(planner);
+
+        return new ResultCursor.Streaming() {
+            @Override
+            int findNext() {
+                int docID = cursor.nextDoc();
+                return docID == DocCursor.NO_MORE_DOCS ? -1 : docID;
+            }
+        };
+    }
+
+    /**
+     * Returns the query, with the planned order, estimates and operators
+     * once it has been opened.
+     */
+    @Override
+    public String toString() {
+        return planned == null ? root.toString() : planned.toString();
+    }
+
+    /* ---------------------------------------------------------------- */
+    /* Parsing                                                          */
+    /* ---------------------------------------------------------------- */
+
+    /** Splits a query into words, parentheses and quotes. */
+    private static ArrayList<String> tokenize(String text) {
+        ArrayList<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')' || c == '"') {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else {
+                int start = i;
+                while (i < text.length() && !Character.isWhitespace(text.charAt(i)) && "()\"".indexOf(text.charAt(i)) < 0)
+                    i++;
+                tokens.add(text.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * A recursive descent parser over the tokens of a query.
+     */
+    private static class Parser {
+        private final ArrayList<String> tokens;
+        private int pos = 0;
+
+        Parser(ArrayList<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        boolean atEnd() {
+            return pos == tokens.size();
+        }
+
+        String peek() {
+            return atEnd() ? null : tokens.get(pos);
+        }
+
+        private boolean isOperator(String token, String op) {
+            return token != null && token.toUpperCase(Locale.ROOT).equals(op);
+        }
+
+        private boolean isNear(String token) {
+            return token != null && token.toUpperCase(Locale.ROOT).matches("NEAR(/\\d+)?");
+        }
+
+        /** or := and (OR and)* */
+        Node parseOr() {
+            ArrayList<Node> operands = new ArrayList<>();
+            operands.add(parseAnd());
+            while (isOperator(peek(), "OR")) {
+                pos++;
+                operands.add(parseAnd());
+            }
+            return operands.size() == 1 ? operands.get(0) : new Or(operands);
+        }
+
+        /** and := near ([AND] near)* */
+        Node parseAnd() {
+            ArrayList<Node> operands = new ArrayList<>();
+            operands.add(parseNear());
+            for (;;) {
+                String token = peek();
+                if (token == null || token.equals(")") || isOperator(token, "OR"))
+                    break;
+                if (isOperator(token, "AND"))
+                    pos++;
+                operands.add(parseNear());
+            }
+            return operands.size() == 1 ? operands.get(0) : new And(operands);
+        }
+
+        /** near := unary (NEAR[/k] unary)* */
+        Node parseNear() {
+            Node left = parseUnary();
+            while (isNear(peek())) {
+                String token = tokens.get(pos++);
+                int k = token.length() > 4 ? Integer.parseInt(token.substring(5)) : DEFAULT_NEAR;
+                Node right = parseUnary();
+                if (!(left instanceof Term) || !(right instanceof Term))
+                    throw new IllegalArgumentException("NEAR can only join two terms");
+                left = new Near((Term) left, (Term) right, k);
+            }
+            return left;
+        }
+
+        /** unary := NOT unary | primary */
+        Node parseUnary() {
+            if (isOperator(peek(), "NOT")) {
+                pos++;
+                return new Not(parseUnary());
+            }
+            return parsePrimary();
+        }
+
+        /** primary := '(' or ')' | '"' word+ '"' | word */
+        Node parsePrimary() {
+            String token = peek();
+            if (token == null)
+                throw new IllegalArgumentException("Boolean query ends with an operator");
+            pos++;
+
+            if (token.equals("(")) {
+                Node node = parseOr();
+                if (!")".equals(peek()))
+                    throw new IllegalArgumentException("Missing ')' in boolean query");
+                pos++;
+                return node;
+            }
+
+            if (token.equals("\"")) {
+                ArrayList<String> words = new ArrayList<>();
+                while (!atEnd() && !tokens.get(pos).equals("\"")) {
+                    String word = tokens.get(pos++);
+                    if (!word.equals("(") && !word.equals(")"))
+                        words.add(word);
+                }
+                if (atEnd())
+                    throw new IllegalArgumentException("Missing '\"' in boolean query");
+                pos++;
+                if (words.isEmpty())
+                    throw new IllegalArgumentException("Empty phrase in boolean query");
+                return words.size() == 1 ? new Term(words.get(0)) : new Phrase(words);
+            }
+
+            if (token.equals(")") || isOperator(token, "AND") || isOperator(token, "OR") || isNear(token))
+                throw new IllegalArgumentException("Unexpected '" + token + "' in boolean query");
+            return new Term(token);
+        }
+    }
+
+    /* ---------------------------------------------------------------- */
+    /* Planning                                                         */
+    /* ---------------------------------------------------------------- */
+
+    /**
+     * The state of planning and opening one query: the postings of its
+     * terms, looked up once, and the size of the collection.
+     */
+    static class Planner {
+        private final Function<String, PostingsList> lookup;
+        private final HashMap<String, PostingsList> postings = new HashMap<>();
+        final int numberOfDocs = Index.docNames.size();
+        private BitSet allDocs;
+
+        Planner(Function<String, PostingsList> lookup) {
+            this.lookup = lookup;
+        }
+
+        /** Returns the postings of a term, or an empty list if nothing matches. */
+        PostingsList getPostings(String term) {
+            PostingsList pl = postings.get(term);
+            if (pl == null) {
+                pl = lookup.apply(term);
+                if (pl == null)
+                    pl = new PostingsList();
+                postings.put(term, pl);
+            }
+            return pl;
+        }
+
+        /** Returns the docIDs of all documents in the collection. */
+        BitSet getAllDocs() {
+            if (allDocs == null) {
+                allDocs = new BitSet();
+                for (int docID : Index.docNames.keySet()) {
+                    allDocs.set(docID);
+                }
+            }
+            return allDocs;
+        }
+
+        boolean isDense(long cost) {
+            return cost * DENSE_RATIO > numberOfDocs;
+        }
+    }
+
+    /**
+     * A node of the operator tree.
+     */
+    abstract static class Node {
+        /** Estimated number of matching documents, set by the planner */
+        long cost;
+
+        /**
+         * Returns the planned node: an equivalent tree with its estimates
+         * set and its operands in evaluation order.
+         */
+        abstract Node plan(Planner planner);
+
+        /** Returns a cursor over the matching documents. */
+        abstract DocCursor open(Planner planner);
+
+        /** Returns the matching documents as a bitset. */
+        BitSet getBits(Planner planner) {
+            BitSet bits = new BitSet(planner.numberOfDocs);
+            DocCursor cursor = open(planner);
+            for (int docID = cursor.nextDoc(); docID != DocCursor.NO_MORE_DOCS; docID = cursor.nextDoc()) {
+                bits.set(docID);
+            }
+            return bits;
+        }
+
+        /** Returns true if the node is evaluated into a bitset. */
+        boolean isBitSet() {
+            return false;
+        }
+    }
+
+    /**
+     * A term, or a wildcard standing for the union of the terms it matches.
+     */
+    static class Term extends Node {
+        final String term;
+
+        Term(String term) {
+            this.term = term;
+        }
+
+        @Override
+        Node plan(Planner planner) {
+            cost = planner.getPostings(term).size();
+            return this;
+        }
+
+        @Override
+        PostingsCursor open(Planner planner) {
+            return new PostingsCursor(planner.getPostings(term));
+        }
+
+        @Override
+        public String toString() {
+            return term + ":" + cost;
+        }
+    }
+
+    /**
+     * Terms at consecutive positions.
+     */
+    static class Phrase extends Node {
+        final List<String> terms;
+
+        Phrase(List<String> terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        Node plan(Planner planner) {
+            cost = Long.MAX_VALUE;
+            for (String term : terms) {
+                cost = Math.min(cost, planner.getPostings(term).size());
+            }
+            return this;
+        }
+
+        @Override
+        DocCursor open(Planner planner) {
+            ArrayList<PostingsCursor> cursors = new ArrayList<>();
+            for (String term : terms) {
+                cursors.add(new PostingsCursor(planner.getPostings(term)));
+            }
+            return new PhraseCursor(cursors);
+        }
+
+        @Override
+        public String toString() {
+            return "\"" + String.join(" ", terms) + "\":" + cost;
+        }
+    }
+
+    /**
+     * Two terms at most <code>k</code> positions apart, in either order.
+     */
+    static class Near extends Node {
+        final Term left;
+        final Term right;
+        final int k;
+
+        Near(Term left, Term right, int k) {
+            this.left = left;
+            this.right = right;
+            this.k = k;
+        }
+
+        @Override
+        Node plan(Planner planner) {
+            left.plan(planner);
+            right.plan(planner);
+            cost = Math.min(left.cost, right.cost);
+            return this;
+        }
+
+        @Override
+        DocCursor open(Planner planner) {
+            return new NearCursor(left.open(planner), right.open(planner), k);
+        }
+
+        @Override
+        public String toString() {
+            return "NEAR/" + k + "(" + left + ", " + right + "):" + cost;
+        }
+    }
+
+    /**
+     * The documents that do not match the operand. Within an AND it is
+     * applied as a filter on the other operands; on its own it filters the
+     * whole collection.
+     */
+    static class Not extends Node {
+        final Node operand;
+
+        Not(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        Node plan(Planner planner) {
+            if (operand instanceof Not)
+                return ((Not) operand).operand.plan(planner);
+
+            Not planned = new Not(operand.plan(planner));
+            planned.cost = Math.max(0, planner.numberOfDocs - planned.operand.cost);
+            return planned;
+        }
+
+        @Override
+        DocCursor open(Planner planner) {
+            ArrayList<DocCursor> required = new ArrayList<>();
+            required.add(new BitSetCursor(planner.getAllDocs()));
+            ArrayList<DocCursor> excluded = new ArrayList<>();
+            excluded.add(operand.open(planner));
+            return new ConjunctionCursor(required, excluded);
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + operand;
+        }
+    }
+
+    /**
+     * The documents that match all operands.
+     */
+    static class And extends Node {
+        final List<Node> operands;
+
+        /** The operands that must match, from the rarest up */
+        List<Node> required;
+
+        /** The operands of NOT operands, which must not match */
+        List<Node> excluded;
+
+        And(List<Node> operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        Node plan(Planner planner) {
+            And planned = new And(operands);
+            planned.required = new ArrayList<>();
+            planned.excluded = new ArrayList<>();
+            for (Node operand : operands) {
+                Node p = operand.plan(planner);
+                if (p instanceof And) {
+                    planned.required.addAll(((And) p).required);
+                    planned.excluded.addAll(((And) p).excluded);
+                } else if (p instanceof Not) {
+                    planned.excluded.add(((Not) p).operand);
+                } else {
+                    planned.required.add(p);
+                }
+            }
+            planned.required.sort((a, b) -> Long.compare(a.cost, b.cost));
+
+            if (planned.required.isEmpty()) {
+                long excludedCost = 0;
+                for (Node e : planned.excluded) {
+                    excludedCost += e.cost;
+                }
+                planned.cost = Math.max(0, planner.numberOfDocs - excludedCost);
+            } else {
+                planned.cost = planned.required.get(0).cost;
+            }
+            return planned;
+        }
+
+        /**
+         * Intersects bitsets when every required operand is one already, and
+         * otherwise leapfrogs from the rarest operand.
+         */
+        @Override
+        boolean isBitSet() {
+            if (required.size() < 2)
+                return false;
+            for (Node r : required) {
+                if (!r.isBitSet())
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        BitSet getBits(Planner planner) {
+            if (!isBitSet())
+                return super.getBits(planner);
+
+            BitSet bits = required.get(0).getBits(planner);
+            for (int i = 1; i < required.size() && !bits.isEmpty(); i++) {
+                bits.and(required.get(i).getBits(planner));
+            }
+            for (Node e : excluded) {
+                bits.andNot(e.getBits(planner));
+            }
+            return bits;
+        }
+
+        @Override
+        DocCursor open(Planner planner) {
+            if (!required.isEmpty() && required.get(0).cost == 0)
+                return new PostingsCursor(new PostingsList());
+            if (isBitSet())
+                return new BitSetCursor(getBits(planner));
+
+            ArrayList<DocCursor> requiredCursors = new ArrayList<>();
+            if (required.isEmpty())
+                requiredCursors.add(new BitSetCursor(planner.getAllDocs()));
+            for (Node r : required) {
+                requiredCursors.add(r.open(planner));
+            }
+            ArrayList<DocCursor> excludedCursors = new ArrayList<>();
+            for (Node e : excluded) {
+                excludedCursors.add(e.open(planner));
+            }
+            return new ConjunctionCursor(requiredCursors, excludedCursors);
+        }
+
+        @Override
+        public String toString() {
+            if (required == null)
+                return "AND" + operands;
+
+            ArrayList<String> parts = new ArrayList<>();
+            for (Node r : required) {
+                parts.add(r.toString());
+            }
+            for (Node e : excluded) {
+                parts.add("NOT " + e);
+            }
+            return "AND" + (isBitSet() ? "/bitset" : "/leapfrog") + parts + ":" + cost;
+        }
+    }
+
+    /**
+     * The documents that match any operand.
+     */
+    static class Or extends Node {
+        final List<Node> operands;
+        private boolean dense;
+
+        Or(List<Node> operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        Node plan(Planner planner) {
+            ArrayList<Node> planned = new ArrayList<>();
+            for (Node operand : operands) {
+                Node p = operand.plan(planner);
+                if (p instanceof Or)
+                    planned.addAll(((Or) p).operands);
+                else
+                    planned.add(p);
+            }
+
+            Or or = new Or(planned);
+            long sum = 0;
+            for (Node p : planned) {
+                sum += p.cost;
+            }
+            or.cost = Math.min(sum, planner.numberOfDocs);
+            or.dense = planner.isDense(sum);
+            return or;
+        }
+
+        @Override
+        boolean isBitSet() {
+            return dense;
+        }
+
+        @Override
+        BitSet getBits(Planner planner) {
+            BitSet bits = new BitSet(planner.numberOfDocs);
+            for (Node operand : operands) {
+                bits.or(operand.getBits(planner));
+            }
+            return bits;
+        }
+
+        @Override
+        DocCursor open(Planner planner) {
+            if (dense)
+                return new BitSetCursor(getBits(planner));
+
+            ArrayList<DocCursor> cursors = new ArrayList<>();
+            for (Node operand : operands) {
+                cursors.add(operand.open(planner));
+            }
+            return new DisjunctionCursor(cursors);
+        }
+
+        @Override
+        public String toString() {
+            return "OR" + (dense ? "/bitset" : "/merge") + operands + ":" + cost;
+        }
+    }
+
+    /* ---------------------------------------------------------------- */
+    /* Evaluation                                                       */
+    /* ---------------------------------------------------------------- */
+
+    /**
+     * A cursor over matching docIDs in increasing order.
+     */
+    abstract static class DocCursor {
+        static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+        /** The current docID, -1 before the first */
+        int doc = -1;
+
+        /** Moves to the next matching document and returns its docID. */
+        abstract int nextDoc();
+
+        /**
+         * Moves to the first matching document at or after
+         * <code>target</code>, unless the cursor is already there, and
+         * returns its docID.
+         */
+        abstract int advance(int target);
+    }
+
+    /**
+     * The documents of a postings list.
+     */
+    static class PostingsCursor extends DocCursor {
+        private final PostingsList pl;
+        private int i = -1;
+
+        PostingsCursor(PostingsList pl) {
+            this.pl = pl;
+        }
+
+        @Override
+        int nextDoc() {
+            if (doc == NO_MORE_DOCS)
+                return doc;
+            i++;
+            return doc = i < pl.size() ? pl.get(i).docID : NO_MORE_DOCS;
+        }
+
+        @Override
+        int advance(int target) {
+            if (doc >= target)
+                return doc;
+            i = ResultCursor.gallop(pl, Math.max(i, 0), target);
+            return doc = i < pl.size() ? pl.get(i).docID : NO_MORE_DOCS;
+        }
+
+        /** Returns the current postings entry. */
+        PostingsEntry entry() {
+            return pl.get(i);
+        }
+
+        int size() {
+            return pl.size();
+        }
+    }
+
+    /**
+     * The documents in a bitset.
+     */
+    static class BitSetCursor extends DocCursor {
+        private final BitSet bits;
+
+        BitSetCursor(BitSet bits) {
+            this.bits = bits;
+        }
+
+        @Override
+        int nextDoc() {
+            return doc == NO_MORE_DOCS ? doc : advance(doc + 1);
+        }
+
+        @Override
+        int advance(int target) {
+            if (doc >= target)
+                return doc;
+            int next = bits.nextSetBit(target);
+            return doc = next < 0 ? NO_MORE_DOCS : next;
+        }
+    }
+
+    /**
+     * The documents on which all required cursors agree and no excluded
+     * cursor is. The first required cursor leads, and the others and the
+     * excluded ones skip ahead to its candidates.
+     */
+    static class ConjunctionCursor extends DocCursor {
+        final List<? extends DocCursor> required;
+        private final List<DocCursor> excluded;
+
+        ConjunctionCursor(List<? extends DocCursor> required, List<DocCursor> excluded) {
+            this.required = required;
+            this.excluded = excluded;
+        }
+
+        @Override
+        int nextDoc() {
+            return doc == NO_MORE_DOCS ? doc : align(required.get(0).nextDoc());
+        }
+
+        @Override
+        int advance(int target) {
+            if (doc >= target)
+                return doc;
+            return align(required.get(0).advance(target));
+        }
+
+        /**
+         * Returns the first document at or after the lead's candidate that
+         * all required cursors contain and that matches.
+         */
+        private int align(int candidate) {
+            DocCursor lead = required.get(0);
+            for (;;) {
+                if (candidate == NO_MORE_DOCS)
+                    return doc = NO_MORE_DOCS;
+
+                boolean all = true;
+                for (int k = 1; k < required.size(); k++) {
+                    int other = required.get(k).advance(candidate);
+                    if (other != candidate) {
+                        candidate = lead.advance(other);
+                        all = false;
+                        break;
+                    }
+                }
+                if (!all)
+                    continue;
+
+                if (!isExcluded(candidate) && matches(candidate))
+                    return doc = candidate;
+                candidate = lead.nextDoc();
+            }
+        }
+
+        private boolean isExcluded(int docID) {
+            for (DocCursor e : excluded) {
+                if (e.advance(docID) == docID)
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Returns true if a document that all required cursors contain
+         * matches. Positional operators check the positions here.
+         */
+        boolean matches(int docID) {
+            return true;
+        }
+    }
+
+    /**
+     * The documents in which the terms occur at consecutive positions.
+     */
+    static class PhraseCursor extends ConjunctionCursor {
+        /** The term cursors in query order */
+        private final List<PostingsCursor> terms;
+
+        PhraseCursor(List<PostingsCursor> terms) {
+            super(byCost(terms), Collections.emptyList());
+            this.terms = terms;
+        }
+
+        private static List<PostingsCursor> byCost(List<PostingsCursor> terms) {
+            ArrayList<PostingsCursor> sorted = new ArrayList<>(terms);
+            sorted.sort((a, b) -> Integer.compare(a.size(), b.size()));
+            return sorted;
+        }
+
+        @Override
+        boolean matches(int docID) {
+            for (int p : terms.get(0).entry().getPositionList()) {
+                boolean found = true;
+                for (int j = 1; j < terms.size() && found; j++) {
+                    found = Collections.binarySearch(terms.get(j).entry().getPositionList(), p + j) >= 0;
+                }
+                if (found)
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The documents in which two terms occur at most <code>k</code>
+     * positions apart.
+     */
+    static class NearCursor extends ConjunctionCursor {
+        private final PostingsCursor left;
+        private final PostingsCursor right;
+        private final int k;
+
+        NearCursor(PostingsCursor left, PostingsCursor right, int k) {
+            super(left.size() <= right.size() ? List.of(left, right) : List.of(right, left), Collections.emptyList());
+            this.left = left;
+            this.right = right;
+            this.k = k;
+        }
+
+        @Override
+        boolean matches(int docID) {
+            List<Integer> a = left.entry().getPositionList();
+            List<Integer> b = right.entry().getPositionList();
+            int i = 0;
+            int j = 0;
+            while (i < a.size() && j < b.size()) {
+                int pa = a.get(i);
+                int pb = b.get(j);
+                if (pa != pb && Math.abs(pa - pb) <= k)
+                    return true;
+                if (pa < pb)
+                    i++;
+                else
+                    j++;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The documents of any of several cursors, merged through a heap on
+     * their current docIDs.
+     */
+    static class DisjunctionCursor extends DocCursor {
+        private final PriorityQueue<DocCursor> heap;
+
+        DisjunctionCursor(List<DocCursor> cursors) {
+            heap = new PriorityQueue<>(Math.max(1, cursors.size()), (a, b) -> Integer.compare(a.doc, b.doc));
+            heap.addAll(cursors);
+        }
+
+        @Override
+        int nextDoc() {
+            return doc == NO_MORE_DOCS ? doc : advance(doc + 1);
+        }
+
+        @Override
+        int advance(int target) {
+            if (doc >= target)
+                return doc;
+            while (!heap.isEmpty() && heap.peek().doc < target) {
+                DocCursor c = heap.poll();
+                if (c.advance(target) != NO_MORE_DOCS)
+                    heap.add(c);
+            }
+            return doc = heap.isEmpty() ? NO_MORE_DOCS : heap.peek().doc;
+        }
+    }
+}
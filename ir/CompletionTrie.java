@@ -0,0 +1,283 @@
+package ir;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Weighted strings in a trie, for finding the heaviest completions of a
+ * prefix.
+ *
+ * The nodes are laid out by <code>TrieLayout</code>, as in the term
+ * dictionary: numbered breadth first, with the children of a node
+ * numbered consecutively in the order of their chars, so a child is found
+ * by binary search. Every node also
+ * stores the weight of the string ending there, if any, and the largest
+ * weight below it. The completions of a prefix are then found best first
+ * from the node of the prefix: a heap holds the subtrees not yet expanded
+ * by their largest weight, and a string is returned as soon as no subtree
+ * left in the heap can hold a heavier one. Only the subtrees that may
+ * hold one of the best <code>k</code> completions are ever opened, however
+ * many strings start with the prefix.
+ *
+ * A trie is immutable, so it can be shared between threads.
+ */
+public class CompletionTrie {
+
+    /** The char leading to every node */
+    private final char[] labels;
+
+    /** The first child of every node, followed by the end of the last node's children */
+    private final int[] children;
+
+    /** The parent of every node, and -1 for the root */
+    private final int[] parents;
+
+    /** The weight of the string ending at every node, or -1 if none does */
+    private final float[] weights;
+
+    /** The largest weight of a string ending at or below every node */
+    private final float[] best;
+
+    private CompletionTrie(char[] labels, int[] children, int[] parents, float[] weights, float[] best) {
+        this.labels = labels;
+        this.children = children;
+        this.parents = parents;
+        this.weights = weights;
+        this.best = best;
+    }
+
+    /**
+     * Builds the trie of some strings. A string given more than once keeps
+     * its largest weight.
+     *
+     * @param weights The weight of every string, not negative
+     */
+    public static CompletionTrie build(String[] strings, float[] weights) {
+        Integer[] sorted = new Integer[strings.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i;
+        }
+        Arrays.sort(sorted, (a, b) -> strings[a].compareTo(strings[b]));
+        String[] terms = new String[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            terms[i] = strings[sorted[i]];
+        }
+
+        TrieLayout trie = TrieLayout.build(terms);
+        float[] nodeWeights = new float[trie.size];
+        for (int node = 0; node < trie.size; node++) {
+            nodeWeights[node] = -1;
+            for (int i = trie.from[node]; i < trie.from[node] + trie.ending[node]; i++) {
+                nodeWeights[node] = Math.max(nodeWeights[node], weights[sorted[i]]);
+            }
+        }
+
+        /** Children come after their parents, so one pass backwards fills in the largest weights */
+        float[] best = nodeWeights.clone();
+        for (int node = trie.size - 1; node > 0; node--) {
+            best[trie.parents[node]] = Math.max(best[trie.parents[node]], best[node]);
+        }
+
+        return new CompletionTrie(trie.labels, trie.children, trie.parents, nodeWeights, best);
+    }
+
+    /** Returns the node of a prefix, or -1 if no string starts with it. */
+    private int find(String prefix) {
+        int node = 0;
+        for (int i = 0; i < prefix.length() && node >= 0; i++) {
+            char c = prefix.charAt(i);
+            int lo = children[node];
+            int hi = children[node + 1];
+            node = -1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (labels[mid] < c) {
+                    lo = mid + 1;
+                } else if (labels[mid] > c) {
+                    hi = mid;
+                } else {
+                    node = mid;
+                    break;
+                }
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Returns up to <code>k</code> strings starting with a prefix, the
+     * heaviest first. Strings of equal weight come shortest first, then in
+     * the order of their chars.
+     */
+    public List<Completion> complete(String prefix, int k) {
+        List<Completion> completions = new ArrayList<>();
+        int start = find(prefix);
+        if (start < 0 || k <= 0 || best[start] < 0)
+            return completions;
+
+        /*
+         * An entry is either a subtree to expand or a string to return, by
+         * its weight and then by node, packed so that the largest long comes
+         * first. Weights are not negative, so their bits order like them.
+         */
+        LongHeap heap = new LongHeap();
+        heap.add(entry(best[start], start, true));
+        while (heap.size > 0 && completions.size() < k) {
+            long e = heap.poll();
+            int code = (int) (0xFFFFFFFFL - (e & 0xFFFFFFFFL));
+            int node = code >>> 1;
+            if ((code & 1) == 0) {
+                completions.add(new Completion(getString(node), weights[node]));
+                continue;
+            }
+            if (weights[node] >= 0)
+                heap.add(entry(weights[node], node, false));
+            for (int child = children[node]; child < children[node + 1]; child++) {
+                heap.add(entry(best[child], child, true));
+            }
+        }
+        return completions;
+    }
+
+    private static long entry(float weight, int node, boolean expand) {
+        long code = (long) node << 1 | (expand ? 1 : 0);
+        return (long) Float.floatToIntBits(weight) << 32 | (0xFFFFFFFFL - code);
+    }
+
+    /** Returns the string ending at a node. */
+    private String getString(int node) {
+        int length = 0;
+        for (int n = node; n > 0; n = parents[n]) {
+            length++;
+        }
+        char[] chars = new char[length];
+        for (int n = node; n > 0; n = parents[n]) {
+            chars[--length] = labels[n];
+        }
+        return new String(chars);
+    }
+
+    /** Returns the number of nodes. */
+    public int size() {
+        return labels.length;
+    }
+
+    /** Returns the bytes used by the trie. */
+    public long getBytes() {
+        return 2L * labels.length + 4L * children.length + 12L * labels.length;
+    }
+
+    /**
+     * Builds the trie of the terms in a file, weighed by how often they
+     * occur, and measures how long completing every prefix of one to three
+     * chars takes.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java ir.CompletionTrie <file> <patterns file>");
+            System.exit(1);
+        }
+
+        HashMap<String, Integer> counts = new HashMap<>();
+        Reader reader = new InputStreamReader(new FileInputStream(new File(args[0])), StandardCharsets.UTF_8);
+        Tokenizer tok = new Tokenizer(reader, true, false, true, args[1]);
+        while (tok.hasMoreTokens()) {
+            counts.merge(tok.nextToken(), 1, Integer::sum);
+        }
+        String[] strings = new String[counts.size()];
+        float[] weights = new float[counts.size()];
+        int i = 0;
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            strings[i] = e.getKey();
+            weights[i++] = e.getValue();
+        }
+
+        long startTime = System.nanoTime();
+        CompletionTrie trie = build(strings, weights);
+        System.err.printf("Built %d nodes for %d terms in %.1f ms, %d bytes%n", trie.size(), strings.length,
+                (System.nanoTime() - startTime) / 1e6, trie.getBytes());
+
+        /** Every prefix of a term of up to three chars */
+        HashMap<String, Boolean> prefixes = new HashMap<>();
+        for (String s : strings) {
+            for (int l = 1; l <= Math.min(3, s.length()); l++) {
+                prefixes.put(s.substring(0, l), true);
+            }
+        }
+        String[] all = prefixes.keySet().toArray(new String[0]);
+        long[] nanos = new long[all.length];
+        for (int pass = 0; pass < 5; pass++) {
+            for (int p = 0; p < all.length; p++) {
+                long start = System.nanoTime();
+                trie.complete(all[p], 10);
+                nanos[p] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(nanos);
+        System.err.printf("Top 10 completions of %d prefixes: p50 %.1f us, p99 %.1f us%n", all.length,
+                nanos[all.length / 2] / 1e3, nanos[all.length * 99 / 100] / 1e3);
+        for (String prefix : new String[] { "s", "th", "univ" }) {
+            System.err.println(prefix + ": " + trie.complete(prefix, 5));
+        }
+    }
+
+    /** A completion of a prefix and its weight */
+    public static class Completion {
+        public final String string;
+        public final float weight;
+
+        Completion(String string, float weight) {
+            this.string = string;
+            this.weight = weight;
+        }
+
+        public String toString() {
+            return string + ";" + weight;
+        }
+    }
+
+    /** A binary max-heap of longs */
+    private static class LongHeap {
+        long[] keys = new long[32];
+        int size = 0;
+
+        void add(long key) {
+            if (size == keys.length)
+                keys = Arrays.copyOf(keys, 2 * size);
+            int i = size++;
+            while (i > 0 && keys[(i - 1) >>> 1] < key) {
+                keys[i] = keys[(i - 1) >>> 1];
+                i = (i - 1) >>> 1;
+            }
+            keys[i] = key;
+        }
+
+        long poll() {
+            long top = keys[0];
+            long last = keys[--size];
+            int i = 0;
+            for (;;) {
+                int child = 2 * i + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && keys[child + 1] > keys[child])
+                    child++;
+                if (keys[child] <= last)
+                    break;
+                keys[i] = keys[child];
+                i = child;
+            }
+            keys[i] = last;
+            return top;
+        }
+    }
+}
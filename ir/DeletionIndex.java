@@ -0,0 +1,314 @@
+package ir;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Spelling candidates by symmetric deletion, in the style of SymSpell.
+ *
+ * Two terms within edit distance d of each other, where a substitution
+ * costs as much as a deletion and an insertion, become the same string
+ * after deleting at most d chars from each. Every term of the vocabulary
+ * is therefore stored under each of its deletions, and the candidates for
+ * a query term are the terms stored under any of its own deletions, which
+ * are then checked with the real edit distance.
+ *
+ * Only the first <code>prefixLength</code> chars of a term are used, which
+ * bounds the number of deletions per term and lets through some more
+ * candidates to check. A deletion is stored as a 32-bit hash, so
+ * collisions only add candidates. The whole index is one sorted array of
+ * (hash, termID) pairs packed into longs. The termIDs are those of the
+ * k-gram index, which also maps them back to terms, so a persistent index
+ * keeps its deletion index next to its k-gram index.
+ */
+public class DeletionIndex {
+
+    /** Default number of leading chars of a term whose deletions are stored */
+    public static final int PREFIX_LENGTH = 7;
+
+    /** The deletion index file name */
+    public static final String FNAME = "deletions";
+
+    /** Marks a deletion index file */
+    private static final int MAGIC = 0x44454C31;
+
+    /** Every deletion of every term, as hash << 32 | termID, sorted */
+    private final long[] entries;
+
+    private final KGramIndex kgIndex;
+    private final int maxDistance;
+    private final int prefixLength;
+
+    private DeletionIndex(long[] entries, KGramIndex kgIndex, int maxDistance, int prefixLength) {
+        this.entries = entries;
+        this.kgIndex = kgIndex;
+        this.maxDistance = maxDistance;
+        this.prefixLength = prefixLength;
+    }
+
+    /**
+     * Builds the deletion index of the vocabulary of a k-gram index.
+     *
+     * @param maxDistance  The largest edit distance candidates are looked up for
+     * @param prefixLength The number of leading chars of a term whose deletions are stored
+     */
+    public static DeletionIndex build(KGramIndex kgIndex, int maxDistance, int prefixLength) {
+        long[] entries = new long[1024];
+        int size = 0;
+        int[] hashes = new int[64];
+        for (int id = 0; id < kgIndex.getTermCount(); id++) {
+            String term = kgIndex.getTermByID(id);
+            int n = getDeletions(term, Math.min(term.length(), prefixLength), maxDistance, hashes);
+            if (hashes.length < n) {
+                hashes = new int[n];
+                getDeletions(term, Math.min(term.length(), prefixLength), maxDistance, hashes);
+            }
+
+            /** A term has the same deletion many times over, as in deleting either 'l' of "ll" */
+            Arrays.sort(hashes, 0, n);
+            for (int i = 0; i < n; i++) {
+                if (i > 0 && hashes[i] == hashes[i - 1])
+                    continue;
+                if (size == entries.length)
+                    entries = Arrays.copyOf(entries, 2 * size);
+                entries[size++] = (long) hashes[i] << 32 | id;
+            }
+        }
+
+        entries = Arrays.copyOf(entries, size);
+        Arrays.sort(entries);
+        return new DeletionIndex(entries, kgIndex, maxDistance, prefixLength);
+    }
+
+    /**
+     * Hashes every string made by deleting at most <code>maxDistance</code>
+     * of the first <code>length</code> chars of a term, and keeping the
+     * rest of those chars.
+     *
+     * @return The number of deletions, which may be more than fit in <code>hashes</code>
+     */
+    private static int getDeletions(String term, int length, int maxDistance, int[] hashes) {
+        int n = 0;
+        if (n < hashes.length)
+            hashes[n] = hash(term, length, -1, -1);
+        n++;
+        if (maxDistance >= 1) {
+            for (int i = 0; i < length; i++) {
+                if (n < hashes.length)
+                    hashes[n] = hash(term, length, i, -1);
+                n++;
+            }
+        }
+        if (maxDistance >= 2) {
+            for (int i = 0; i < length; i++) {
+                for (int j = i + 1; j < length; j++) {
+                    if (n < hashes.length)
+                        hashes[n] = hash(term, length, i, j);
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    /** FNV-1a over the first <code>length</code> chars of a term, skipping two positions. */
+    private static int hash(String term, int length, int skip1, int skip2) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            if (i == skip1 || i == skip2)
+                continue;
+            h = (h ^ term.charAt(i)) * 0x01000193;
+        }
+        return h;
+    }
+
+    /**
+     * Returns the terms within an edit distance of a word, in termID order.
+     *
+     * @param maxDistance At most the distance the index was built for
+     */
+    public List<String> getCandidates(String word, int maxDistance) {
+        maxDistance = Math.min(maxDistance, this.maxDistance);
+        int length = Math.min(word.length(), prefixLength);
+        int[] hashes = new int[getDeletions(word, length, maxDistance, new int[0])];
+        getDeletions(word, length, maxDistance, hashes);
+
+        int[] ids = new int[16];
+        int size = 0;
+        for (int h : hashes) {
+            for (int i = lowerBound((long) h << 32); i < entries.length && (int) (entries[i] >> 32) == h; i++) {
+                if (size == ids.length)
+                    ids = Arrays.copyOf(ids, 2 * size);
+                ids[size++] = (int) entries[i];
+            }
+        }
+
+        Arrays.sort(ids, 0, size);
+        List<String> candidates = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (i > 0 && ids[i] == ids[i - 1])
+                continue;
+            String term = kgIndex.getTermByID(ids[i]);
+            if (SpellChecker.editDistance(word, term, maxDistance) <= maxDistance)
+                candidates.add(term);
+        }
+        return candidates;
+    }
+
+    /** Returns the first entry not below a key. */
+    private int lowerBound(long key) {
+        int lo = 0;
+        int hi = entries.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (entries[mid] < key)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Writes the index to the given directory, next to its k-gram index.
+     */
+    public void write(String dir) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dir, FNAME))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(maxDistance);
+            out.writeInt(prefixLength);
+            out.writeInt(kgIndex.getTermCount());
+            out.writeInt(entries.length);
+            for (long entry : entries) {
+                out.writeLong(entry);
+            }
+        }
+    }
+
+    /**
+     * Reads the deletion index written to the given directory for a k-gram
+     * index.
+     *
+     * @throws IOException If there is no such index, or it was built for
+     *                     other parameters or another vocabulary
+     */
+    public static DeletionIndex read(String dir, KGramIndex kgIndex, int maxDistance, int prefixLength) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(new File(dir, FNAME).toPath())) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("The deletion index is too large to be mapped");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt(0) != MAGIC)
+            throw new IOException(FNAME + " is not a deletion index");
+        if (buffer.getInt(4) != maxDistance || buffer.getInt(8) != prefixLength)
+            throw new IOException(FNAME + " was built for another edit distance or prefix length");
+        if (buffer.getInt(12) != kgIndex.getTermCount())
+            throw new IOException(FNAME + " was built for another vocabulary");
+
+        long[] entries = new long[buffer.getInt(16)];
+        buffer.position(20);
+        buffer.asLongBuffer().get(entries);
+        return new DeletionIndex(entries, kgIndex, maxDistance, prefixLength);
+    }
+
+    /** Returns the number of stored deletions. */
+    public int size() {
+        return entries.length;
+    }
+
+    /** Returns the bytes used by the index. */
+    public long getBytes() {
+        return 8L * entries.length;
+    }
+
+    /**
+     * Builds the k-gram and deletion indexes of the terms in a file, and
+     * compares how long finding the spelling candidates of misspelt terms
+     * takes with either.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java ir.DeletionIndex <file> <patterns file>");
+            System.exit(1);
+        }
+
+        KGramIndex kgIndex = new KGramIndex(2);
+        Reader reader = new InputStreamReader(new FileInputStream(new File(args[0])), StandardCharsets.UTF_8);
+        Tokenizer tok = new Tokenizer(reader, true, false, true, args[1]);
+        while (tok.hasMoreTokens()) {
+            kgIndex.insert(tok.nextToken());
+        }
+
+        long startTime = System.nanoTime();
+        DeletionIndex deletions = build(kgIndex, 2, PREFIX_LENGTH);
+        System.err.printf("Built %d deletions of %d terms in %.1f ms, %d bytes (k-gram index: %d bytes)%n",
+                deletions.size(), kgIndex.getTermCount(), (System.nanoTime() - startTime) / 1e6,
+                deletions.getBytes(), kgIndex.getBytes());
+
+        /** Misspell random terms by one deletion, insertion or transposition */
+        Random random = new Random(2476);
+        String[] words = new String[1000];
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder sb = new StringBuilder(kgIndex.getTermByID(random.nextInt(kgIndex.getTermCount())));
+            int p = random.nextInt(sb.length());
+            switch (random.nextInt(3)) {
+            case 0:
+                if (sb.length() > 1)
+                    sb.deleteCharAt(p);
+                break;
+            case 1:
+                sb.insert(p, (char) ('a' + random.nextInt(26)));
+                break;
+            default:
+                if (p + 1 < sb.length()) {
+                    char c = sb.charAt(p);
+                    sb.setCharAt(p, sb.charAt(p + 1));
+                    sb.setCharAt(p + 1, c);
+                }
+            }
+            words[i] = sb.toString();
+        }
+
+        SpellChecker speller = new SpellChecker(null, kgIndex);
+        for (int pass = 0; pass < 5; pass++) {
+            speller.deletions = null;
+            long[] jaccard = time(speller, words);
+            speller.deletions = deletions;
+            long[] deleted = time(speller, words);
+            if (pass == 4) {
+                System.err.printf("k-gram candidates:   p50 %.1f us, p99 %.1f us%n", jaccard[words.length / 2] / 1e3,
+                        jaccard[words.length * 99 / 100] / 1e3);
+                System.err.printf("deletion candidates: p50 %.1f us, p99 %.1f us%n", deleted[words.length / 2] / 1e3,
+                        deleted[words.length * 99 / 100] / 1e3);
+            }
+        }
+    }
+
+    /** Returns the sorted times of finding the candidates of every word, in nanoseconds. */
+    private static long[] time(SpellChecker speller, String[] words) {
+        long[] nanos = new long[words.length];
+        for (int i = 0; i < words.length; i++) {
+            long start = System.nanoTime();
+            speller.getCandidates(words[i]);
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        return nanos;
+    }
+}
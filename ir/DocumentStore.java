@@ -0,0 +1,393 @@
+package ir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The texts of the indexed documents, so that results can be displayed
+ * without going back to the corpus.
+ *
+ * Texts are appended to a block until it holds <code>BLOCK_SIZE</code>
+ * bytes, and every full block is Deflate-compressed. An offset table gives
+ * the block, offset and length of every docID, so a document is found
+ * with one lookup and the decompression of one block. The most recently
+ * used blocks are kept decompressed.
+ */
+public class DocumentStore {
+
+    /** The document store file name */
+    public static final String FNAME = "docStore";
+
+    /** Uncompressed size of a block, in bytes */
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    /** Number of decompressed blocks to keep */
+    private static final int CACHED_BLOCKS = 8;
+
+    /** Number of tokens in a snippet */
+    public static final int SNIPPET_LENGTH = 30;
+
+    /** The file the cached patterns were read from, and the patterns */
+    private String patternsFile = null;
+    private ArrayList<Pattern> patterns = null;
+
+    /** The compressed blocks */
+    private final ArrayList<byte[]> blocks = new ArrayList<>();
+
+    /** The block being filled, not yet compressed */
+    private ByteArrayOutputStream openBlock = new ByteArrayOutputStream(BLOCK_SIZE);
+
+    /** Block, offset in the block and length of every document, by docID */
+    private int[] docBlocks = new int[1024];
+    private int[] docOffsets = new int[1024];
+    private int[] docLengths = new int[1024];
+
+    /** Recently used decompressed blocks */
+    private final LinkedHashMap<Integer, byte[]> cache = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+
+    public DocumentStore() {
+        Arrays.fill(docBlocks, -1);
+    }
+
+    /**
+     * Stores the text of a document.
+     */
+    public synchronized void put(int docID, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+        if (docID >= docBlocks.length) {
+            int length = Math.max(2 * docBlocks.length, docID + 1);
+            int oldLength = docBlocks.length;
+            docBlocks = Arrays.copyOf(docBlocks, length);
+            Arrays.fill(docBlocks, oldLength, length, -1);
+            docOffsets = Arrays.copyOf(docOffsets, length);
+            docLengths = Arrays.copyOf(docLengths, length);
+        }
+
+        docBlocks[docID] = blocks.size();
+        docOffsets[docID] = openBlock.size();
+        docLengths[docID] = bytes.length;
+        openBlock.write(bytes, 0, bytes.length);
+
+        if (openBlock.size() >= BLOCK_SIZE)
+            closeBlock();
+    }
+
+    /** Compresses the open block and starts a new one. */
+    private void closeBlock() {
+        if (openBlock.size() == 0)
+            return;
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(openBlock.toByteArray());
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(openBlock.size() / 2);
+        byte[] buf = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            compressed.write(buf, 0, n);
+        }
+        deflater.end();
+
+        blocks.add(compressed.toByteArray());
+        openBlock = new ByteArrayOutputStream(BLOCK_SIZE);
+    }
+
+    /**
+     * Returns the text of a document, or null if it is not stored.
+     */
+    public synchronized String get(int docID) {
+        if (docID < 0 || docID >= docBlocks.length || docBlocks[docID] == -1)
+            return null;
+
+        byte[] block;
+        if (docBlocks[docID] == blocks.size()) {
+            block = openBlock.toByteArray();
+        } else {
+            try {
+                block = getBlock(docBlocks[docID]);
+            } catch (DataFormatException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        return new String(block, docOffsets[docID], docLengths[docID], StandardCharsets.UTF_8);
+    }
+
+    /** Returns a decompressed block, from the cache if possible. */
+    private byte[] getBlock(int i) throws DataFormatException {
+        byte[] block = cache.get(i);
+        if (block != null)
+            return block;
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(blocks.get(i));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(BLOCK_SIZE);
+        byte[] buf = new byte[8192];
+        while (!inflater.finished()) {
+            int n = inflater.inflate(buf);
+            if (n == 0 && inflater.needsInput())
+                throw new DataFormatException("Truncated block " + i);
+            out.write(buf, 0, n);
+        }
+        inflater.end();
+
+        block = out.toByteArray();
+        cache.put(i, block);
+        return block;
+    }
+
+    /**
+     * Returns a snippet of a document around the query terms, as HTML with
+     * the query terms in bold.
+     *
+     * The token positions of the query terms are taken from the index, and
+     * the snippet is the window of <code>SNIPPET_LENGTH</code> tokens that
+     * contains most of them. Only the stored text up to the end of that
+     * window is tokenized, and the window is cut from the stored text.
+     *
+     * @param docID        The document
+     * @param terms        The query terms
+     * @param index        The index with the positions of the terms
+     * @param patternsFile The patterns the document was tokenized with
+     * @return The snippet, or null if the document is not stored
+     */
+    public String getSnippet(int docID, Collection<String> terms, Index index, String patternsFile) {
+        String text = get(docID);
+        if (text == null)
+            return null;
+
+        /** Collect the positions of all query terms in the document */
+        ArrayList<Integer> positions = new ArrayList<>();
+        for (String term : terms) {
+            PostingsList pl = term.contains("*") ? null : index.getPostings(term);
+            if (pl == null)
+                continue;
+            int lo = 0;
+            int hi = pl.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (pl.get(mid).docID < docID)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            if (lo < pl.size() && pl.get(lo).docID == docID)
+                positions.addAll(pl.get(lo).getPositionList());
+        }
+        positions.sort(null);
+
+        /** Find the window with the most query term positions */
+        int start = 0;
+        int best = 0;
+        for (int i = 0, j = 0; i < positions.size(); i++) {
+            while (positions.get(i) - positions.get(j) >= SNIPPET_LENGTH)
+                j++;
+            if (i - j + 1 > best) {
+                best = i - j + 1;
+                start = positions.get(j);
+            }
+        }
+        /** Show a little context before the first match */
+        start = Math.max(0, start - SNIPPET_LENGTH / 6);
+        int end = start + SNIPPET_LENGTH;
+
+        /**
+         * The tokens are lowercased and split at punctuation, so each one is
+         * found again in the stored text and the snippet is cut from there
+         */
+        HashSet<String> highlighted = new HashSet<>(terms);
+        StringBuilder sb = new StringBuilder();
+        if (start > 0)
+            sb.append("... ");
+        try {
+            Tokenizer tok = new Tokenizer(new StringReader(text), true, false, true, getPatterns(patternsFile));
+            int offset = 0;
+            int from = 0;
+            int last = -1;
+            while (offset < end && tok.hasMoreTokens()) {
+                String token = tok.nextToken();
+                int at = indexOfToken(text, token, from);
+                if (at < 0)
+                    break;
+                if (offset++ >= start) {
+                    if (last < 0)
+                        last = extend(text, at, -1);
+                    sb.append(escape(text.substring(last, at).replaceAll("\\s+", " ")));
+                    String original = escape(text.substring(at, at + token.length()));
+                    if (highlighted.contains(token))
+                        sb.append("<b>").append(original).append("</b>");
+                    else
+                        sb.append(original);
+                    last = at + token.length();
+                }
+                from = at + token.length();
+            }
+            /**
+             * Keep the punctuation attached to the last token, or the rest of
+             * the text if the window reaches its end
+             */
+            boolean more = tok.hasMoreTokens();
+            if (last >= 0)
+                sb.append(escape(text.substring(last, more ? extend(text, last, 1) : text.length()).replaceAll("\\s+", " ")));
+            if (more)
+                sb.append(" ...");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return sb.toString().trim();
+    }
+
+    /**
+     * Returns the compiled patterns of a patterns file, reading it only the
+     * first time it is asked for.
+     */
+    private synchronized ArrayList<Pattern> getPatterns(String file) {
+        if (file == null)
+            return null;
+        if (!file.equals(patternsFile)) {
+            patterns = Tokenizer.readPatterns(file);
+            patternsFile = file;
+        }
+        return patterns;
+    }
+
+    /**
+     * Returns where a token occurs in a text from a given offset on, ignoring
+     * case, or -1 if it does not.
+     */
+    private static int indexOfToken(String text, String token, int from) {
+        for (int i = from; i + token.length() <= text.length(); i++) {
+            if (text.regionMatches(true, i, token, 0, token.length()))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Moves from an offset in a text over the punctuation next to it, towards
+     * the start of the text if <code>direction</code> is negative and
+     * towards the end otherwise, and returns where the punctuation ends.
+     */
+    private static int extend(String text, int i, int direction) {
+        if (direction < 0) {
+            while (i > 0 && isPunctuation(text.charAt(i - 1)))
+                i--;
+        } else {
+            while (i < text.length() && isPunctuation(text.charAt(i)))
+                i++;
+        }
+        return i;
+    }
+
+    private static boolean isPunctuation(char c) {
+        return !Character.isLetterOrDigit(c) && !Character.isWhitespace(c);
+    }
+
+    /** Escapes the characters of a text that HTML would interpret. */
+    static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /** Returns the number of bytes used by the compressed blocks. */
+    public synchronized long getCompressedBytes() {
+        long bytes = openBlock.size();
+        for (byte[] block : blocks) {
+            bytes += block.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the document store to the given directory.
+     */
+    public synchronized void write(String dir) throws IOException {
+        closeBlock();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dir, FNAME))))) {
+            out.writeInt(blocks.size());
+            for (byte[] block : blocks) {
+                out.writeInt(block.length);
+                out.write(block);
+            }
+
+            int stored = 0;
+            for (int block : docBlocks) {
+                if (block != -1)
+                    stored++;
+            }
+            out.writeInt(stored);
+            for (int docID = 0; docID < docBlocks.length; docID++) {
+                if (docBlocks[docID] == -1)
+                    continue;
+                out.writeInt(docID);
+                out.writeInt(docBlocks[docID]);
+                out.writeInt(docOffsets[docID]);
+                out.writeInt(docLengths[docID]);
+            }
+        }
+    }
+
+    /**
+     * Reads the document store from the given directory, replacing its
+     * contents.
+     */
+    public synchronized void read(String dir) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(dir, FNAME))))) {
+            ArrayList<byte[]> readBlocks = new ArrayList<>();
+            int numberOfBlocks = in.readInt();
+            for (int i = 0; i < numberOfBlocks; i++) {
+                byte[] block = new byte[in.readInt()];
+                in.readFully(block);
+                readBlocks.add(block);
+            }
+
+            int stored = in.readInt();
+            int[][] table = new int[stored][];
+            int maxDocID = -1;
+            for (int i = 0; i < stored; i++) {
+                table[i] = new int[] { in.readInt(), in.readInt(), in.readInt(), in.readInt() };
+                maxDocID = Math.max(maxDocID, table[i][0]);
+            }
+
+            blocks.clear();
+            blocks.addAll(readBlocks);
+            openBlock = new ByteArrayOutputStream(BLOCK_SIZE);
+            cache.clear();
+            docBlocks = new int[Math.max(1024, maxDocID + 1)];
+            Arrays.fill(docBlocks, -1);
+            docOffsets = new int[docBlocks.length];
+            docLengths = new int[docBlocks.length];
+            for (int[] entry : table) {
+                docBlocks[entry[0]] = entry[1];
+                docOffsets[entry[0]] = entry[2];
+                docLengths[entry[0]] = entry[3];
+            }
+        }
+    }
+}
@@ -8,7 +8,9 @@
 package ir;
 
 import java.util.ArrayList;
+import java.util.Objects;
 import java.io.File;
+import java.io.IOException;
 
 /**
  *  This is the main class for the search engine.
@@ -26,21 +28,24 @@ public class Engine {
     /** K-gram index */
     KGramIndex kgIndex = new KGramIndex(2);
 
+    /** Bigram statistics, or null if they are not collected */
+    BigramStatistics bigrams;
+
     /** The searcher used to search the index. */
     Searcher searcher;
 
     /** Spell checker */
     SpellChecker speller;
 
+    /** Query completion, or null until it is built or if it is disabled */
+    volatile Autocompleter autocompleter;
+
     /** The engine GUI. */
     SearchGUI gui;
 
     /** Directories that should be indexed. */
     ArrayList<String> dirNames = new ArrayList<String>();
 
-    /** Lock to prevent simultaneous access to the index. */
-    Object indexLock = new Object();
-
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file = null;
 
@@ -53,6 +58,42 @@ public class Engine {
     /** For persistent indexes, we might not need to do any indexing. */
     boolean is_indexing = true;
 
+    /** Whether docIDs should be assigned in descending PageRank order. */
+    boolean order_by_pagerank = false;
+
+    /** Number of postings above which a ranked query is scored in parallel. */
+    long parallel_threshold = Searcher.PARALLEL_THRESHOLD;
+
+    /** Whether tf-idf queries are scored a segment at a time over impact-ordered postings. */
+    boolean score_at_a_time = false;
+
+    /** Maximum number of postings a score-at-a-time query may process. */
+    long postings_budget = Long.MAX_VALUE;
+
+    /** Whether ranked queries are first scored against the champion lists. */
+    boolean use_champion_lists = false;
+
+    /** Number of postings per criterion in the champion lists that are built. */
+    int champion_list_size = ChampionLists.DEFAULT_R;
+
+    /** Whether wildcards are expanded through a permuterm index instead of the k-gram index. */
+    boolean use_permuterm = false;
+
+    /** Whether wildcards and spelling candidates are found by walking a term dictionary with automata. */
+    boolean use_term_dictionary = false;
+
+    /** Whether spelling candidates are looked up among precomputed deletions of the vocabulary. */
+    boolean use_deletions = false;
+
+    /** Whether queries are completed while they are typed. */
+    boolean use_autocomplete = false;
+
+    /** Megabytes of bigram statistics for scoring multi-word spelling corrections, or 0 for none. */
+    int bigram_megabytes = 0;
+
+    /** Seconds between dumps of the search metrics, or -1 if metrics are disabled. */
+    int metrics_period = -1;
+
 
     /* ----------------------------------------------- */
 
@@ -63,32 +104,113 @@ public class Engine {
      */
     public Engine( String[] args ) {
         decodeArgs( args );
+        /* A persistent index that is not rebuilt brings its k-gram index along */
+        if ( !is_indexing && index instanceof PersistentHashedIndex ) {
+            try {
+                kgIndex.read( PersistentHashedIndex.INDEXDIR );
+            } catch ( IOException e ) {
+                System.err.println( "[INFO] No k-gram index on disk, wildcards and spelling correction are unavailable" );
+            }
+        }
+        if ( bigram_megabytes > 0 ) {
+            bigrams = new BigramStatistics( bigram_megabytes * 1024L * 1024L );
+            if ( !is_indexing && index instanceof PersistentHashedIndex ) {
+                try {
+                    bigrams.read( PersistentHashedIndex.INDEXDIR );
+                } catch ( IOException e ) {
+                    System.err.println( "[INFO] No bigram statistics on disk, spelling corrections are not scored by them" );
+                    bigrams = null;
+                }
+            }
+        }
+        Index.championLists.r = champion_list_size;
         indexer = new Indexer( index, kgIndex, patterns_file );
+        indexer.bigrams = bigrams;
         searcher = new Searcher( index, kgIndex );
+        searcher.parallelThreshold = parallel_threshold;
+        searcher.scoreAtATime = score_at_a_time;
+        searcher.postingsBudget = postings_budget;
+        searcher.useChampionLists = use_champion_lists;
+        if ( metrics_period >= 0 ) {
+            Metrics.enable();
+            /* The cache statistics are read when the metrics are dumped, never while searching */
+            Metrics.addReport( () -> Objects.toString( searcher.cache, null ));
+            Metrics.addReport( () -> Objects.toString( searcher.expansions, null ));
+            Metrics.startDump( metrics_period );
+        }
         speller = new SpellChecker(index, kgIndex);
+        speller.bigrams = bigrams;
+        speller.expansions = searcher.expansions;
         gui = new SearchGUI( this );
         gui.init();
         /* 
          *   Calls the indexer to index the chosen directory structure.
-         *   Access to the index is synchronized since we don't want to 
-         *   search at the same time we're indexing new files (this might 
-         *   corrupt the index).
+         *   Searches are not blocked while indexing; they see the index
+         *   as it was last published, and the new documents become
+         *   visible when cleanup() publishes them.
          */
         if (is_indexing) {
-            synchronized ( indexLock ) {
-                gui.displayInfoText( "Indexing, please wait..." );
-                long startTime = System.currentTimeMillis();
+            gui.displayInfoText( "Indexing, please wait..." );
+            long startTime = System.currentTimeMillis();
+            if ( order_by_pagerank ) {
+                ArrayList<File> dirs = new ArrayList<File>();
+                for ( String dirName : dirNames ) {
+                    dirs.add( new File( dirName ));
+                }
+                indexer.processFilesByPagerank( dirs );
+            } else {
                 for ( int i=0; i<dirNames.size(); i++ ) {
                     File dokDir = new File( dirNames.get( i ));
                     indexer.processFiles( dokDir, is_indexing );
                 }
-                long elapsedTime = System.currentTimeMillis() - startTime;
-                gui.displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
-                index.cleanup();
             }
+            index.cleanup();
+            if ( index instanceof PersistentHashedIndex ) {
+                try {
+                    kgIndex.write( PersistentHashedIndex.INDEXDIR );
+                    if ( bigrams != null )
+                        bigrams.write( PersistentHashedIndex.INDEXDIR );
+                } catch ( IOException e ) {
+                    e.printStackTrace();
+                }
+            }
+            long elapsedTime = System.currentTimeMillis() - startTime;
+            gui.displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
         } else {
             gui.displayInfoText( "Index is loaded from disk" );
         }
+        if ( use_permuterm ) {
+            searcher.wildcardIndex = PermutermIndex.build( kgIndex );
+        }
+        if ( use_term_dictionary ) {
+            TermDictionary dictionary = TermDictionary.build( kgIndex );
+            searcher.wildcardIndex = dictionary;
+            speller.dictionary = dictionary;
+        }
+        if ( use_deletions ) {
+            DeletionIndex deletions = null;
+            if ( !is_indexing && index instanceof PersistentHashedIndex ) {
+                try {
+                    deletions = DeletionIndex.read( PersistentHashedIndex.INDEXDIR, kgIndex, 2, DeletionIndex.PREFIX_LENGTH );
+                } catch ( IOException e ) {
+                    System.err.println( "[INFO] No deletion index on disk for this k-gram index, building it" );
+                }
+            }
+            if ( deletions == null ) {
+                deletions = DeletionIndex.build( kgIndex, 2, DeletionIndex.PREFIX_LENGTH );
+                if ( index instanceof PersistentHashedIndex ) {
+                    try {
+                        deletions.write( PersistentHashedIndex.INDEXDIR );
+                    } catch ( IOException e ) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            speller.deletions = deletions;
+        }
+        if ( use_autocomplete ) {
+            autocompleter = Autocompleter.build( kgIndex );
+        }
     }
 
 
@@ -123,6 +245,52 @@ public class Engine {
             } else if ( "-ni".equals( args[i] )) {
                 i++;
                 is_indexing = false;
+            } else if ( "-pr".equals( args[i] )) {
+                i++;
+                order_by_pagerank = true;
+            } else if ( "-pt".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    parallel_threshold = Long.parseLong( args[i++] );
+                }
+            } else if ( "-saat".equals( args[i] )) {
+                i++;
+                score_at_a_time = true;
+            } else if ( "-cl".equals( args[i] )) {
+                i++;
+                use_champion_lists = true;
+            } else if ( "-cr".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    champion_list_size = Integer.parseInt( args[i++] );
+                }
+            } else if ( "-pb".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    postings_budget = Long.parseLong( args[i++] );
+                }
+            } else if ( "-permuterm".equals( args[i] )) {
+                i++;
+                use_permuterm = true;
+            } else if ( "-termdict".equals( args[i] )) {
+                i++;
+                use_term_dictionary = true;
+            } else if ( "-symspell".equals( args[i] )) {
+                i++;
+                use_deletions = true;
+            } else if ( "-autocomplete".equals( args[i] )) {
+                i++;
+                use_autocomplete = true;
+            } else if ( "-bigrams".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    bigram_megabytes = Integer.parseInt( args[i++] );
+                }
+            } else if ( "-metrics".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    metrics_period = Integer.parseInt( args[i++] );
+                }
             } else {
                 System.err.println( "Unknown option: " + args[i] );
                 break;
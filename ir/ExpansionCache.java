@@ -0,0 +1,219 @@
+package ir;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache of term expansions: the spelling candidates
+ * of a term and the terms matching a wildcard pattern.
+ *
+ * The same misspellings and patterns come back again and again, and
+ * expanding them walks a k-gram index or a dictionary, so the searcher
+ * and the spell checker share one cache. As in the query cache, the
+ * entries are bounded by an estimate of the memory they use, and every
+ * entry remembers the index generation it was computed for and is dropped
+ * once the index has changed.
+ *
+ * The entries are spread over segments by the hash of their keys, each an
+ * LRU map with its own lock and its share of the memory, so that searches
+ * expanding different terms do not wait for each other.
+ */
+public class ExpansionCache {
+
+    /** Default memory budget for all cached expansions, in bytes */
+    public static final long DEFAULT_MAX_BYTES = 8L << 20;
+
+    /** Number of segments, a power of two */
+    private static final int SEGMENTS = 16;
+
+    /** Estimated fixed memory cost of one entry, in bytes */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    /** Estimated fixed memory cost of one term of an expansion, in bytes */
+    private static final int TERM_OVERHEAD = 48;
+
+    /** What was expanded */
+    public enum Kind {
+        /** The spelling candidates of a term */
+        SPELLING,
+        /** The terms matching a wildcard pattern */
+        WILDCARD
+    }
+
+    /**
+     * The terms a key expands to, with a score for each term if the
+     * expansion has scores. An expansion must not be modified.
+     */
+    public static class Expansion {
+        public final String[] terms;
+        public final double[] scores;
+        final int generation;
+        final long bytes;
+
+        Expansion(String[] terms, double[] scores, int generation, long keyBytes) {
+            this.terms = terms;
+            this.scores = scores;
+            this.generation = generation;
+            long termBytes = scores == null ? 0 : 8L * scores.length;
+            for (String term : terms) {
+                termBytes += TERM_OVERHEAD + 2L * term.length();
+            }
+            this.bytes = ENTRY_OVERHEAD + keyBytes + termBytes;
+        }
+    }
+
+    /** One LRU map and its counters; guarded by its own lock */
+    private static class Segment {
+        final LinkedHashMap<String, Expansion> entries = new LinkedHashMap<>(16, 0.75f, true);
+        long usedBytes = 0;
+        final long[] hits = new long[Kind.values().length];
+        final long[] misses = new long[Kind.values().length];
+        long invalidations = 0;
+        long evictions = 0;
+
+        void remove(String key) {
+            Expansion old = entries.remove(key);
+            if (old != null)
+                usedBytes -= old.bytes;
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /** Maximum number of bytes used by the entries of one segment */
+    private final long maxSegmentBytes;
+
+    public ExpansionCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public ExpansionCache(long maxBytes) {
+        this.maxSegmentBytes = maxBytes / SEGMENTS;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    private static String getKey(Kind kind, String key) {
+        return kind.ordinal() + key;
+    }
+
+    private Segment segment(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Returns the cached expansion of a key, or null if the key is not
+     * cached or was expanded for an older index.
+     */
+    public Expansion get(Kind kind, String key) {
+        key = getKey(kind, key);
+        Segment segment = segment(key);
+        Expansion expansion;
+        synchronized (segment) {
+            expansion = segment.entries.get(key);
+            if (expansion != null && expansion.generation != Index.generation.get()) {
+                segment.remove(key);
+                segment.invalidations++;
+                expansion = null;
+            }
+            if (expansion == null)
+                segment.misses[kind.ordinal()]++;
+            else
+                segment.hits[kind.ordinal()]++;
+        }
+        Metrics.count(expansion == null ? Metrics.Counter.EXPANSION_CACHE_MISSES : Metrics.Counter.EXPANSION_CACHE_HITS, 1);
+        return expansion;
+    }
+
+    /**
+     * Caches the expansion of a key.
+     *
+     * @param terms      The terms the key expands to
+     * @param scores     The score of every term, or null
+     * @param generation The index generation the expansion was computed for
+     */
+    public void put(Kind kind, String key, String[] terms, double[] scores, int generation) {
+        if (generation != Index.generation.get())
+            return;
+        key = getKey(kind, key);
+        Expansion expansion = new Expansion(terms, scores, generation, 2L * key.length());
+
+        /* Do not let a single huge expansion flush the whole segment */
+        if (expansion.bytes > maxSegmentBytes / 4)
+            return;
+
+        Segment segment = segment(key);
+        synchronized (segment) {
+            segment.remove(key);
+            segment.entries.put(key, expansion);
+            segment.usedBytes += expansion.bytes;
+            while (segment.usedBytes > maxSegmentBytes) {
+                Map.Entry<String, Expansion> eldest = segment.entries.entrySet().iterator().next();
+                segment.remove(eldest.getKey());
+                segment.evictions++;
+            }
+        }
+    }
+
+    /** Removes all cached expansions. */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.entries.clear();
+                segment.usedBytes = 0;
+            }
+        }
+    }
+
+    public long getHits(Kind kind) {
+        long hits = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                hits += segment.hits[kind.ordinal()];
+            }
+        }
+        return hits;
+    }
+
+    public long getMisses(Kind kind) {
+        long misses = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                misses += segment.misses[kind.ordinal()];
+            }
+        }
+        return misses;
+    }
+
+    public double getHitRate(Kind kind) {
+        long hits = getHits(kind);
+        long misses = getMisses(kind);
+        return hits + misses == 0 ? 0.0 : hits * 1.0 / (hits + misses);
+    }
+
+    @Override
+    public String toString() {
+        int entries = 0;
+        long usedBytes = 0;
+        long invalidations = 0;
+        long evictions = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                entries += segment.entries.size();
+                usedBytes += segment.usedBytes;
+                invalidations += segment.invalidations;
+                evictions += segment.evictions;
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("[EXPANSIONS] %d entries, %.1f kB", entries, usedBytes / 1024.0));
+        for (Kind kind : Kind.values()) {
+            sb.append(String.format(", %s %d hits, %d misses (%.1f%% hit rate)", kind.name().toLowerCase(),
+                    getHits(kind), getMisses(kind), 100 * getHitRate(kind)));
+        }
+        sb.append(String.format(", %d invalidated, %d evicted", invalidations, evictions));
+        return sb.toString();
+    }
+}
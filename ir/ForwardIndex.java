@@ -0,0 +1,213 @@
+package ir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A forward index: the term vector of every document, i.e. which terms it
+ * contains and how often.
+ *
+ * Terms are numbered in the order they are first seen. The vector of a
+ * document is stored as its termIDs in increasing order, each followed by
+ * its term frequency, with the termIDs delta-encoded and everything written
+ * as variable-length integers. Most documents therefore take two or three
+ * bytes per distinct term.
+ */
+public class ForwardIndex {
+
+    /** The forward index file name */
+    public static final String FNAME = "forwardIndex";
+
+    /** Term by termID */
+    private final ArrayList<String> terms = new ArrayList<>();
+
+    /** TermID by term */
+    private final ConcurrentHashMap<String, Integer> termIDs = new ConcurrentHashMap<>();
+
+    /** Encoded term vector by docID */
+    private final ConcurrentHashMap<Integer, byte[]> vectors = new ConcurrentHashMap<>();
+
+    /**
+     * The decoded term vector of a document.
+     */
+    public static class TermVector {
+        /** TermIDs in increasing order */
+        public final int[] termIDs;
+
+        /** Frequency of every term */
+        public final int[] tfs;
+
+        TermVector(int[] termIDs, int[] tfs) {
+            this.termIDs = termIDs;
+            this.tfs = tfs;
+        }
+
+        public int size() {
+            return termIDs.length;
+        }
+    }
+
+    /**
+     * Stores the term vector of a document.
+     *
+     * @param docID      The document
+     * @param termCounts The frequency of every term in the document
+     */
+    public void put(int docID, Map<String, Integer> termCounts) {
+        long[] pairs = new long[termCounts.size()];
+        int i = 0;
+        for (Map.Entry<String, Integer> entry : termCounts.entrySet()) {
+            pairs[i++] = ((long) getTermID(entry.getKey()) << 32) | entry.getValue();
+        }
+        Arrays.sort(pairs);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(3 * pairs.length + 5);
+        writeVarInt(out, pairs.length);
+        int previous = 0;
+        for (long pair : pairs) {
+            int termID = (int) (pair >>> 32);
+            writeVarInt(out, termID - previous);
+            writeVarInt(out, (int) pair);
+            previous = termID;
+        }
+        vectors.put(docID, out.toByteArray());
+    }
+
+    /**
+     * Returns the term vector of a document, or null if it is not in the
+     * forward index.
+     */
+    public TermVector get(int docID) {
+        byte[] encoded = vectors.get(docID);
+        if (encoded == null)
+            return null;
+
+        int[] pos = { 0 };
+        int size = readVarInt(encoded, pos);
+        int[] ids = new int[size];
+        int[] tfs = new int[size];
+        int termID = 0;
+        for (int i = 0; i < size; i++) {
+            termID += readVarInt(encoded, pos);
+            ids[i] = termID;
+            tfs[i] = readVarInt(encoded, pos);
+        }
+        return new TermVector(ids, tfs);
+    }
+
+    /** Returns the term with the given termID. */
+    public synchronized String getTerm(int termID) {
+        return terms.get(termID);
+    }
+
+    /** Returns the termID of a term, numbering it if it is new. */
+    private int getTermID(String term) {
+        Integer id = termIDs.get(term);
+        if (id != null)
+            return id;
+
+        synchronized (this) {
+            id = termIDs.get(term);
+            if (id == null) {
+                id = terms.size();
+                terms.add(term);
+                termIDs.put(term, id);
+            }
+            return id;
+        }
+    }
+
+    /** Returns the number of bytes used by the encoded term vectors. */
+    public long getBytes() {
+        long bytes = 0;
+        for (byte[] v : vectors.values()) {
+            bytes += v.length;
+        }
+        return bytes;
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(byte[] in, int[] pos) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in[pos[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Writes the forward index to the given directory.
+     */
+    public synchronized void write(String dir) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dir, FNAME))))) {
+            out.writeInt(terms.size());
+            for (String term : terms) {
+                out.writeUTF(term);
+            }
+            out.writeInt(vectors.size());
+            for (Map.Entry<Integer, byte[]> entry : vectors.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Reads the forward index from the given directory, replacing its
+     * contents.
+     */
+    public synchronized void read(String dir) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(dir, FNAME))))) {
+            ArrayList<String> readTerms = new ArrayList<>();
+            HashMap<String, Integer> readIDs = new HashMap<>();
+            int numberOfTerms = in.readInt();
+            for (int i = 0; i < numberOfTerms; i++) {
+                String term = in.readUTF();
+                readTerms.add(term);
+                readIDs.put(term, i);
+            }
+
+            HashMap<Integer, byte[]> readVectors = new HashMap<>();
+            int numberOfDocs = in.readInt();
+            for (int i = 0; i < numberOfDocs; i++) {
+                int docID = in.readInt();
+                byte[] encoded = new byte[in.readInt()];
+                in.readFully(encoded);
+                readVectors.put(docID, encoded);
+            }
+
+            terms.clear();
+            terms.addAll(readTerms);
+            termIDs.clear();
+            termIDs.putAll(readIDs);
+            vectors.clear();
+            vectors.putAll(readVectors);
+        }
+    }
+}
@@ -14,6 +14,7 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -330,18 +331,18 @@ public class HITSRanker {
      * Rank the documents in the subgraph induced by the documents present in the
      * postings list `post`.
      *
-     * @param post The list of postings fulfilling a certain information need
+     * @param post The docIDs fulfilling a certain information need
      *
-     * @return A list of postings ranked according to the hub and authority scores.
+     * @return The documents ranked according to the hub and authority scores.
      */
-    PostingsList rank(PostingsList post) {
+    synchronized ResultList rank(Collection<Integer> post) {
 
         /** Construct root set */
         ArrayList<Integer> rootSet = new ArrayList<>();
         rootSet.ensureCapacity(post.size());
 
-        for (PostingsEntry pe : post) {
-            String docTitle = getFileName(Index.docNames.get(pe.docID));
+        for (int postDocID : post) {
+            String docTitle = getFileName(Index.docNames.get(postDocID));
 
             try {
                 int internalID = titleToId.get(docTitle);
@@ -390,7 +391,7 @@ public class HITSRanker {
         iterate(5);
 
         /** Extract results */
-        PostingsList results = new PostingsList();
+        ResultList results = new ResultList(baseSet.size());
 
         int k = 0;
 
@@ -412,7 +413,7 @@ public class HITSRanker {
 
             try {
                 int docID = Index.docNamesToID.get("davisWiki/" + IDToTitle.get(ID));
-                results.add(new PostingsEntry(docID, score));
+                results.add(docID, score);
             } catch (NullPointerException e) {
                 k++;
             }
@@ -425,7 +426,7 @@ public class HITSRanker {
         System.err.println("Number of lost documents: " + k);
         System.err.println("Results size: " + results.size() + "\n");
 
-        Collections.sort(results);
+        results.sort();
 
         return results;
     }
@@ -10,6 +10,7 @@ package ir;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Map;
 
 import pagerank.PageRankSparse;
 
@@ -20,9 +21,18 @@ import pagerank.PageRankSparse;
 public class HashedIndex implements Index {
 
 
-    /** The index as a hashtable. */
+    /** The index as a hashtable, being built by the indexer. */
     private HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
 
+    /**
+     *  The last published version of the index, read by searches. It is
+     *  never modified after being published.
+     */
+    private volatile HashMap<String,PostingsList> snapshot = new HashMap<String,PostingsList>();
+
+    /** True if <code>index</code> shares its postings lists with <code>snapshot</code>. */
+    private boolean shared = false;
+
     public HashedIndex() {
         try {
             PageRankSparse.readPageranks(pageranks);
@@ -46,6 +56,12 @@ public class HashedIndex implements Index {
         } else {
             PostingsList list = index.get(token);
 
+            /** Copy on write, published lists must not change */
+            if (shared && list == snapshot.get(token)) {
+                list = new PostingsList(list);
+                index.put(token, list);
+            }
+
             /** Add to general index only if not does not exist already */
             if (list.get(list.size()-1).docID != docID)
                 list.add(new PostingsEntry(docID, offset));
@@ -60,13 +76,39 @@ public class HashedIndex implements Index {
      *  if the term is not in the index.
      */
     public PostingsList getPostings( String token ) {
-        return index.get(token);
+        long start = Metrics.start();
+        PostingsList pl = snapshot.get(token);
+        Metrics.stop(Metrics.Stage.LOOKUP, start);
+        return pl;
     }
 
 
     /**
-     *  No need for cleanup in a HashedIndex.
+     *  Publishes the postings inserted so far to searches. Further inserts
+     *  go to a copy, so searches keep seeing a consistent index.
      */
     public void cleanup() {
+        IndexStatistics.Pass pass = statistics.startPass(docNames.size());
+        for (Map.Entry<String,PostingsList> entry : index.entrySet()) {
+            pass.add(entry.getKey(), entry.getValue());
+        }
+        pass.publish();
+
+        ChampionLists.Builder champions = championLists.startBuild();
+        for (Map.Entry<String,PostingsList> entry : index.entrySet()) {
+            champions.add(entry.getKey(), entry.getValue());
+        }
+        champions.publish();
+
+        ImpactLists.Builder impacts = impactLists.startBuild();
+        for (Map.Entry<String,PostingsList> entry : index.entrySet()) {
+            impacts.add(entry.getKey(), entry.getValue());
+        }
+        impacts.publish();
+
+        snapshot = index;
+        index = new HashMap<String,PostingsList>(snapshot);
+        shared = true;
+        generation.incrementAndGet();
     }
 }
@@ -0,0 +1,115 @@
+package ir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The impact-ordered postings of every frequent term, built when the index
+ * is built.
+ *
+ * Score-at-a-time evaluation is meant to skip the low-impact postings of
+ * long lists, which it cannot do if it first has to read a whole list to
+ * order it by impact. The impact order of long lists is therefore computed
+ * together with the statistics and champion lists. Terms with at most
+ * <code>MIN_POSTINGS</code> postings have no impact list here; ordering
+ * them at query time costs about as much as reading them.
+ */
+public class ImpactLists {
+
+    /** Number of postings above which a term gets an impact list */
+    public static final int MIN_POSTINGS = 1000;
+
+    /** The impact lists file name */
+    public static final String FNAME = "impacts";
+
+    private volatile HashMap<String, ImpactPostings> lists = new HashMap<>();
+
+    /**
+     * Builds the impact lists of an index one postings list at a time.
+     * The index statistics must be published first.
+     */
+    public class Builder {
+        private final HashMap<String, ImpactPostings> built = new HashMap<>();
+
+        private Builder() {
+        }
+
+        /** Adds the postings list of a term. */
+        public void add(String term, PostingsList pl) {
+            if (pl == null || pl.size() <= MIN_POSTINGS)
+                return;
+            built.put(term, ImpactPostings.build(pl, Index.statistics.getIdf(term), ImpactLists::getDocNorm));
+        }
+
+        /** Makes the impact lists visible to searches. */
+        public void publish() {
+            lists = built;
+        }
+    }
+
+    /**
+     * Returns the length a document score is divided by, as the searcher
+     * computes it for cosine similarity.
+     */
+    private static double getDocNorm(int docID) {
+        double docNorm = Index.statistics.getDocNorm(docID);
+        if (docNorm > 0.0)
+            return docNorm;
+        Integer length = Index.docLengths.get(docID);
+        return length == null ? 1.0 : length;
+    }
+
+    /** Starts building new impact lists. */
+    public Builder startBuild() {
+        return new Builder();
+    }
+
+    /**
+     * Returns the impact list of a term, or null if the term has none.
+     */
+    public ImpactPostings get(String term) {
+        return lists.get(term);
+    }
+
+    /**
+     * Writes the impact lists to the given directory.
+     */
+    public void write(String dir) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dir, FNAME))))) {
+            for (Map.Entry<String, ImpactPostings> entry : lists.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().write(out);
+            }
+        }
+    }
+
+    /**
+     * Reads the impact lists from the given directory.
+     */
+    public void read(String dir) throws IOException {
+        HashMap<String, ImpactPostings> read = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(dir, FNAME))))) {
+            for (;;) {
+                String term;
+                try {
+                    term = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                read.put(term, ImpactPostings.read(in));
+            }
+        }
+        lists = read;
+    }
+}
@@ -0,0 +1,143 @@
+package ir;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * The postings of a term ordered by impact instead of by docID.
+ *
+ * The impact of a posting is its contribution to the cosine score of its
+ * document, tf * idf / |d|, quantized on a logarithmic scale to an
+ * integer between 1 and <code>LEVELS</code>, since most impacts are far
+ * below 1. Postings with the same impact form a segment, and
+ * segments are stored from the highest impact down, so the postings most
+ * likely to decide the top results come first. Within a segment the
+ * postings are in docID order.
+ */
+public class ImpactPostings {
+
+    /** Number of impact levels */
+    public static final int LEVELS = 255;
+
+    /** Levels cover impacts from 2^-OCTAVES up to 1 on a logarithmic scale */
+    private static final int OCTAVES = 16;
+
+    /** The docIDs, grouped into segments of equal impact */
+    final int[] docIDs;
+
+    /** Start of every segment in <code>docIDs</code>, followed by the end of the last one */
+    final int[] segmentStarts;
+
+    /** Quantized impact of every segment, in decreasing order */
+    final int[] segmentImpacts;
+
+    private ImpactPostings(int[] docIDs, int[] segmentStarts, int[] segmentImpacts) {
+        this.docIDs = docIDs;
+        this.segmentStarts = segmentStarts;
+        this.segmentImpacts = segmentImpacts;
+    }
+
+    /**
+     * Builds the impact-ordered layout of a postings list.
+     *
+     * @param pl      The docID-ordered postings of the term
+     * @param idf     The idf of the term
+     * @param docNorm The length a document score is divided by
+     */
+    public static ImpactPostings build(PostingsList pl, double idf, IntToDoubleFunction docNorm) {
+        int[] impacts = new int[pl.size()];
+        int[] counts = new int[LEVELS + 1];
+        for (int i = 0; i < pl.size(); i++) {
+            PostingsEntry pe = pl.get(i);
+            impacts[i] = quantize(pe.getOccurences() * idf / docNorm.applyAsDouble(pe.docID));
+            counts[impacts[i]]++;
+        }
+
+        int segments = 0;
+        for (int level = 1; level <= LEVELS; level++) {
+            if (counts[level] > 0)
+                segments++;
+        }
+
+        /** Lay out the segments from the highest impact down */
+        int[] segmentStarts = new int[segments + 1];
+        int[] segmentImpacts = new int[segments];
+        int[] next = new int[LEVELS + 1];
+        int s = 0;
+        int start = 0;
+        for (int level = LEVELS; level >= 1; level--) {
+            if (counts[level] == 0)
+                continue;
+            segmentStarts[s] = start;
+            segmentImpacts[s] = level;
+            next[level] = start;
+            start += counts[level];
+            s++;
+        }
+        segmentStarts[segments] = start;
+
+        int[] docIDs = new int[pl.size()];
+        for (int i = 0; i < pl.size(); i++) {
+            docIDs[next[impacts[i]]++] = pl.get(i).docID;
+        }
+
+        return new ImpactPostings(docIDs, segmentStarts, segmentImpacts);
+    }
+
+    /**
+     * Maps an impact to a level between 1 and <code>LEVELS</code>, rounding
+     * up. Cosine impacts are at most 1; larger ones end up in the top level.
+     */
+    static int quantize(double impact) {
+        if (impact <= 0.0)
+            return 1;
+        double octaves = Math.log(impact) / Math.log(2) + OCTAVES;
+        int level = (int) Math.ceil(octaves * LEVELS / OCTAVES);
+        return Math.max(1, Math.min(LEVELS, level));
+    }
+
+    /** Returns the impact that a level stands for, the top of its range. */
+    static double dequantize(int level) {
+        return Math.pow(2, level * (double) OCTAVES / LEVELS - OCTAVES);
+    }
+
+    /** Writes the postings as their docIDs and segments. */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(docIDs.length);
+        for (int docID : docIDs) {
+            out.writeInt(docID);
+        }
+        out.writeInt(segmentImpacts.length);
+        for (int s = 0; s < segmentImpacts.length; s++) {
+            out.writeInt(segmentStarts[s]);
+            out.writeByte(segmentImpacts[s]);
+        }
+    }
+
+    /** Reads postings written by <code>write</code>. */
+    static ImpactPostings read(DataInputStream in) throws IOException {
+        int[] docIDs = new int[in.readInt()];
+        for (int i = 0; i < docIDs.length; i++) {
+            docIDs[i] = in.readInt();
+        }
+        int segments = in.readInt();
+        int[] segmentStarts = new int[segments + 1];
+        int[] segmentImpacts = new int[segments];
+        for (int s = 0; s < segments; s++) {
+            segmentStarts[s] = in.readInt();
+            segmentImpacts[s] = in.readUnsignedByte();
+        }
+        segmentStarts[segments] = docIDs.length;
+        return new ImpactPostings(docIDs, segmentStarts, segmentImpacts);
+    }
+
+    public int size() {
+        return docIDs.length;
+    }
+
+    public int getSegmentCount() {
+        return segmentImpacts.length;
+    }
+}
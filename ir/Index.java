@@ -7,23 +7,47 @@
 
 package ir;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *  Defines some common data structures and methods that all types of
  *  index should implement.
+ *
+ *  Searches may run concurrently with each other and with indexing. The
+ *  shared maps below are therefore concurrent, and implementations only
+ *  make new postings visible to <code>getPostings</code> once they are
+ *  published as a whole in <code>cleanup</code>.
  */
 public interface Index {
 
     /** Mapping from document identifiers to document names. */
-    public HashMap<Integer,String> docNames = new HashMap<Integer,String>();
+    public ConcurrentHashMap<Integer,String> docNames = new ConcurrentHashMap<Integer,String>();
 
-    public HashMap<String, Integer> docNamesToID = new HashMap<>();
+    public ConcurrentHashMap<String, Integer> docNamesToID = new ConcurrentHashMap<>();
     
     /** Mapping from document identifier to document length. */
-    public HashMap<Integer,Integer> docLengths = new HashMap<Integer,Integer>();
+    public ConcurrentHashMap<Integer,Integer> docLengths = new ConcurrentHashMap<Integer,Integer>();
 
-    public HashMap<String, Double> pageranks = new HashMap<>();
+    public ConcurrentHashMap<String, Double> pageranks = new ConcurrentHashMap<>();
+
+    /** PageRank of each document by docID, resolved from <code>pageranks</code>. */
+    public StaticRanks staticRanks = new StaticRanks();
+
+    /** Idf of every term and tf-idf vector length of every document, computed in <code>cleanup</code>. */
+    public IndexStatistics statistics = new IndexStatistics();
+
+    /** First tier of the index: the champion list of every frequent term. */
+    public ChampionLists championLists = new ChampionLists();
+
+    /** Impact-ordered postings of every frequent term, for score-at-a-time queries. */
+    public ImpactLists impactLists = new ImpactLists();
+
+    /** Term vector of every document, for relevance feedback. */
+    public ForwardIndex forwardIndex = new ForwardIndex();
+
+    /** Compressed text of every document, for displaying results. */
+    public DocumentStore documentStore = new DocumentStore();
 
     /** Inserts a token into the index. */
     public void insert( String token, int docID, int offset );
@@ -31,9 +55,12 @@ public interface Index {
     /** Returns the postings for a given term. */
     public PostingsList getPostings( String token );
 
-    public HashMap<String, Integer> tokenIndex = new HashMap<>();
+    public ConcurrentHashMap<String, Integer> tokenIndex = new ConcurrentHashMap<>();
+
+    /** Incremented every time the contents of the index change. */
+    public AtomicInteger generation = new AtomicInteger();
 
-    /** This method is called on exit. */
+    /** This method is called when indexing is done, and publishes the new postings to searches. */
     public void cleanup();
 
 }
@@ -0,0 +1,192 @@
+package ir;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collection statistics computed once when indexing is done: the idf,
+ * document frequency and PageRank mass of every term, and the Euclidean
+ * length of every document's tf-idf vector.
+ *
+ * With these, scoring a posting at query time is a multiply-add, and
+ * cosine normalization is a single array read per document. The document
+ * frequencies and PageRank masses let terms be weighed without reading
+ * their postings.
+ */
+public class IndexStatistics {
+
+    /** The idf file name */
+    public static final String IDF_FNAME = "idf";
+
+    /** The document norms file name */
+    public static final String NORMS_FNAME = "docNorms";
+
+    /** The statistics of one term */
+    private static class TermStatistics {
+        final double idf;
+        final int df;
+
+        /** The sum of the PageRanks of the documents containing the term */
+        final double pagerankMass;
+
+        TermStatistics(double idf, int df, double pagerankMass) {
+            this.idf = idf;
+            this.df = df;
+            this.pagerankMass = pagerankMass;
+        }
+    }
+
+    /**
+     * One consistent set of statistics. It is never modified once published.
+     */
+    private static class Tables {
+        final HashMap<String, TermStatistics> terms;
+        final double[] docNorms;
+
+        Tables(HashMap<String, TermStatistics> terms, double[] docNorms) {
+            this.terms = terms;
+            this.docNorms = docNorms;
+        }
+    }
+
+    private volatile Tables tables = new Tables(new HashMap<>(), new double[0]);
+
+    /**
+     * Accumulates the statistics of an index one postings list at a time.
+     */
+    public class Pass {
+        private final int numberOfDocs;
+        private final HashMap<String, TermStatistics> terms = new HashMap<>();
+        private double[] docNorms = new double[1024];
+
+        private Pass(int numberOfDocs) {
+            this.numberOfDocs = numberOfDocs;
+        }
+
+        /** Adds the postings list of a term. */
+        public void add(String term, PostingsList pl) {
+            if (pl == null || pl.isEmpty())
+                return;
+
+            double termIdf = Math.log(numberOfDocs * 1.0 / pl.size());
+            double pagerankMass = 0.0;
+
+            for (PostingsEntry pe : pl) {
+                if (pe.docID >= docNorms.length)
+                    docNorms = Arrays.copyOf(docNorms, Math.max(2 * docNorms.length, pe.docID + 1));
+                double w = pe.getOccurences() * termIdf;
+                docNorms[pe.docID] += w * w;
+                pagerankMass += Index.staticRanks.get(pe.docID);
+            }
+            terms.put(term, new TermStatistics(termIdf, pl.size(), pagerankMass));
+        }
+
+        /** Makes the accumulated statistics visible to searches. */
+        public void publish() {
+            for (int i = 0; i < docNorms.length; i++) {
+                docNorms[i] = Math.sqrt(docNorms[i]);
+            }
+            tables = new Tables(terms, docNorms);
+        }
+    }
+
+    /**
+     * Starts a new statistics pass over a collection of
+     * <code>numberOfDocs</code> documents.
+     */
+    public Pass startPass(int numberOfDocs) {
+        return new Pass(numberOfDocs);
+    }
+
+    /**
+     * Returns the idf of a term, or NaN if the term is unknown.
+     */
+    public double getIdf(String term) {
+        TermStatistics t = tables.terms.get(term);
+        return t == null ? Double.NaN : t.idf;
+    }
+
+    /**
+     * Returns the number of documents containing a term, or 0 if the term
+     * is unknown.
+     */
+    public int getDf(String term) {
+        TermStatistics t = tables.terms.get(term);
+        return t == null ? 0 : t.df;
+    }
+
+    /**
+     * Returns the sum of the PageRanks of the documents containing a term,
+     * or 0 if the term is unknown.
+     */
+    public double getPagerankMass(String term) {
+        TermStatistics t = tables.terms.get(term);
+        return t == null ? 0.0 : t.pagerankMass;
+    }
+
+    /**
+     * Returns the Euclidean length of a document's tf-idf vector, or 0 if
+     * it is unknown.
+     */
+    public double getDocNorm(int docID) {
+        double[] norms = tables.docNorms;
+        return docID < norms.length ? norms[docID] : 0.0;
+    }
+
+    /**
+     * Writes the statistics to the given directory.
+     */
+    public void write(String dir) throws IOException {
+        Tables t = tables;
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(new File(dir, IDF_FNAME)))) {
+            for (Map.Entry<String, TermStatistics> entry : t.terms.entrySet()) {
+                TermStatistics ts = entry.getValue();
+                bw.write(entry.getKey() + " " + ts.idf + " " + ts.df + " " + ts.pagerankMass + "\n");
+            }
+        }
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(new File(dir, NORMS_FNAME)))) {
+            for (int i = 0; i < t.docNorms.length; i++) {
+                if (t.docNorms[i] != 0.0)
+                    bw.write(i + ";" + t.docNorms[i] + "\n");
+            }
+        }
+    }
+
+    /**
+     * Reads the statistics from the given directory.
+     */
+    public void read(String dir) throws IOException {
+        HashMap<String, TermStatistics> terms = new HashMap<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(new File(dir, IDF_FNAME)))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] data = line.split(" ");
+                /** Files written before the document frequencies and masses only have the idf */
+                int df = data.length > 2 ? Integer.parseInt(data[2]) : 0;
+                double pagerankMass = data.length > 3 ? Double.parseDouble(data[3]) : 0.0;
+                terms.put(data[0], new TermStatistics(Double.parseDouble(data[1]), df, pagerankMass));
+            }
+        }
+
+        double[] docNorms = new double[1024];
+        try (BufferedReader br = new BufferedReader(new FileReader(new File(dir, NORMS_FNAME)))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] data = line.split(";");
+                int docID = Integer.parseInt(data[0]);
+                if (docID >= docNorms.length)
+                    docNorms = Arrays.copyOf(docNorms, Math.max(2 * docNorms.length, docID + 1));
+                docNorms[docID] = Double.parseDouble(data[1]);
+            }
+        }
+
+        tables = new Tables(terms, docNorms);
+    }
+}
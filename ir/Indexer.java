@@ -10,6 +10,7 @@ package ir;
 import java.io.*;
 import java.util.*;
 import java.nio.charset.*;
+import java.nio.file.Files;
 
 
 /**
@@ -23,6 +24,9 @@ public class Indexer {
     /** K-gram index to be built up by this Indexer */
     KGramIndex kgIndex;
 
+    /** Bigram statistics to be collected by this Indexer, if any */
+    BigramStatistics bigrams;
+
     /** The next docID to be generated. */
     private int lastDocID = 0;
 
@@ -65,26 +69,89 @@ public class Indexer {
                         }
                     }
                 } else {
-                    // First register the document and get a docID
-                    int docID = generateDocID();
-                    if ( docID%1000 == 0 ) System.err.println( "[INDEX] Indexed " + docID + " files" );
-                    try {
-                        Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-                        Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
-                        int offset = 0;
-                        while ( tok.hasMoreTokens() ) {
-                            String token = tok.nextToken();
-                            insertIntoIndex( docID, token, offset++ );
-                        }
-                        index.docNames.put( docID, f.getPath() );
-                        Index.docNamesToID.put( f.getPath(), docID );
-                        index.docLengths.put( docID, offset );
-                        reader.close();
-                    } catch ( IOException e ) {
-                        System.err.println( "Warning: IOException during indexing." );
+                    processFile( f );
+                }
+            }
+        }
+    }
+
+
+    /**
+     *  Indexes all files in the given directories in descending PageRank
+     *  order, so that docIDs (and therefore all postings lists) are sorted
+     *  by PageRank. Files without a PageRank are indexed last.
+     */
+    public void processFilesByPagerank( List<File> dirs ) {
+        ArrayList<File> files = new ArrayList<>();
+        for ( File dir : dirs ) {
+            collectFiles( dir, files );
+        }
+
+        // Sort once on precomputed ranks; the sort is stable for equal ranks
+        HashMap<File, Double> ranks = new HashMap<>();
+        for ( File f : files ) {
+            ranks.put( f, StaticRanks.lookup( f.getPath() ));
+        }
+        files.sort( ( a, b ) -> Double.compare( ranks.get(b), ranks.get(a) ));
+
+        for ( File f : files ) {
+            processFile( f );
+        }
+    }
+
+
+    /**
+     *  Adds all readable files below <code>f</code> to <code>files</code>,
+     *  in the same order as <code>processFiles</code> would index them.
+     */
+    private void collectFiles( File f, List<File> files ) {
+        if ( f.canRead() ) {
+            if ( f.isDirectory() ) {
+                String[] fs = f.list();
+                if ( fs != null ) {
+                    for ( int i=0; i<fs.length; i++ ) {
+                        collectFiles( new File( f, fs[i] ), files );
                     }
                 }
+            } else {
+                files.add( f );
+            }
+        }
+    }
+
+
+    /**
+     *  Tokenizes and indexes a single file.
+     */
+    private void processFile( File f ) {
+        // First register the document and get a docID
+        int docID = generateDocID();
+        if ( docID%1000 == 0 ) System.err.println( "[INDEX] Indexed " + docID + " files" );
+        try {
+            String text = new String( Files.readAllBytes( f.toPath() ), StandardCharsets.UTF_8 );
+            Index.documentStore.put( docID, text );
+            Reader reader = new StringReader( text );
+            Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
+            int offset = 0;
+            String previous = null;
+            HashMap<String,Integer> termCounts = new HashMap<String,Integer>();
+            while ( tok.hasMoreTokens() ) {
+                String token = tok.nextToken();
+                insertIntoIndex( docID, token, offset++ );
+                termCounts.merge( token, 1, Integer::sum );
+                if ( bigrams != null && previous != null )
+                    bigrams.add( previous, token );
+                previous = token;
             }
+            Index.forwardIndex.put( docID, termCounts );
+            index.docNames.put( docID, f.getPath() );
+            Index.docNamesToID.put( f.getPath(), docID );
+            Index.staticRanks.put( docID, f.getPath() );
+            index.docLengths.put( docID, offset );
+            Index.generation.incrementAndGet();
+            reader.close();
+        } catch ( IOException e ) {
+            System.err.println( "Warning: IOException during indexing." );
         }
     }
 
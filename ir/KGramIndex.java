@@ -8,28 +8,95 @@
 package ir;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 
-public class KGramIndex {
+/**
+ * A k-gram index over the vocabulary. The indexer inserts terms while
+ * searches look them up, so all access to the maps is synchronized.
+ *
+ * A k-gram is packed into a long, 16 bits per char, so K is at most 4.
+ * Terms are numbered in the order they are inserted, so the termIDs of a
+ * k-gram arrive in increasing order and are appended to a byte array as
+ * delta-encoded variable-length integers. Most postings therefore take a
+ * single byte, and neither inserting a term nor intersecting postings
+ * allocates an object per posting.
+ *
+ * A k-gram index built alongside a persistent index is written next to it
+ * with <code>write</code>. <code>read</code> maps the file into memory
+ * instead of loading it, so it takes constant time, and the mapped index
+ * answers wildcard and spelling lookups directly from the file. A mapped
+ * index is read-only.
+ */
+public class KGramIndex implements WildcardIndex {
+
+    /** The k-gram index file name */
+    public static final String FNAME = "kgrams";
+
+    /** The first int of a k-gram index file */
+    private static final int MAGIC = 0x4B47524D;
+
+    /** Largest K whose k-grams fit in a long */
+    static final int MAX_K = 4;
 
     /**
      * Mapping from term ids to actual term strings
      */
-    HashMap<Integer, String> id2term = new HashMap<Integer, String>();
+    private String[] id2term = new String[1024];
+
+    /**
+     * Number of distinct k-grams of every term, by term id
+     */
+    private int[] kgramCounts = new int[1024];
 
     /**
      * Mapping from term strings to term ids
      */
-    HashMap<String, Integer> term2id = new HashMap<String, Integer>();
+    ConcurrentHashMap<String, Integer> term2id = new ConcurrentHashMap<String, Integer>();
 
     /**
-     * Index from k-grams to list of term ids that contain the k-gram
+     * Open addressing table from packed k-grams to slots; a key of 0 marks
+     * an empty entry, since no term contains the char 0.
      */
-    HashMap<String, List<KGramPostingsEntry>> index = new HashMap<String, List<KGramPostingsEntry>>();
+    private long[] tableKeys = new long[1024];
+    private int[] tableSlots = new int[1024];
 
-    HashMap<String, Integer> numberOfKgrams = new HashMap<>();
+    /** The packed k-gram of every slot */
+    private long[] slotKeys = new long[256];
+
+    /** The encoded termIDs of every slot, in increasing order */
+    private byte[][] postings = new byte[256][];
+
+    /** Number of bytes used in every postings array */
+    private int[] postingsBytes = new int[256];
+
+    /** Number of termIDs of every slot */
+    private int[] postingsCounts = new int[256];
+
+    /** The last termID appended to every slot */
+    private int[] lastIDs = new int[256];
+
+    /** Number of slots in use */
+    private int slots = 0;
+
+    /** The mapped index file, or null while the index is in memory */
+    private MappedByteBuffer mapped;
+
+    /**
+     * Where the regions of the mapped file start: the open addressing table
+     * of (k-gram, slot) pairs, the (offset, count) of every slot's postings,
+     * the offset of every term and the k-gram count of every term, and the
+     * concatenated terms and postings.
+     */
+    private int mappedTable, mappedSlots, mappedTermOffsets, mappedKGramCounts, mappedTerms, mappedPostings;
+
+    /** Number of entries in the mapped table, a power of two */
+    private int mappedTableCapacity;
 
     /**
      * The ID of the last processed term
@@ -43,8 +110,8 @@ public class KGramIndex {
 
     public KGramIndex(int k) {
         K = k;
-        if (k <= 0) {
-            System.err.println("The K-gram index can't be constructed for a negative K value");
+        if (k <= 0 || k > MAX_K) {
+            System.err.println("The K-gram index can't be constructed for K outside 1.." + MAX_K);
             System.exit(1);
         }
     }
@@ -62,83 +129,277 @@ public class KGramIndex {
 
 
     /**
-     * Get intersection of two postings lists
+     * Intersects the sorted termIDs <code>ids[0..n)</code> with the postings
+     * of a slot, in place.
+     *
+     * @return The number of termIDs left in <code>ids</code>
      */
-    private List<KGramPostingsEntry> intersect(List<KGramPostingsEntry> p1, List<KGramPostingsEntry> p2) {
+    private int intersect(int[] ids, int n, int slot) {
+        ByteBuffer encoded = postingsOf(slot);
+        int remaining = countOf(slot);
+        int pos = 0;
+        int termID = 0;
+        int i = 0;
+        int out = 0;
+        while (i < n && remaining > 0) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = encoded.get(pos++);
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            termID += delta;
+            remaining--;
+
+            while (i < n && ids[i] < termID)
+                i++;
+            if (i < n && ids[i] == termID)
+                ids[out++] = ids[i++];
+        }
+        return out;
+    }
 
-        List<KGramPostingsEntry> intersection = new ArrayList<>();
+    /** Decodes the termIDs of a slot. */
+    private int[] decode(int slot) {
+        ByteBuffer encoded = postingsOf(slot);
+        int[] ids = new int[countOf(slot)];
+        int pos = 0;
+        int termID = 0;
+        for (int i = 0; i < ids.length; i++) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = encoded.get(pos++);
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            termID += delta;
+            ids[i] = termID;
+        }
+        return ids;
+    }
 
-        Iterator<KGramPostingsEntry> itp1 = p1.iterator();
-        Iterator<KGramPostingsEntry> itp2 = p2.iterator();
+    /** Returns the encoded postings of a slot, to be read with absolute gets. */
+    private ByteBuffer postingsOf(int slot) {
+        if (mapped == null)
+            return ByteBuffer.wrap(postings[slot], 0, postingsBytes[slot]);
+        int start = mapped.getInt(mappedSlots + 8 * slot);
+        int end = mapped.getInt(mappedSlots + 8 * (slot + 1));
+        return mapped.slice(mappedPostings + start, end - start);
+    }
 
-        KGramPostingsEntry pe1 = itp1.next();
-        KGramPostingsEntry pe2 = itp2.next();
+    /** Returns the number of postings of a slot. */
+    private int countOf(int slot) {
+        return mapped == null ? postingsCounts[slot] : mapped.getInt(mappedSlots + 8 * slot + 4);
+    }
 
-        try {
-            for (; ; ) {
-                if (pe1.tokenID == pe2.tokenID) {
-                    intersection.add(new KGramPostingsEntry(pe1.tokenID));
+    /** Appends a termID, larger than all before it, to the postings of a slot. */
+    private void append(int slot, int termID) {
+        int value = termID - lastIDs[slot];
+        byte[] encoded = postings[slot];
+        int pos = postingsBytes[slot];
+        if (pos + 5 > encoded.length) {
+            encoded = Arrays.copyOf(encoded, Math.max(8, encoded.length * 2));
+            postings[slot] = encoded;
+        }
+        while ((value & ~0x7F) != 0) {
+            encoded[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        encoded[pos++] = (byte) value;
+        postingsBytes[slot] = pos;
+        postingsCounts[slot]++;
+        lastIDs[slot] = termID;
+    }
 
-                    pe1 = itp1.next();
-                    pe2 = itp2.next();
-                } else if (pe1.tokenID < pe2.tokenID) {
-                    pe1 = itp1.next();
-                } else {
-                    pe2 = itp2.next();
-                }
-            }
-        } catch (NoSuchElementException e) {
-            // Do nothing
+    /** Packs the chars <code>s[from..to)</code>, preceded by <code>prefix</code> unless it is 0. */
+    static long pack(char prefix, CharSequence s, int from, int to) {
+        long key = prefix;
+        for (int i = from; i < to; i++) {
+            key = (key << 16) | s.charAt(i);
         }
+        return key;
+    }
 
-        return intersection;
+    /** Packs a k-gram given as a string, with '^' and '$' as ordinary chars. */
+    static long pack(String kgram) {
+        return pack((char) 0, kgram, 0, kgram.length());
     }
 
-    static HashSet<String> getKGrams(String token) {
-        HashSet<String> list = new HashSet<>();
+    /** Unpacks a k-gram into a string. */
+    static String unpack(long key) {
+        StringBuilder sb = new StringBuilder(MAX_K);
+        for (; key != 0; key >>>= 16) {
+            sb.append((char) (key & 0xFFFF));
+        }
+        return sb.reverse().toString();
+    }
 
-        if (token.length() < 1) {
-            return list;
-        } else if (token.length() == K - 2) {
-            list.add(token);
-            return list;
+    /**
+     * Returns the distinct k-grams of a token, packed and sorted. The first
+     * k-gram starts with '^' and the last ends with '$'.
+     */
+    static long[] getKGrams(String token) {
+        int n = token.length();
+        if (n < 1) {
+            return new long[0];
+        } else if (n == K - 2) {
+            return new long[] { pack((char) 0, token, 0, n) };
+        } else if (n < K - 1) {
+            return new long[] { (pack('^', token, 0, n) << 16) | '$' };
+        }
+
+        long[] kgrams = new long[n - K + 3];
+        int m = 0;
+        kgrams[m++] = pack('^', token, 0, K - 1);
+        for (int i = 0; i < n - (K - 1); i++) {
+            kgrams[m++] = pack((char) 0, token, i, i + K);
+        }
+        kgrams[m++] = (pack((char) 0, token, n - K + 1, n) << 16) | '$';
+
+        Arrays.sort(kgrams);
+        int distinct = 0;
+        for (int i = 0; i < m; i++) {
+            if (i == 0 || kgrams[i] != kgrams[i - 1])
+                kgrams[distinct++] = kgrams[i];
+        }
+        return distinct == m ? kgrams : Arrays.copyOf(kgrams, distinct);
+    }
+
+    /** Returns the slot of a k-gram, or -1 if it is not in the index. */
+    private int getSlot(long kgram) {
+        if (mapped != null) {
+            int mask = mappedTableCapacity - 1;
+            for (int i = hash(kgram) & mask; ; i = (i + 1) & mask) {
+                long key = mapped.getLong(mappedTable + 12 * i);
+                if (key == kgram)
+                    return mapped.getInt(mappedTable + 12 * i + 8);
+                if (key == 0)
+                    return -1;
+            }
+        }
+
+        int mask = tableKeys.length - 1;
+        for (int i = hash(kgram) & mask; ; i = (i + 1) & mask) {
+            if (tableKeys[i] == kgram)
+                return tableSlots[i];
+            if (tableKeys[i] == 0)
+                return -1;
         }
+    }
 
-        list.add("^" + token.substring(0, K - 1));
+    /** Returns the slot of a k-gram, adding an empty one if it is not in the index. */
+    private int getOrAddSlot(long kgram) {
+        int mask = tableKeys.length - 1;
+        int i = hash(kgram) & mask;
+        for (; tableKeys[i] != 0; i = (i + 1) & mask) {
+            if (tableKeys[i] == kgram)
+                return tableSlots[i];
+        }
 
-        for (int i = 0; i < token.length() - (K - 1); i++) {
-            list.add(token.substring(i, i + K));
+        if (slots == slotKeys.length) {
+            int capacity = slots * 2;
+            slotKeys = Arrays.copyOf(slotKeys, capacity);
+            postings = Arrays.copyOf(postings, capacity);
+            postingsBytes = Arrays.copyOf(postingsBytes, capacity);
+            postingsCounts = Arrays.copyOf(postingsCounts, capacity);
+            lastIDs = Arrays.copyOf(lastIDs, capacity);
         }
+        int slot = slots++;
+        slotKeys[slot] = kgram;
+        postings[slot] = new byte[8];
+        tableKeys[i] = kgram;
+        tableSlots[i] = slot;
+
+        /** Keep the table at most half full */
+        if (2 * slots > tableKeys.length)
+            rehash(tableKeys.length * 2);
+        return slot;
+    }
 
-        list.add(token.substring(token.length() - K + 1, token.length()) + "$");
+    private void rehash(int capacity) {
+        tableKeys = new long[capacity];
+        tableSlots = new int[capacity];
+        int mask = capacity - 1;
+        for (int slot = 0; slot < slots; slot++) {
+            int i = hash(slotKeys[slot]) & mask;
+            while (tableKeys[i] != 0)
+                i = (i + 1) & mask;
+            tableKeys[i] = slotKeys[slot];
+            tableSlots[i] = slot;
+        }
+    }
 
-        return list;
+    private static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
     }
 
     /**
-     * Gets all the words that have at least one of the kgrams in the input
-     * @param kgrams The kgrams to base the search on
-     * @return A HashSet containing the words that contain any of the kgrams
+     * The terms that share at least one k-gram with a token, with the
+     * number of k-grams they share, in termID order.
      */
-    HashMap<String, MutableInteger> getTokensFromKgrams(Set<String> kgrams) {
-
-        HashMap<String, MutableInteger> tokens = new HashMap<>();
+    static class Overlaps {
+        final int[] termIDs;
+        final int[] counts;
+        final int size;
+
+        Overlaps(int[] termIDs, int[] counts, int size) {
+            this.termIDs = termIDs;
+            this.counts = counts;
+            this.size = size;
+        }
+    }
 
-        for (String kgram: kgrams) {
-            List<KGramPostingsEntry> list = index.get(kgram);
-            if (list == null) continue;
+    /**
+     * Gets all the words that have at least one of the kgrams in the input,
+     * by merging the postings of the k-grams.
+     *
+     * @param kgrams The packed kgrams to base the search on
+     * @return The words that contain any of the kgrams, and how many of them
+     */
+    synchronized Overlaps getTokensFromKgrams(long[] kgrams) {
+        int[][] lists = new int[kgrams.length][];
+        int[] positions = new int[kgrams.length];
+        int total = 0;
+        int n = 0;
+        for (long kgram : kgrams) {
+            int slot = getSlot(kgram);
+            if (slot < 0)
+                continue;
+            lists[n] = decode(slot);
+            total += lists[n].length;
+            n++;
+        }
 
-            for (KGramPostingsEntry pe: list) {
-                String tkn = id2term.get(pe.tokenID);
+        int[] termIDs = new int[total];
+        int[] counts = new int[total];
+        int size = 0;
+        for (;;) {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                if (positions[i] < lists[i].length)
+                    min = Math.min(min, lists[i][positions[i]]);
+            }
+            if (min == Integer.MAX_VALUE)
+                break;
 
-                if (tokens.containsKey(tkn))
-                    tokens.get(tkn).i++;
-                else
-                    tokens.put(tkn, new MutableInteger(1));
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                if (positions[i] < lists[i].length && lists[i][positions[i]] == min) {
+                    positions[i]++;
+                    count++;
+                }
             }
+            termIDs[size] = min;
+            counts[size] = count;
+            size++;
         }
 
-        return tokens;
+        return new Overlaps(termIDs, counts, size);
     }
 
     static Pair<String, String> getWildcardKGrams(String token, HashSet<String> list) {
@@ -171,87 +432,282 @@ public class KGramIndex {
         return new Pair<String, String>(first, second);
     }
 
-    List<String> getWildcards(String token) {
+    @Override
+    public synchronized List<String> getWildcards(String token) {
         List<String> wildcards = new ArrayList<>();
 
         HashSet<String> kgrams = new HashSet<>();
         Pair<String, String> components = getWildcardKGrams(token, kgrams);
 
-        List<KGramPostingsEntry> intersection = null;
+        long[] keys = new long[kgrams.size()];
+        int n = 0;
         for (String kgram : kgrams) {
-
-            try {
-                if (intersection == null) {
-                    intersection = getPostings(kgram);
-                } else {
-                    intersection = intersect(intersection, getPostings(kgram));
-                }
-            } catch (NullPointerException e) { // One kgram is missing
-                intersection = null;
-                break;
-            }
+            keys[n++] = pack(kgram);
         }
-
-        /* No results for this token */
-        if (intersection == null) return wildcards;
+        int[] intersection = intersectAll(keys);
 
         /* Postfilering, check if token if really matches */
-        for (KGramPostingsEntry match : intersection) {
-            String s = id2term.get(match.tokenID);
+        for (int i = 0; i < intersection.length; i++) {
+            String s = getTermByID(intersection[i]);
 
-            if (s.startsWith(components.first) && s.endsWith(components.second))
+            if (s.length() >= components.first.length() + components.second.length()
+                    && s.startsWith(components.first) && s.endsWith(components.second))
                 wildcards.add(s);
         }
 
         return wildcards;
-}
+    }
+
+    /**
+     * Returns the termIDs of the terms that contain all the given k-grams,
+     * in increasing order. The postings are intersected from the shortest up.
+     */
+    private int[] intersectAll(long[] kgrams) {
+        int[] slotsByLength = new int[kgrams.length];
+        for (int i = 0; i < kgrams.length; i++) {
+            slotsByLength[i] = getSlot(kgrams[i]);
+            if (slotsByLength[i] < 0) // One kgram is missing
+                return new int[0];
+        }
+        if (kgrams.length == 0)
+            return new int[0];
+        sortByCount(slotsByLength);
+
+        int[] intersection = decode(slotsByLength[0]);
+        int size = intersection.length;
+        for (int i = 1; i < slotsByLength.length && size > 0; i++) {
+            size = intersect(intersection, size, slotsByLength[i]);
+        }
+        return size == intersection.length ? intersection : Arrays.copyOf(intersection, size);
+    }
+
+    /** Sorts a few slots by their number of postings. */
+    private void sortByCount(int[] slotList) {
+        for (int i = 1; i < slotList.length; i++) {
+            int slot = slotList[i];
+            int j = i - 1;
+            for (; j >= 0 && countOf(slotList[j]) > countOf(slot); j--) {
+                slotList[j + 1] = slotList[j];
+            }
+            slotList[j + 1] = slot;
+        }
+    }
 
     /**
      * Inserts all k-grams from a token into the index.
      */
-    public void insert(String token) {
+    public synchronized void insert(String token) {
+        if (mapped != null)
+            throw new IllegalStateException("The k-gram index is mapped from disk and cannot be changed");
 
         if (term2id.containsKey(token)) return;
 
         int tokenID = generateTermID();
 
         term2id.put(token, tokenID);
-        id2term.put(tokenID, token);
+        if (tokenID == id2term.length) {
+            id2term = Arrays.copyOf(id2term, tokenID * 2);
+            kgramCounts = Arrays.copyOf(kgramCounts, tokenID * 2);
+        }
+        id2term[tokenID] = token;
 
-        HashSet<String> kgrams = getKGrams(token);
+        long[] kgrams = getKGrams(token);
 
-        for (String kgram : kgrams) {
-            if (index.containsKey(kgram)) {
-                index.get(kgram).add(new KGramPostingsEntry(tokenID));
-            } else {
-                ArrayList<KGramPostingsEntry> list = new ArrayList<>();
-                list.add(new KGramPostingsEntry(tokenID));
-                index.put(kgram, list);
-            }
+        for (long kgram : kgrams) {
+            append(getOrAddSlot(kgram), tokenID);
         }
 
-        numberOfKgrams.put(token, kgrams.size());
+        kgramCounts[tokenID] = kgrams.length;
     }
 
     /**
-     * Get postings for the given k-gram
+     * Get postings for the given k-gram, as term ids in increasing order,
+     * or null if no term contains it
      */
-    public List<KGramPostingsEntry> getPostings(String kgram) {
-        return index.get(kgram);
+    public synchronized int[] getPostings(String kgram) {
+        int slot = getSlot(pack(kgram));
+        return slot < 0 ? null : decode(slot);
     }
 
     /**
      * Get id of a term
      */
-    public Integer getIDByTerm(String term) {
-        return term2id.get(term);
+    public synchronized Integer getIDByTerm(String term) {
+        if (mapped == null)
+            return term2id.get(term);
+
+        /** A mapped index has no term dictionary; the term is among the terms with all its k-grams */
+        for (int id : intersectAll(getKGrams(term))) {
+            if (getTermByID(id).equals(term))
+                return id;
+        }
+        return null;
     }
 
     /**
      * Get a term by the given id
      */
-    public String getTermByID(Integer id) {
-        return id2term.get(id);
+    public synchronized String getTermByID(int id) {
+        if (mapped == null)
+            return id2term[id];
+
+        int start = mapped.getInt(mappedTermOffsets + 4 * id);
+        byte[] bytes = new byte[mapped.getInt(mappedTermOffsets + 4 * (id + 1)) - start];
+        mapped.get(mappedTerms + start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the number of distinct k-grams of a term
+     */
+    public synchronized int getKGramCount(int id) {
+        return mapped == null ? kgramCounts[id] : mapped.getInt(mappedKGramCounts + 4 * id);
+    }
+
+    /** Returns the number of terms in the index. */
+    public synchronized int getTermCount() {
+        return lastTermID + 1;
+    }
+
+    /** Returns the number of postings in the index. */
+    public synchronized long getPostingsCount() {
+        long count = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            count += countOf(slot);
+        }
+        return count;
+    }
+
+    /**
+     * Estimates the bytes used by the index, not counting the term strings
+     * themselves, which any term dictionary needs.
+     */
+    public synchronized long getBytes() {
+        if (mapped != null)
+            return mapped.capacity();
+
+        long bytes = 8L * tableKeys.length + 4L * tableSlots.length;
+        bytes += (8L + 4 + 4 + 4 + 4) * slotKeys.length;
+        for (int slot = 0; slot < slots; slot++) {
+            bytes += 16 + postings[slot].length;
+        }
+        bytes += 4L * id2term.length + 4L * kgramCounts.length;
+        /** term2id: a map node and an Integer per term, and the table */
+        bytes += (32L + 16 + 8) * getTermCount();
+        return bytes;
+    }
+
+    /**
+     * Estimates the bytes the same index would use with a HashMap from
+     * k-gram strings to lists of <code>KGramPostingsEntry</code>, and maps
+     * by term for the term strings and k-gram counts, assuming compressed
+     * references.
+     */
+    public synchronized long getListBytes() {
+        /** An entry of 16 bytes and a reference per posting */
+        long bytes = 20L * getPostingsCount();
+        /** A map node, a String of up to 4 chars, an ArrayList and its array header per k-gram */
+        bytes += (32L + 48 + 24 + 16 + 8) * slots;
+        /** Three maps by term: a node, a boxed key or value, and the table each */
+        bytes += 3 * (32L + 16 + 8) * getTermCount();
+        return bytes;
+    }
+
+    /**
+     * Writes the index to the given directory, in the format that
+     * <code>read</code> maps.
+     */
+    public synchronized void write(String dir) throws IOException {
+        if (mapped != null)
+            return;
+
+        int terms = getTermCount();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dir, FNAME))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(K);
+            out.writeInt(terms);
+            out.writeInt(slots);
+            out.writeInt(tableKeys.length);
+
+            for (int i = 0; i < tableKeys.length; i++) {
+                out.writeLong(tableKeys[i]);
+                out.writeInt(tableSlots[i]);
+            }
+
+            int offset = 0;
+            for (int slot = 0; slot < slots; slot++) {
+                out.writeInt(offset);
+                out.writeInt(postingsCounts[slot]);
+                offset += postingsBytes[slot];
+            }
+            out.writeInt(offset);
+            out.writeInt(0);
+
+            byte[][] encodedTerms = new byte[terms][];
+            offset = 0;
+            for (int id = 0; id < terms; id++) {
+                encodedTerms[id] = id2term[id].getBytes(StandardCharsets.UTF_8);
+                out.writeInt(offset);
+                offset += encodedTerms[id].length;
+            }
+            out.writeInt(offset);
+            for (int id = 0; id < terms; id++) {
+                out.writeInt(kgramCounts[id]);
+            }
+
+            for (byte[] term : encodedTerms) {
+                out.write(term);
+            }
+            for (int slot = 0; slot < slots; slot++) {
+                out.write(postings[slot], 0, postingsBytes[slot]);
+            }
+        }
+    }
+
+    /**
+     * Maps the index written to the given directory, replacing the index
+     * in memory. Nothing is read until it is looked up.
+     */
+    public synchronized void read(String dir) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(new File(dir, FNAME).toPath())) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("The k-gram index is too large to be mapped");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt(0) != MAGIC)
+            throw new IOException(FNAME + " is not a k-gram index");
+        int k = buffer.getInt(4);
+        int terms = buffer.getInt(8);
+        int slotCount = buffer.getInt(12);
+        int capacity = buffer.getInt(16);
+
+        mappedTableCapacity = capacity;
+        mappedTable = 20;
+        mappedSlots = mappedTable + 12 * capacity;
+        mappedTermOffsets = mappedSlots + 8 * (slotCount + 1);
+        mappedKGramCounts = mappedTermOffsets + 4 * (terms + 1);
+        mappedTerms = mappedKGramCounts + 4 * terms;
+        mappedPostings = mappedTerms + buffer.getInt(mappedTermOffsets + 4 * terms);
+
+        K = k;
+        slots = slotCount;
+        lastTermID = terms - 1;
+        mapped = buffer;
+
+        /** Let the in-memory index be collected */
+        id2term = null;
+        kgramCounts = null;
+        term2id.clear();
+        tableKeys = null;
+        tableSlots = null;
+        slotKeys = null;
+        postings = null;
+        postingsBytes = null;
+        postingsCounts = null;
+        lastIDs = null;
     }
 
     private static HashMap<String, String> decodeArgs(String[] args) {
@@ -300,38 +756,41 @@ public class KGramIndex {
             kgIndex.insert(token);
         }
 
-//        String tkn = "love";
-//        HashSet<String> kgrams = kgIndex.getKGrams(tkn);
-//
-//        for (String kgram: kgrams) {
-//            System.out.println(kgram);
-//        }
+        System.err.println(String.format("Indexed %d terms, %d k-grams and %d postings in about %d bytes"
+                + " (about %d bytes as lists of postings entries)", kgIndex.getTermCount(), kgIndex.slots,
+                kgIndex.getPostingsCount(), kgIndex.getBytes(), kgIndex.getListBytes()));
 
         String[] kgrams = args.get("kgram").split(" ");
-        List<KGramPostingsEntry> postings = null;
+        int[] postings = null;
+        int size = 0;
         for (String kgram : kgrams) {
             if (kgram.length() != k) {
                 System.err.println("Cannot search k-gram index: " + kgram.length() + "-gram provided instead of " + k + "-gram");
                 System.exit(1);
             }
 
-            if (postings == null) {
-                postings = kgIndex.getPostings(kgram);
+            int slot = kgIndex.getSlot(pack(kgram));
+            if (slot < 0) {
+                postings = null;
+                break;
+            } else if (postings == null) {
+                postings = kgIndex.decode(slot);
+                size = postings.length;
             } else {
-                postings = kgIndex.intersect(postings, kgIndex.getPostings(kgram));
+                size = kgIndex.intersect(postings, size, slot);
             }
         }
         if (postings == null) {
             System.err.println("Found 0 posting(s)");
         } else {
-            int resNum = postings.size();
+            int resNum = size;
             System.err.println("Found " + resNum + " posting(s)");
             if (resNum > 10) {
                 System.err.println("The first 10 of them are:");
                 resNum = 10;
             }
             for (int i = 0; i < resNum; i++) {
-                System.err.println(kgIndex.getTermByID(postings.get(i).tokenID));
+                System.err.println(kgIndex.getTermByID(postings[i]));
             }
         }
     }
@@ -345,12 +804,4 @@ public class KGramIndex {
             this.second = second;
         }
     }
-
-    static class MutableInteger {
-        int i;
-
-        public MutableInteger(int i) {
-            this.i = i;
-        }
-    }
 }
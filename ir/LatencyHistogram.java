@@ -0,0 +1,125 @@
+package ir;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds, with buckets of bounded relative
+ * width in the style of HdrHistogram.
+ *
+ * Every power of two is split into <code>SUB_BUCKETS</code> equal
+ * buckets, so a recorded value is known to within about 3% whether it is a
+ * microsecond or a minute, and the histogram has a fixed size. Recording a
+ * value is a few shifts and an atomic increment, so many threads can record
+ * into the same histogram.
+ */
+public class LatencyHistogram implements Metrics.StageMXBean {
+
+    /** log2 of the number of buckets per power of two */
+    private static final int SUB_BITS = 5;
+
+    /** Number of buckets per power of two */
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /** Values below SUB_BUCKETS get a bucket each; above, every power of two gets SUB_BUCKETS */
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /** Records a latency in nanoseconds. */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    /** Returns the bucket of a value. */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** Returns the middle of the values in a bucket. */
+    static long bucketValue(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BITS);
+        return (SUB_BUCKETS + sub) * width + width / 2;
+    }
+
+    /**
+     * Returns the latency below which <code>p</code> percent of the
+     * recorded latencies are, in nanoseconds.
+     */
+    public long getPercentile(double p) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(p / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(bucketValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        long n = count.get();
+        return n == 0 ? 0.0 : sum.get() / 1e3 / n;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return getPercentile(50) / 1e3;
+    }
+
+    @Override
+    public double getP90Micros() {
+        return getPercentile(90) / 1e3;
+    }
+
+    @Override
+    public double getP99Micros() {
+        return getPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return max.get() / 1e3;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
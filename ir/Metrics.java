@@ -0,0 +1,292 @@
+package ir;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency and work counters for the stages of a search.
+ *
+ * The search code brackets every stage with <code>start</code> and
+ * <code>stop</code>, and the time goes into a latency histogram per stage.
+ * Stages nest: a lookup, read or decode is also part of the stage that
+ * asked for the postings. While metrics are disabled, which is the default,
+ * <code>start</code> returns 0 without reading the clock and
+ * <code>stop</code> and <code>count</code> return at once, so the
+ * instrumentation costs a branch on a volatile flag.
+ *
+ * Once enabled, the histograms and counters are registered as MBeans
+ * under <code>ir:type=Metrics</code>, and can be printed periodically,
+ * together with the reports of other components such as the caches.
+ */
+public final class Metrics {
+
+    /** The stages of a search */
+    public enum Stage {
+        /** A whole search, from the query to the results */
+        SEARCH,
+        /** Finding a term in the dictionary */
+        LOOKUP,
+        /** Reading a postings list from disk */
+        READ,
+        /** Decoding a postings list read from disk */
+        DECODE,
+        /** Intersecting postings, including phrase and boolean queries */
+        INTERSECT,
+        /** Scoring the documents of a ranked query */
+        SCORE,
+        /** Selecting the top results of a ranked query */
+        SORT,
+        /** Finding spelling corrections */
+        SPELLING
+    }
+
+    /** The work done by searches */
+    public enum Counter {
+        POSTINGS_DECODED, BYTES_READ, INDEX_CACHE_HITS, QUERY_CACHE_HITS, QUERY_CACHE_MISSES,
+        EXPANSION_CACHE_HITS, EXPANSION_CACHE_MISSES
+    }
+
+    /**
+     * The latency histogram of a stage as it is shown through JMX.
+     */
+    public interface StageMXBean {
+        long getCount();
+
+        double getMeanMicros();
+
+        double getP50Micros();
+
+        double getP90Micros();
+
+        double getP99Micros();
+
+        double getMaxMicros();
+
+        void reset();
+    }
+
+    /**
+     * The counters as they are shown through JMX.
+     */
+    public interface CountersMXBean {
+        long getPostingsDecoded();
+
+        long getBytesRead();
+
+        long getIndexCacheHits();
+
+        long getQueryCacheHits();
+
+        long getQueryCacheMisses();
+
+        long getExpansionCacheHits();
+
+        long getExpansionCacheMisses();
+
+        void reset();
+    }
+
+    private static volatile boolean enabled = false;
+
+    private static final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+    private static final LongAdder[] counters = new LongAdder[Counter.values().length];
+
+    static {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+    }
+
+    private static boolean registered = false;
+    private static ScheduledExecutorService dumper;
+
+    /** Lines added to every dump, such as the statistics of the caches */
+    private static final CopyOnWriteArrayList<Supplier<String>> reports = new CopyOnWriteArrayList<>();
+
+    private Metrics() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Starts collecting metrics, and registers the MBeans. */
+    public static synchronized void enable() {
+        enabled = true;
+        if (!registered) {
+            register();
+            registered = true;
+        }
+    }
+
+    /** Stops collecting metrics. What was collected is kept. */
+    public static void disable() {
+        enabled = false;
+    }
+
+    /**
+     * Returns the start time of a stage, or 0 if metrics are disabled.
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Records the time since <code>start</code> for a stage. Does nothing
+     * if metrics were disabled when the stage started.
+     */
+    public static void stop(Stage stage, long start) {
+        if (start != 0L)
+            histograms[stage.ordinal()].record(System.nanoTime() - start);
+    }
+
+    /** Adds to a counter. */
+    public static void count(Counter counter, long n) {
+        if (enabled)
+            counters[counter.ordinal()].add(n);
+    }
+
+    public static LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    public static long getCount(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /** Clears all histograms and counters. */
+    public static void reset() {
+        for (LatencyHistogram h : histograms) {
+            h.reset();
+        }
+        for (LongAdder c : counters) {
+            c.reset();
+        }
+    }
+
+    /** Registers a histogram per stage and the counters with the platform MBean server. */
+    private static void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (Stage stage : Stage.values()) {
+                ObjectName name = new ObjectName("ir:type=Metrics,stage=" + stage.name());
+                if (!server.isRegistered(name))
+                    server.registerMBean(histograms[stage.ordinal()], name);
+            }
+            ObjectName name = new ObjectName("ir:type=Metrics,name=Counters");
+            if (!server.isRegistered(name))
+                server.registerMBean(new Counters(), name);
+        } catch (JMException e) {
+            System.err.println("[INFO] Could not register the metrics MBeans: " + e.getMessage());
+        }
+    }
+
+    private static class Counters implements CountersMXBean {
+        @Override
+        public long getPostingsDecoded() {
+            return getCount(Counter.POSTINGS_DECODED);
+        }
+
+        @Override
+        public long getBytesRead() {
+            return getCount(Counter.BYTES_READ);
+        }
+
+        @Override
+        public long getIndexCacheHits() {
+            return getCount(Counter.INDEX_CACHE_HITS);
+        }
+
+        @Override
+        public long getQueryCacheHits() {
+            return getCount(Counter.QUERY_CACHE_HITS);
+        }
+
+        @Override
+        public long getQueryCacheMisses() {
+            return getCount(Counter.QUERY_CACHE_MISSES);
+        }
+
+        @Override
+        public long getExpansionCacheHits() {
+            return getCount(Counter.EXPANSION_CACHE_HITS);
+        }
+
+        @Override
+        public long getExpansionCacheMisses() {
+            return getCount(Counter.EXPANSION_CACHE_MISSES);
+        }
+
+        @Override
+        public void reset() {
+            for (Counter c : Counter.values()) {
+                counters[c.ordinal()].reset();
+            }
+        }
+    }
+
+    /**
+     * Prints the metrics to standard error every <code>seconds</code>
+     * seconds, from a daemon thread.
+     */
+    public static synchronized void startDump(int seconds) {
+        if (dumper != null || seconds <= 0)
+            return;
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> System.err.print(dump()), seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Adds a line to every dump. The line is only made when the metrics are
+     * dumped, so it costs nothing on the search path; a null line is left
+     * out.
+     */
+    public static void addReport(Supplier<String> report) {
+        reports.add(report);
+    }
+
+    /**
+     * Returns the metrics as a table, one line per stage that has run,
+     * followed by the counters and the added reports.
+     */
+    public static String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("[METRICS] %-10s %10s %10s %10s %10s %10s %10s%n",
+                "stage (us)", "count", "mean", "p50", "p90", "p99", "max"));
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram h = histograms[stage.ordinal()];
+            if (h.getCount() == 0)
+                continue;
+            sb.append(String.format("[METRICS] %-10s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", stage.name(),
+                    h.getCount(), h.getMeanMicros(), h.getP50Micros(), h.getP90Micros(), h.getP99Micros(),
+                    h.getMaxMicros()));
+        }
+        sb.append("[METRICS]");
+        for (Counter counter : Counter.values()) {
+            sb.append(' ').append(counter.name().toLowerCase()).append('=').append(getCount(counter));
+        }
+        sb.append(System.lineSeparator());
+        for (Supplier<String> report : reports) {
+            String line = report.get();
+            if (line != null)
+                sb.append(line).append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+}
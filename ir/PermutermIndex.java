@@ -0,0 +1,302 @@
+package ir;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A permuterm index: every rotation of every term followed by an end
+ * marker, in sorted order.
+ *
+ * A pattern is rotated so that its last star comes last. For
+ * <code>X*Y</code> that gives <code>Y$X*</code>, and the terms matching
+ * the pattern are exactly those with a rotation starting with
+ * <code>Y$X</code>, one contiguous range of the sorted rotations found
+ * by binary search. <code>X*</code>, <code>*X</code> and <code>*X*</code>
+ * are special cases, and a pattern without stars is looked up as
+ * <code>$X</code>. A pattern with more stars is looked up by its first
+ * and last segments, or by its longest segment if it starts and ends with
+ * a star, and every term in the range is then checked against the whole
+ * pattern.
+ *
+ * The rotations are not stored as strings. The terms are concatenated,
+ * each followed by the end marker, and a rotation is the termID and the
+ * offset it starts at, packed into a long.
+ */
+public class PermutermIndex implements WildcardIndex {
+
+    /** Ends every term; sorts before any char a term contains */
+    static final char END = '\u0001';
+
+    /** The terms, each followed by END */
+    private final char[] chars;
+
+    /** Start of every term in <code>chars</code>, followed by the end of the last one */
+    private final int[] termStarts;
+
+    /** Every rotation as termID << 32 | offset, in the order of the rotated strings */
+    private final long[] rotations;
+
+    private PermutermIndex(char[] chars, int[] termStarts, long[] rotations) {
+        this.chars = chars;
+        this.termStarts = termStarts;
+        this.rotations = rotations;
+    }
+
+    /**
+     * Builds the permuterm index of the vocabulary of a k-gram index. The
+     * termIDs of both indexes are the same.
+     */
+    public static PermutermIndex build(KGramIndex kgIndex) {
+        int terms = kgIndex.getTermCount();
+        int[] termStarts = new int[terms + 1];
+        StringBuilder sb = new StringBuilder();
+        for (int id = 0; id < terms; id++) {
+            termStarts[id] = sb.length();
+            sb.append(kgIndex.getTermByID(id)).append(END);
+        }
+        termStarts[terms] = sb.length();
+        char[] chars = new char[sb.length()];
+        sb.getChars(0, sb.length(), chars, 0);
+
+        long[] rotations = new long[chars.length];
+        int r = 0;
+        for (int id = 0; id < terms; id++) {
+            for (int offset = 0; offset < termStarts[id + 1] - termStarts[id]; offset++) {
+                rotations[r++] = (long) id << 32 | offset;
+            }
+        }
+
+        PermutermIndex permuterm = new PermutermIndex(chars, termStarts, rotations);
+        permuterm.sort(0, rotations.length, 0);
+        return permuterm;
+    }
+
+    /** Returns char <code>d</code> of a rotation, or -1 past its end. */
+    private int charAt(long rotation, int d) {
+        int id = (int) (rotation >>> 32);
+        int start = termStarts[id];
+        int length = termStarts[id + 1] - start;
+        if (d >= length)
+            return -1;
+        return chars[start + ((int) rotation + d) % length];
+    }
+
+    /**
+     * Sorts <code>rotations[from..to)</code>, whose first <code>d</code>
+     * chars are equal, by three-way radix quicksort.
+     */
+    private void sort(int from, int to, int d) {
+        while (to - from > 1) {
+            int lt = from;
+            int gt = to - 1;
+            int pivot = charAt(rotations[from + (to - from) / 2], d);
+            int i = from;
+            while (i <= gt) {
+                int c = charAt(rotations[i], d);
+                if (c < pivot)
+                    swap(lt++, i++);
+                else if (c > pivot)
+                    swap(i, gt--);
+                else
+                    i++;
+            }
+            sort(from, lt, d);
+            sort(gt + 1, to, d);
+            /** The rotations equal to the pivot share one more char, unless they all ended */
+            if (pivot < 0)
+                return;
+            from = lt;
+            to = gt + 1;
+            d++;
+        }
+    }
+
+    private void swap(int i, int j) {
+        long r = rotations[i];
+        rotations[i] = rotations[j];
+        rotations[j] = r;
+    }
+
+    /**
+     * Compares the start of a rotation with a prefix.
+     *
+     * @return 0 if the rotation starts with the prefix, and otherwise a
+     *         negative or positive number as the rotation sorts before or
+     *         after it
+     */
+    private int compare(long rotation, String prefix) {
+        for (int d = 0; d < prefix.length(); d++) {
+            int c = charAt(rotation, d);
+            if (c != prefix.charAt(d))
+                return c - prefix.charAt(d);
+        }
+        return 0;
+    }
+
+    /** Returns the first rotation that does not sort before the prefix, or after it if <code>after</code>. */
+    private int search(String prefix, boolean after) {
+        int lo = 0;
+        int hi = rotations.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(rotations[mid], prefix);
+            if (cmp < 0 || after && cmp == 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the termIDs of the terms that have a rotation starting with
+     * a prefix, in increasing order and without duplicates.
+     */
+    int[] getTermIDs(String prefix) {
+        int from = search(prefix, false);
+        int to = search(prefix, true);
+        int[] ids = new int[to - from];
+        for (int i = from; i < to; i++) {
+            ids[i - from] = (int) (rotations[i] >>> 32);
+        }
+        Arrays.sort(ids);
+        int distinct = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (i == 0 || ids[i] != ids[i - 1])
+                ids[distinct++] = ids[i];
+        }
+        return Arrays.copyOf(ids, distinct);
+    }
+
+    /**
+     * Returns the terms matching a pattern. As with the k-gram index, a
+     * pattern of nothing but stars matches nothing.
+     */
+    @Override
+    public List<String> getWildcards(String pattern) {
+        List<String> wildcards = new ArrayList<>();
+        String[] segments = pattern.split("\\*", -1);
+
+        String longest = "";
+        for (String segment : segments) {
+            if (segment.length() > longest.length())
+                longest = segment;
+        }
+        if (longest.isEmpty())
+            return wildcards;
+
+        String first = segments[0];
+        String last = segments[segments.length - 1];
+        String prefix;
+        if (segments.length == 1)
+            prefix = END + pattern;
+        else if (first.isEmpty() && last.isEmpty())
+            prefix = longest;
+        else
+            prefix = last + END + first;
+
+        /** Left to check are the segments in the middle, or that a term without stars has nothing after it */
+        boolean verify = segments.length != 2;
+        for (int id : getTermIDs(prefix)) {
+            String term = getTerm(id);
+            if (!verify || matches(pattern, term))
+                wildcards.add(term);
+        }
+        return wildcards;
+    }
+
+    /** Returns the term with the given termID. */
+    String getTerm(int id) {
+        return new String(chars, termStarts[id], termStarts[id + 1] - termStarts[id] - 1);
+    }
+
+    /** Returns the number of rotations. */
+    public int size() {
+        return rotations.length;
+    }
+
+    /** Returns the bytes used by the index. */
+    public long getBytes() {
+        return 2L * chars.length + 4L * termStarts.length + 8L * rotations.length;
+    }
+
+    /**
+     * Checks whether a term matches a pattern in which a star stands for
+     * any sequence of chars.
+     */
+    static boolean matches(String pattern, String term) {
+        int p = 0;
+        int t = 0;
+        int star = -1;
+        int resume = 0;
+        while (t < term.length()) {
+            if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                resume = t;
+            } else if (p < pattern.length() && pattern.charAt(p) == term.charAt(t)) {
+                p++;
+                t++;
+            } else if (star >= 0) {
+                /** Let the last star take one more char */
+                p = star + 1;
+                t = ++resume;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*')
+            p++;
+        return p == pattern.length();
+    }
+
+    /**
+     * Builds the k-gram and permuterm indexes of the terms in a file, and
+     * compares how long they take to expand patterns of different shapes.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java ir.PermutermIndex <file> <patterns file> [<pattern> ...]");
+            System.exit(1);
+        }
+
+        KGramIndex kgIndex = new KGramIndex(2);
+        Reader reader = new InputStreamReader(new FileInputStream(new File(args[0])), StandardCharsets.UTF_8);
+        Tokenizer tok = new Tokenizer(reader, true, false, true, args[1]);
+        while (tok.hasMoreTokens()) {
+            kgIndex.insert(tok.nextToken());
+        }
+
+        long startTime = System.nanoTime();
+        PermutermIndex permuterm = build(kgIndex);
+        System.err.printf("Built %d rotations of %d terms in %.1f ms, %d bytes%n", permuterm.size(),
+                kgIndex.getTermCount(), (System.nanoTime() - startTime) / 1e6, permuterm.getBytes());
+
+        String[] patterns = args.length > 2 ? Arrays.copyOfRange(args, 2, args.length)
+                : new String[] { "a*", "ca*", "*ing", "*tion", "s*s", "re*ion", "*ver*", "a*b*c", "s*e*s" };
+        System.err.printf("%-10s %8s %12s %12s%n", "pattern", "matches", "k-gram (us)", "permuterm (us)");
+        for (String pattern : patterns) {
+            double kgram = time(kgIndex, pattern);
+            double rotated = time(permuterm, pattern);
+            System.err.printf("%-10s %8d %12.1f %12.1f%n", pattern, permuterm.getWildcards(pattern).size(), kgram, rotated);
+        }
+    }
+
+    /** Returns the median time of expanding a pattern, in microseconds. */
+    private static double time(WildcardIndex wildcards, String pattern) {
+        long[] nanos = new long[51];
+        for (int i = 0; i < nanos.length; i++) {
+            long start = System.nanoTime();
+            wildcards.getWildcards(pattern);
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        return nanos[nanos.length / 2] / 1e3;
+    }
+}
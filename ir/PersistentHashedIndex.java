@@ -15,10 +15,15 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.DataFormatException;
 
 import pagerank.PageRankSparse;
@@ -32,7 +37,10 @@ import pagerank.PageRankSparse;
  *
  *   When words are read and indexed, they are first put in an ordinary,
  *   main-memory HashMap. When all words are read, the index is committed
- *   to disk.
+ *   to new files on disk, which are then published to searches at once.
+ *   Searches only ever read from a published snapshot, using positional
+ *   reads, so any number of them can run in parallel with each other and
+ *   with indexing.
  */
 public class PersistentHashedIndex implements Index {
 
@@ -55,17 +63,14 @@ public class PersistentHashedIndex implements Index {
     // public static final long TABLESIZE = 3509s827L;
     public static final long TABLESIZE = 611953L;
 
+    /** Suffix of index files that are written but not yet published */
+    public static final String NEW_SUFFIX = ".new";
+
     /** Byte size of a long */
     protected static final int ENTRY_SIZE = 16;
 
-    protected static final ByteBuffer inBuffer = ByteBuffer.allocate(ENTRY_SIZE);
-    protected static final ByteBuffer outBuffer = ByteBuffer.allocate(ENTRY_SIZE);
-
-    /** The dictionary hash table is stored in this file. */
-    RandomAccessFile dictionaryFile;
-
-    /** The data (the PostingsLists) are stored in this file. */
-    RandomAccessFile dataFile;
+    /** The published index files that searches read from. */
+    volatile Snapshot snapshot;
 
     /** Pointer to the first free memory cell in the data file. */
     long free = 0L;
@@ -74,7 +79,7 @@ public class PersistentHashedIndex implements Index {
 
     // HashMap<Integer, Long> dictionary = new HashMap<Integer, Long>();
 
-    /** The cache as a main-memory hash map. */
+    /** The postings being indexed, as a main-memory hash map. */
     HashMap<String, PostingsList> index = new HashMap<String, PostingsList>();
 
     protected int noUniqueTokens = 0;
@@ -107,6 +112,27 @@ public class PersistentHashedIndex implements Index {
         }
     }
 
+    /**
+     * A consistent view of the index on disk. The dictionary and data files
+     * are replaced together, and the cache only holds postings read from
+     * these files.
+     */
+    static class Snapshot {
+        /** The dictionary hash table is stored in this file. */
+        final RandomAccessFile dictionaryFile;
+
+        /** The data (the PostingsLists) are stored in this file. */
+        final RandomAccessFile dataFile;
+
+        /** Postings already read from this snapshot. */
+        final ConcurrentHashMap<String, PostingsList> cache = new ConcurrentHashMap<>();
+
+        Snapshot(RandomAccessFile dictionaryFile, RandomAccessFile dataFile) {
+            this.dictionaryFile = dictionaryFile;
+            this.dataFile = dataFile;
+        }
+    }
+
     // ==================================================================
 
     /**
@@ -115,9 +141,16 @@ public class PersistentHashedIndex implements Index {
      */
     public PersistentHashedIndex() {
         try {
-            dictionaryFile = new RandomAccessFile(INDEXDIR + "/" + DICTIONARY_FNAME, "rw");
-            // dictionaryFile.setLength(TABLESIZE * (LONG_SIZE + INT_SIZE));
-            dataFile = new RandomAccessFile(INDEXDIR + "/" + DATA_FNAME, "rw");
+            snapshot = new Snapshot(new RandomAccessFile(INDEXDIR + "/" + DICTIONARY_FNAME, "rw"),
+                    new RandomAccessFile(INDEXDIR + "/" + DATA_FNAME, "rw"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // The pageranks are needed to resolve the static ranks of the documents
+        try {
+            PageRankSparse.readPageranks(pageranks);
+        } catch (FileNotFoundException e) {
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -125,13 +158,54 @@ public class PersistentHashedIndex implements Index {
         try {
             readDocInfo();
             readTokenIndex();
-            PageRankSparse.readPageranks(pageranks);
         } catch (FileNotFoundException e) {
         } catch (ArrayIndexOutOfBoundsException e) {
         } catch (IOException e) {
             e.printStackTrace();
         }
 
+        // Indexes written before the statistics existed fall back to computing idf at query time
+        try {
+            statistics.read(INDEXDIR);
+        } catch (FileNotFoundException e) {
+            System.err.println("[INFO] No index statistics on disk, idf is computed at query time");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // Each of the remaining structures is optional, so an older index still loads the rest
+        try {
+            championLists.read(INDEXDIR);
+        } catch (FileNotFoundException e) {
+            System.err.println("[INFO] No champion lists on disk, tf-idf ranks the full postings");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        try {
+            impactLists.read(INDEXDIR);
+        } catch (FileNotFoundException e) {
+            System.err.println("[INFO] No impact lists on disk, they are laid out at query time");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        try {
+            forwardIndex.read(INDEXDIR);
+        } catch (FileNotFoundException e) {
+            System.err.println("[INFO] No forward index on disk, relevance feedback re-reads the documents");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        try {
+            documentStore.read(INDEXDIR);
+        } catch (FileNotFoundException e) {
+            System.err.println("[INFO] No document store on disk, snippets are unavailable");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
         Utils.initialize();
     }
 
@@ -142,9 +216,8 @@ public class PersistentHashedIndex implements Index {
      */
     protected int writeData(RandomAccessFile file, String dataString, long ptr) {
         try {
-            file.seek(ptr);
             byte[] data = dataString.getBytes("UTF-8");
-            file.write(data);
+            write(file.getChannel(), ByteBuffer.wrap(data), ptr);
             return data.length;
         } catch (IOException e) {
             e.printStackTrace();
@@ -155,18 +228,40 @@ public class PersistentHashedIndex implements Index {
     /**
      * Reads data from the data file
      */
-    protected String readData(RandomAccessFile file, long ptr, int size) {
-        try {
-            file.seek(ptr);
-            byte[] data = new byte[size];
-            file.readFully(data);
-            return new String(data, Charset.forName("UTF-8"));
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+    protected String readData(RandomAccessFile file, long ptr, int size) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(size);
+        if (read(file.getChannel(), data, ptr) < size)
+            throw new IOException("Data at " + ptr + " is truncated.");
+        return new String(data.array(), Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Writes the whole buffer at a given position. Positional writes do not
+     * move the file pointer, so several threads may use the same channel.
+     */
+    protected static void write(FileChannel channel, ByteBuffer buffer, long ptr) throws IOException {
+        while (buffer.hasRemaining()) {
+            ptr += channel.write(buffer, ptr);
         }
     }
 
+    /**
+     * Reads into the buffer from a given position until it is full or the end
+     * of the file is reached.
+     *
+     * @return The number of bytes read.
+     */
+    protected static int read(FileChannel channel, ByteBuffer buffer, long ptr) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, ptr + total);
+            if (n < 0)
+                break;
+            total += n;
+        }
+        return total;
+    }
+
     // ==================================================================
     //
     // Reading and writing to the dictionary file.
@@ -180,13 +275,13 @@ public class PersistentHashedIndex implements Index {
      */
     protected void writeEntry(RandomAccessFile file, Entry entry, long ptr) {
         ptr = ptr * (long) ENTRY_SIZE;
+        ByteBuffer outBuffer = ByteBuffer.allocate(ENTRY_SIZE);
         outBuffer.putLong(0, entry.start);
         outBuffer.putInt(8, entry.size);
         outBuffer.putInt(12, entry.shash);
 
         try {
-            file.seek(ptr);
-            file.write(outBuffer.array());
+            write(file.getChannel(), outBuffer, ptr);
         } catch (IOException e) {
             e.printStackTrace();
             System.err.println(ptr);
@@ -199,30 +294,22 @@ public class PersistentHashedIndex implements Index {
      *
      * @param ptr The place in the dictionary file where to start reading.
      */
-    protected Entry readEntry(RandomAccessFile file, long ptr) throws DataFormatException {
+    protected Entry readEntry(RandomAccessFile file, long ptr) throws DataFormatException, IOException {
         ptr = ptr * (long) ENTRY_SIZE;
-        byte[] bytes = new byte[ENTRY_SIZE];
+        ByteBuffer inBuffer = ByteBuffer.allocate(ENTRY_SIZE);
 
-        try {
-            file.seek(ptr);
-            file.readFully(bytes);
-            inBuffer.put(bytes, 0, bytes.length);
-            inBuffer.flip();
-            long pos = inBuffer.getLong(0);
-            int size = inBuffer.getInt(8);
-            int shash = inBuffer.getInt(12);
-
-            if (pos == 0L && size == 0) {
-                throw new DataFormatException("Hash at location" + ptr + "does not exist.");
-            }
+        /* Reading past the end of the file means the slot is empty */
+        read(file.getChannel(), inBuffer, ptr);
 
-            return new Entry(pos, size, shash);
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (NumberFormatException ex) {
-            ex.printStackTrace();
+        long pos = inBuffer.getLong(0);
+        int size = inBuffer.getInt(8);
+        int shash = inBuffer.getInt(12);
+
+        if (pos == 0L && size == 0) {
+            throw new DataFormatException("Hash at location" + ptr + "does not exist.");
         }
-        return null;
+
+        return new Entry(pos, size, shash);
     }
 
     // ==================================================================
@@ -257,6 +344,7 @@ public class PersistentHashedIndex implements Index {
                 String[] data = line.split(";");
                 docNames.put(Integer.parseInt(data[0]), data[1]);
                 docNamesToID.put(data[1], Integer.parseInt(data[0]));
+                staticRanks.put(Integer.parseInt(data[0]), data[1]);
                 docLengths.put(Integer.parseInt(data[0]), Integer.parseInt(data[2]));
             }
         }
@@ -268,10 +356,15 @@ public class PersistentHashedIndex implements Index {
      */
     public void writeIndex() {
         HashMap<Integer, Long> dictionary = new HashMap<Integer, Long>();
+        free = 0L;
         try {
             // Write the 'docNames' and 'docLengths' hash maps to a file
             writeDocInfo();
 
+            // Searches keep reading the published files while the new ones are written
+            RandomAccessFile dictionaryFile = newFile(DICTIONARY_FNAME + NEW_SUFFIX);
+            RandomAccessFile dataFile = newFile(DATA_FNAME + NEW_SUFFIX);
+
             // Write the dictionary and the postings list
             for (Map.Entry<String, PostingsList> entry : index.entrySet()) {
 
@@ -292,6 +385,33 @@ public class PersistentHashedIndex implements Index {
                 free += size;
                 // System.err.println(entry.getKey());
             }
+
+            dictionaryFile.close();
+            dataFile.close();
+
+            // Compute the idf, document norms, champion and impact lists while the postings are still in memory
+            IndexStatistics.Pass pass = statistics.startPass(docNames.size());
+            for (Map.Entry<String, PostingsList> entry : index.entrySet()) {
+                pass.add(entry.getKey(), entry.getValue());
+            }
+            pass.publish();
+            statistics.write(INDEXDIR);
+
+            ChampionLists.Builder champions = championLists.startBuild();
+            for (Map.Entry<String, PostingsList> entry : index.entrySet()) {
+                champions.add(entry.getKey(), entry.getValue());
+            }
+            champions.publish();
+            championLists.write(INDEXDIR);
+
+            ImpactLists.Builder impacts = impactLists.startBuild();
+            for (Map.Entry<String, PostingsList> entry : index.entrySet()) {
+                impacts.add(entry.getKey(), entry.getValue());
+            }
+            impacts.publish();
+            impactLists.write(INDEXDIR);
+
+            publish(DATA_FNAME + NEW_SUFFIX, DICTIONARY_FNAME + NEW_SUFFIX);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -299,6 +419,74 @@ public class PersistentHashedIndex implements Index {
         System.err.println("[INFO]" + collisions + " collisions.");
     }
 
+    /**
+     * Computes the idf, document norms, champion and impact lists by
+     * reading every postings list of the published index, and writes them
+     * to disk.
+     */
+    protected void writeStatistics() throws IOException {
+        Snapshot current = snapshot;
+        IndexStatistics.Pass pass = statistics.startPass(docNames.size());
+        for (String token : tokenIndex.keySet()) {
+            pass.add(token, getPostings(current, token));
+        }
+        // Do not keep the whole index in the cache
+        current.cache.clear();
+
+        pass.publish();
+        statistics.write(INDEXDIR);
+
+        // The champion and impact lists need the finished statistics, so they take a second pass
+        ChampionLists.Builder champions = championLists.startBuild();
+        ImpactLists.Builder impacts = impactLists.startBuild();
+        for (String token : tokenIndex.keySet()) {
+            PostingsList pl = getPostings(current, token);
+            champions.add(token, pl);
+            impacts.add(token, pl);
+        }
+        current.cache.clear();
+
+        champions.publish();
+        championLists.write(INDEXDIR);
+        impacts.publish();
+        impactLists.write(INDEXDIR);
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Creates an empty file in the index directory.
+     */
+    protected RandomAccessFile newFile(String name) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(INDEXDIR + "/" + name, "rw");
+        file.setLength(0);
+        return file;
+    }
+
+    /**
+     * Moves newly written data and dictionary files into place and makes
+     * them visible to searches. Searches still reading the old files when
+     * they are closed will retry against the new ones.
+     *
+     * @param dataName       Name of the new data file in the index directory
+     * @param dictionaryName Name of the new dictionary file in the index directory
+     */
+    protected void publish(String dataName, String dictionaryName) throws IOException {
+        File dataTo = new File(INDEXDIR + "/" + DATA_FNAME);
+        File dictionaryTo = new File(INDEXDIR + "/" + DICTIONARY_FNAME);
+
+        Files.move(new File(INDEXDIR + "/" + dataName).toPath(), dataTo.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(new File(INDEXDIR + "/" + dictionaryName).toPath(), dictionaryTo.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        Snapshot old = snapshot;
+        snapshot = new Snapshot(new RandomAccessFile(dictionaryTo, "r"), new RandomAccessFile(dataTo, "r"));
+        generation.incrementAndGet();
+
+        if (old != null) {
+            old.dictionaryFile.close();
+            old.dataFile.close();
+        }
+    }
+
     /**
      * Writes the document names and document lengths to file.
      *
@@ -340,9 +528,31 @@ public class PersistentHashedIndex implements Index {
      * index.
      */
     public PostingsList getPostings(String token) {
-        if (index.containsKey(token))
-            return index.get(token);
+        for (;;) {
+            Snapshot current = snapshot;
+            try {
+                return getPostings(current, token);
+            } catch (ClosedChannelException e) {
+                // A new snapshot was published while reading, try again
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads the postings for a term from the given snapshot, going through
+     * its cache.
+     */
+    private PostingsList getPostings(Snapshot current, String token) throws IOException {
+        PostingsList cached = current.cache.get(token);
+        if (cached != null) {
+            Metrics.count(Metrics.Counter.INDEX_CACHE_HITS, 1);
+            return cached;
+        }
 
+        long start = Metrics.start();
         int hash = Utils.hash(token);
         int shash = Utils.reverseHash(token);
 
@@ -350,7 +560,7 @@ public class PersistentHashedIndex implements Index {
 
         for (;;) {
             try {
-                entry = readEntry(dictionaryFile, hash++);
+                entry = readEntry(current.dictionaryFile, hash++);
             } catch (DataFormatException e) {
                 return null;
             }
@@ -359,33 +569,22 @@ public class PersistentHashedIndex implements Index {
                 break;
             }
         }
+        Metrics.stop(Metrics.Stage.LOOKUP, start);
 
         try {
-            String postingsList = readData(dataFile, entry.start, entry.size);
-
-            /** Parse string */
-            // String[] postingsEntries = postingsList.split(":");
-            ArrayList<String> postingsEntries = Utils.splitByDelim(postingsList, PostingsList.ENTRY_DELIM);
-
-            PostingsList pl = new PostingsList();
-            pl.ensureCapacity(postingsEntries.size());
+            start = Metrics.start();
+            String postingsList = readData(current.dataFile, entry.start, entry.size);
+            Metrics.stop(Metrics.Stage.READ, start);
+            Metrics.count(Metrics.Counter.BYTES_READ, entry.size);
 
-            for (String e : postingsEntries) {
-                ArrayList<String> entryData = Utils.splitByDelim(e, PostingsEntry.OFFSET_DELIM);
-
-                PostingsEntry postingsEntry = new PostingsEntry(Integer.parseInt(entryData.get(0)),
-                        Integer.parseInt(entryData.get(1)));
-                postingsEntry.reserveOffsetCapacity(entryData.size());
-
-                entryData.stream().skip(2).forEachOrdered(i -> {
-                    postingsEntry.addPosition(Integer.parseInt(i));
-                });
-                pl.add(postingsEntry);
-            }
+            start = Metrics.start();
+            PostingsList pl = PostingsList.parse(postingsList);
+            Metrics.stop(Metrics.Stage.DECODE, start);
+            Metrics.count(Metrics.Counter.POSTINGS_DECODED, pl.size());
 
-            index.put(token, pl);
+            PostingsList raced = current.cache.putIfAbsent(token, pl);
 
-            return pl;
+            return raced != null ? raced : pl;
         } catch (NumberFormatException ex) {
             ex.printStackTrace();
         }
@@ -427,6 +626,8 @@ public class PersistentHashedIndex implements Index {
         writeIndex();
         try {
             writeTokenIndex();
+            forwardIndex.write(INDEXDIR);
+            documentStore.write(INDEXDIR);
         } catch (IOException e) {
             e.printStackTrace();
         }
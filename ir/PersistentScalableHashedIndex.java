@@ -97,11 +97,11 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex {
      * Writes partial docInfo to file
      * 
      * @param app        The identifier of the file (appendix)
-     * @param docNames   HashMap of document names
-     * @param docLengths HashMap of document lengths
+     * @param docNames   Map of document names
+     * @param docLengths Map of document lengths
      */
-    private void writePartialDocInfo(String app, HashMap<Integer, String> docNames,
-            HashMap<Integer, Integer> docLengths) {
+    private void writePartialDocInfo(String app, Map<Integer, String> docNames,
+            Map<Integer, Integer> docLengths) {
         try {
             FileOutputStream fout = new FileOutputStream(INDEXDIR + "/docInfo" + app);
 
@@ -456,36 +456,24 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex {
 
         try {
             writeTokenIndex();
-            
-            /** re-point the index files */
-            dataFile.close();
-            dictionaryFile.close();
+            forwardIndex.write(INDEXDIR);
+            documentStore.write(INDEXDIR);
 
             /** Delete last index file */
             File file = new File(INDEXDIR + "/partialTokens" + currentMergedFileID);
             file.delete();
 
-            /** Rename files */
-            File dataFrom = new File(INDEXDIR + "/" + DATA_FNAME + currentMergedFileID);
-            File dataTo = new File(INDEXDIR + "/" + DATA_FNAME);
-            dataTo.delete();
-            dataFrom.renameTo(dataTo);
-            dataFrom.delete();
-
-            File dictionaryFrom = new File(INDEXDIR + "/" + DICTIONARY_FNAME + currentMergedFileID);
-            File dictionaryTo = new File(INDEXDIR + "/" + DICTIONARY_FNAME);
-            dictionaryTo.delete();
-            dictionaryFrom.renameTo(dictionaryTo);
-            dictionaryFrom.delete();
-
             File docInfoFrom = new File(INDEXDIR + "/" + DOCINFO_FNAME + currentMergedFileID);
             File docInfoTo = new File(INDEXDIR + "/" + DOCINFO_FNAME);
+            docInfoTo.delete();
             docInfoFrom.renameTo(docInfoTo);
             readDocInfo();
 
-            /** Reopen files */
-            dataFile = new RandomAccessFile(INDEXDIR + "/" + DATA_FNAME, "rw");
-            dictionaryFile = new RandomAccessFile(INDEXDIR + "/" + DICTIONARY_FNAME, "rw");
+            /** Move the merged files into place and re-point searches to them */
+            publish(DATA_FNAME + currentMergedFileID, DICTIONARY_FNAME + currentMergedFileID);
+
+            System.err.println("[INFO] Computing idf and document norms...");
+            writeStatistics();
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
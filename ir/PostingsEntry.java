@@ -9,44 +9,35 @@ package ir;
 
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.StringTokenizer;
 import java.io.Serializable;
 import java.lang.StringBuilder;
 
-public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
+/**
+ *  One document in the postings list of a term, with the positions of the
+ *  term in the document. Entries are owned by the index and only grow while
+ *  the document is being indexed; scores computed at search time are kept
+ *  in a ResultList instead.
+ */
+public class PostingsEntry implements Serializable {
 
     public static final String OFFSET_DELIM = ",";
-    public int docID;
-    public double score = 0;
+    public final int docID;
     private ArrayList<Integer> positionList = new ArrayList<>();
 
-    /**
-     *  PostingsEntries are compared by their score (only relevant
-     *  in ranked retrieval).
-     *
-     *  The comparison is defined so that entries will be put in 
-     *  descending order.
-     */
-    public int compareTo( PostingsEntry other ) {
-       return Double.compare( other.score, score );
-    }
-
     public PostingsEntry(int docID, int offset) {
         this.docID = docID;
         this.positionList.add(offset);
     }
 
-    public PostingsEntry(int docID, double score) {
-        this.docID = docID;
-        this.score = score;
-    }
-
     /**
-     * @return the positionList
+     * @return a read-only view of the positionList
      */
-    public ArrayList<Integer> getPositionList() {
-        return positionList;
+    public List<Integer> getPositionList() {
+        return Collections.unmodifiableList(positionList);
     }
 
     public void addPosition(int offset) {
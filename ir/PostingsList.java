@@ -20,6 +20,10 @@ public class PostingsList extends ArrayList<PostingsEntry> implements Comparable
         super();
     }
 
+    public PostingsList(PostingsList other) {
+        super(other);
+    }
+
     @Override
     public int compareTo(PostingsList o) {
         return Integer.compare(o.size(), this.size());
@@ -39,5 +43,30 @@ public class PostingsList extends ArrayList<PostingsEntry> implements Comparable
         
         return sb.toString();
     }
+
+    /**
+     * Parses a postings list written by <code>toString</code>.
+     */
+    public static PostingsList parse(String postingsList) throws NumberFormatException {
+        ArrayList<String> postingsEntries = Utils.splitByDelim(postingsList, ENTRY_DELIM);
+
+        PostingsList pl = new PostingsList();
+        pl.ensureCapacity(postingsEntries.size());
+
+        for (String e : postingsEntries) {
+            ArrayList<String> entryData = Utils.splitByDelim(e, PostingsEntry.OFFSET_DELIM);
+
+            PostingsEntry postingsEntry = new PostingsEntry(Integer.parseInt(entryData.get(0)),
+                    Integer.parseInt(entryData.get(1)));
+            postingsEntry.reserveOffsetCapacity(entryData.size());
+
+            entryData.stream().skip(2).forEachOrdered(i -> {
+                postingsEntry.addPosition(Integer.parseInt(i));
+            });
+            pl.add(postingsEntry);
+        }
+
+        return pl;
+    }
 }
 
@@ -114,7 +114,7 @@ public class Query implements Cloneable {
      *  @param docIsRelevant A boolean array representing which query results the user deemed relevant.
      *  @param engine The search engine object
      */
-    public void relevanceFeedback( PostingsList results, boolean[] docIsRelevant, Engine engine ) {
+    public void relevanceFeedback( ResultList results, boolean[] docIsRelevant, Engine engine ) {
         normalize();
 
         /* Isolate relevant indices */
@@ -131,130 +131,92 @@ public class Query implements Cloneable {
         /* Multiply q0 by alpha and its idf */
         for (int i = 0; i < size(); i++) {
             queryterm.get(i).weight *= ALPHA;
-            queryterm.get(i).weight *= Math.log( engine.index.docLengths.size() * 1.0 / engine.index.getPostings(queryterm.get(i).term).size());
+            queryterm.get(i).weight *= getIdf(queryterm.get(i).term, engine);
             tknToIdx.put(queryterm.get(i).term, i);
         }
 
         try {
             for (int i: relevantIndices) {
 
-                ArrayList<QueryTerm> di = new ArrayList<>();
+                /* Get the frequency of each term in the document */
+                int docID = results.getDocID(i);
+                LinkedHashMap<String, Integer> termCounts = getTermCounts(docID, engine);
 
-                /* Read each file and get each token */
-                int docID = results.get(i).docID;
-                String fileName = engine.index.docNames.get(docID);
+                for (Map.Entry<String, Integer> entry : termCounts.entrySet()) {
+                    String term = entry.getKey();
 
-                Reader reader = new InputStreamReader( new FileInputStream(new File(fileName)), StandardCharsets.UTF_8 );
-                Tokenizer tok = new Tokenizer( reader, true, false, true, engine.patterns_file );
+                    /* Calculate score foreach term */
+                    double weight = entry.getValue() * (BETA / relevantIndices.size()) * getIdf(term, engine);
 
-                while ( tok.hasMoreTokens() ) {
-                    String token = tok.nextToken();
-                    di.add(new QueryTerm(token, 1.0));
-                }
-
-                /* Calculate score foreach token */
-                for (int j = 0; j < di.size(); j++) {
-                    // di.get(j).weight *= ( (BETA / relevantIndices.size()) * (1.0 / (engine.index.docLengths.get(docID))) * Math.log(Index.docNames.size() * 1.0 / engine.index.getPostings(di.get(j).term).size()) );
-                    // di.get(j).weight *= ( (BETA / relevantIndices.size()) * Math.log(Index.docNames.size() * 1.0 / engine.index.getPostings(di.get(j).term).size()) * 1.0 / Math.sqrt(engine.index.getPostings(di.get(j).term).size()) );
-                    di.get(j).weight *= ( (BETA / relevantIndices.size()) * Math.log(Index.docNames.size() * 1.0 / engine.index.getPostings(di.get(j).term).size()) );
-                    // di.get(j).weight *= ( (BETA / relevantIndices.size()) * (1.0 / (engine.index.docLengths.get(docID))));
-                }
-
-                /* Filter tokens and merge scores for same tokens */
-                for (int j = 0; j < di.size(); j++) {
-                    QueryTerm qt = di.get(j);
-                    if (!tknToIdx.containsKey(qt.term)) {
-
-                        queryterm.add(qt);
-                        tknToIdx.put(qt.term, size() - 1);
+                    /* Filter terms and merge scores for same terms */
+                    if (!tknToIdx.containsKey(term)) {
+                        queryterm.add(new QueryTerm(term, weight));
+                        tknToIdx.put(term, size() - 1);
                     } else {
-                        queryterm.get(tknToIdx.get(qt.term)).weight += qt.weight;
+                        queryterm.get(tknToIdx.get(term)).weight += weight;
                     }
                 }
             }
-//            for (QueryTerm qt: queryterm) {
-//                System.err.println("Term: " + qt.term + ", weight: " + qt.weight);
-//            }
-            // normalize();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Determines whether the query contains wildcards
-     * @return a boolean on if the query contains wildcards or not
-     */
-    boolean containsWildcards() {
-        for (QueryTerm qt: queryterm) {
-            if (qt.term.contains("*")) return true;
-        }
-        return false;
-    }
-
-    /**
-     * Gets a list of queries that this wildcard query consists of
-     * @param kgIndex The kgram index
-     * @return a list of queries based on the wildcards
+     *  Returns the frequency of every term in a document. The term vector is
+     *  taken from the forward index; a document that is not in it is read
+     *  from disk and tokenized again.
      */
-    List<Query> getWildcardQueries(KGramIndex kgIndex) {
-        ArrayList<QueryTerm> placeholder = new ArrayList<>();
-
-        ArrayList<KGramIndex.Pair<Integer, String>> wildcardIndexes = new ArrayList<KGramIndex.Pair<Integer, String>>();
-        ArrayList<KGramIndex.Pair<Integer, List<String>>> analysedWildcards = new ArrayList<>();
+    private LinkedHashMap<String, Integer> getTermCounts( int docID, Engine engine ) throws IOException {
+        LinkedHashMap<String, Integer> termCounts = new LinkedHashMap<>();
 
-        /* Comb through original query */
-        int i = 0;
-        for (QueryTerm qt: queryterm) {
-            if (qt.term.contains("*")) {
-                placeholder.add(new QueryTerm("", 1.0));
-                wildcardIndexes.add(new KGramIndex.Pair<Integer, String>(i, qt.term));
+        ForwardIndex.TermVector vector = Index.forwardIndex.get(docID);
+        if (vector != null) {
+            for (int j = 0; j < vector.size(); j++) {
+                termCounts.put(Index.forwardIndex.getTerm(vector.termIDs[j]), vector.tfs[j]);
             }
-            else
-                placeholder.add(new QueryTerm(qt.term, qt.weight));
-            i++;
+            return termCounts;
         }
 
-        /* Find all wildcards */
-        for (i = 0; i < wildcardIndexes.size(); i++) {
-            analysedWildcards.add(new KGramIndex.Pair<>(wildcardIndexes.get(i).first, kgIndex.getWildcards(wildcardIndexes.get(i).second)));
+        String fileName = engine.index.docNames.get(docID);
+        try (Reader reader = new InputStreamReader( new FileInputStream(new File(fileName)), StandardCharsets.UTF_8 )) {
+            Tokenizer tok = new Tokenizer( reader, true, false, true, engine.patterns_file );
+            while ( tok.hasMoreTokens() ) {
+                termCounts.merge(tok.nextToken(), 1, Integer::sum);
+            }
         }
+        return termCounts;
+    }
 
-        List<Query> queries = new ArrayList<>();
-
-        Query q = new Query();
-        q.queryterm = placeholder;
-        queries.add(q);
-
-        /* Actually construct all wildcard queries */
-        for (i = 0; i < analysedWildcards.size(); i++) {
-            int idx = analysedWildcards.get(i).first;
-            List<String> wildcards = analysedWildcards.get(i).second;
-            List<Query> newQueries = new ArrayList<>();
-            ((ArrayList<Query>) newQueries).ensureCapacity(queries.size() * wildcards.size());
-
-            for (Query query: queries) {
-                for (String s: wildcards) {
-                    ArrayList<QueryTerm> qt = new ArrayList<QueryTerm>(query.queryterm);
-                    qt.set(idx, new QueryTerm(s, 1.0));
-
-                    Query newQuery = new Query();
-                    newQuery.queryterm = qt;
-                    newQueries.add(newQuery);
-                }
-            }
-            queries = newQueries;
+    /**
+     *  Returns the idf of a term, precomputed if the index statistics have it.
+     */
+    private double getIdf( String term, Engine engine ) {
+        double idf = Index.statistics.getIdf(term);
+        if (Double.isNaN(idf)) {
+            PostingsList pl = engine.index.getPostings(term);
+            idf = pl == null ? 0.0 : Math.log(Index.docNames.size() * 1.0 / pl.size());
         }
+        return idf;
+    }
 
-        return queries;
+    /**
+     * Determines whether the query contains wildcards
+     * @return a boolean on if the query contains wildcards or not
+     */
+    boolean containsWildcards() {
+        for (QueryTerm qt: queryterm) {
+            if (qt.term.contains("*")) return true;
+        }
+        return false;
     }
 
     /**
      * Calculates a single query containing all wildcards for this query
-     * @param kgIndex The kgram index
+     * @param wildcardIndex The index expanding the wildcards
      * @return A single query whose queryterm contains all wildcard tokens
      */
-    Query getWildcards(KGramIndex kgIndex) {
+    Query getWildcards(WildcardIndex wildcardIndex) {
 
         Query q = new Query();
 
@@ -271,7 +233,7 @@ public class Query implements Cloneable {
 
         /* Find all wildcards and append them to the query */
         for (int i = 0; i < wildcardsToSearch.size(); i++) {
-            List<String> wildcards = kgIndex.getWildcards(wildcardsToSearch.get(i));
+            List<String> wildcards = wildcardIndex.getWildcards(wildcardsToSearch.get(i));
 
             for (String s: wildcards) {
                 q.queryterm.add(new QueryTerm(s, 1.0));
@@ -0,0 +1,184 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache of query results.
+ *
+ * Results are stored as compact ResultLists of (docID, score) pairs and are keyed
+ * by the normalized query terms and weights together with the query type and
+ * ranking type. The cache is bounded by an estimate of the memory used by
+ * its entries. Every entry remembers the index generation it was computed
+ * for, and is dropped once the index has changed.
+ */
+public class QueryCache {
+
+    /** Default memory budget for all cached results, in bytes */
+    public static final long DEFAULT_MAX_BYTES = 32L << 20;
+
+    /** Estimated fixed memory cost of one entry, in bytes */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    /**
+     * A cached result list.
+     */
+    private static class Entry {
+        ResultList results;
+        int generation;
+        long computeNanos;
+        long bytes;
+
+        Entry(ResultList results, int generation, long computeNanos, long keyBytes) {
+            if (!results.isFrozen())
+                results.trimToSize();
+            results.freeze();
+            this.results = results;
+            this.generation = generation;
+            this.computeNanos = computeNanos;
+            this.bytes = ENTRY_OVERHEAD + keyBytes + results.getBytes();
+        }
+    }
+
+    /** The cached entries, in access order */
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Maximum number of bytes used by the cached entries */
+    private final long maxBytes;
+
+    /** Number of bytes currently used by the cached entries */
+    private long usedBytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+    private long evictions = 0;
+
+    /** Total search time saved by cache hits */
+    private long savedNanos = 0;
+
+    public QueryCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public QueryCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Builds the cache key of a query. Intersection and ranked queries do not
+     * depend on the order of the terms, so the terms are sorted for those.
+     */
+    static String getKey(Query query, QueryType queryType, RankingType rankingType) {
+        ArrayList<String> terms = new ArrayList<>();
+        for (Query.QueryTerm qt: query.queryterm) {
+            terms.add(qt.term + "^" + qt.weight);
+        }
+
+        if (queryType != QueryType.PHRASE_QUERY && queryType != QueryType.BOOLEAN_QUERY)
+            Collections.sort(terms);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(queryType.name());
+        if (queryType == QueryType.RANKED_QUERY) {
+            sb.append('/');
+            sb.append(rankingType.name());
+        }
+        for (String s: terms) {
+            sb.append(' ');
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the cached results of a query, or null if the query is not
+     * cached or the cached results were computed for an older index.
+     */
+    public synchronized ResultList get(String key) {
+        Entry entry = cache.get(key);
+
+        if (entry != null && entry.generation != Index.generation.get()) {
+            remove(key);
+            invalidations++;
+            entry = null;
+        }
+
+        if (entry == null) {
+            misses++;
+            Metrics.count(Metrics.Counter.QUERY_CACHE_MISSES, 1);
+            return null;
+        }
+
+        hits++;
+        Metrics.count(Metrics.Counter.QUERY_CACHE_HITS, 1);
+        savedNanos += entry.computeNanos;
+        return entry.results;
+    }
+
+    /**
+     * Caches the results of a query.
+     *
+     * @param key          The key from <code>getKey</code>
+     * @param results      The results of the query, frozen from now on
+     * @param generation   The index generation the results were computed for
+     * @param computeNanos How long it took to compute the results
+     */
+    public synchronized void put(String key, ResultList results, int generation, long computeNanos) {
+        if (results == null || generation != Index.generation.get())
+            return;
+
+        Entry entry = new Entry(results, generation, computeNanos, 2L * key.length());
+
+        /* Do not let a single huge result list flush the whole cache */
+        if (entry.bytes > maxBytes / 4)
+            return;
+
+        remove(key);
+        cache.put(key, entry);
+        usedBytes += entry.bytes;
+
+        while (usedBytes > maxBytes) {
+            Map.Entry<String, Entry> eldest = cache.entrySet().iterator().next();
+            remove(eldest.getKey());
+            evictions++;
+        }
+    }
+
+    private void remove(String key) {
+        Entry old = cache.remove(key);
+        if (old != null)
+            usedBytes -= old.bytes;
+    }
+
+    /** Removes all cached entries. */
+    public synchronized void clear() {
+        cache.clear();
+        usedBytes = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0.0 : hits * 1.0 / (hits + misses);
+    }
+
+    /** Returns the total search time saved by cache hits, in milliseconds. */
+    public synchronized double getSavedMillis() {
+        return savedNanos / 1e6;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("[CACHE] %d entries, %.1f kB, %d hits, %d misses (%.1f%% hit rate), %d invalidated, %d evicted, %.1f ms saved",
+                cache.size(), usedBytes / 1024.0, hits, misses, 100 * getHitRate(), invalidations, evictions, getSavedMillis());
+    }
+}
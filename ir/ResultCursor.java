@@ -0,0 +1,339 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * The evaluation state of a query whose results are fetched a page at a
+ * time.
+ *
+ * Unranked queries are evaluated lazily: each page walks the postings
+ * lists only as far as needed for its results, so the memory used per page
+ * does not depend on how many documents match. A ranked query has to score
+ * every candidate before its best document is known; its cursor keeps the
+ * scores and selects each page from them, without sorting the rest.
+ *
+ * A cursor is not thread-safe and must be used by one search at a time.
+ */
+public abstract class ResultCursor {
+
+    /** Number of results returned or skipped so far */
+    int position = 0;
+
+    /** The index generation the cursor was opened for */
+    final int generation = Index.generation.get();
+
+    /**
+     * Returns the next <code>n</code> results, or fewer if there are no
+     * more.
+     */
+    public abstract ResultList next(int n);
+
+    /** Skips the next <code>n</code> results. */
+    public abstract void skip(int n);
+
+    /** Returns true if there may be more results. */
+    public abstract boolean hasMore();
+
+    /**
+     * Returns the total number of results, or -1 if it is not known without
+     * evaluating the whole query.
+     */
+    public int getTotal() {
+        return -1;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the index of the first entry at or after <code>from</code> in
+     * a postings list whose docID is at least <code>docID</code>, galloping
+     * ahead before the binary search.
+     */
+    static int gallop(PostingsList pl, int from, int docID) {
+        int size = pl.size();
+        if (from >= size || pl.get(from).docID >= docID)
+            return from;
+
+        int step = 1;
+        int lo = from;
+        int hi = from + 1;
+        while (hi < size && pl.get(hi).docID < docID) {
+            lo = hi;
+            step <<= 1;
+            hi = from + step;
+        }
+        hi = Math.min(hi, size);
+
+        /** Now pl[lo] < docID, and pl[hi] >= docID or hi == size */
+        lo++;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (pl.get(mid).docID < docID)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * A ranked query. Only the best results up to a limit are ranked, so
+     * that rankings that can stop early do so, and the query is ranked again
+     * with a larger limit when the pages go past it.
+     */
+    static class Ranked extends ResultCursor {
+        /** Ranks the best results of the query up to a limit, sorted by score */
+        private final IntFunction<ResultList> ranking;
+
+        /** The best results up to <code>limit</code>, sorted by score */
+        private ResultList ranked;
+        private int limit;
+
+        /**
+         * @param ranked  The best results up to <code>limit</code>, sorted by score
+         * @param ranking Ranks the results again for a larger limit
+         */
+        Ranked(ResultList ranked, int limit, IntFunction<ResultList> ranking) {
+            this.ranked = ranked == null ? new ResultList() : ranked;
+            this.limit = limit;
+            this.ranking = ranking;
+        }
+
+        /** Returns true if all results of the query are ranked. */
+        private boolean isComplete() {
+            return limit == Integer.MAX_VALUE || ranked.size() < limit;
+        }
+
+        /** Ranks at least the first <code>to</code> results, if there are that many. */
+        private void rankUpTo(long to) {
+            if (to <= ranked.size() || isComplete())
+                return;
+            limit = (int) Math.min(Integer.MAX_VALUE, Math.max(2L * limit, to));
+            ResultList results = ranking.apply(limit);
+            if (results != null)
+                ranked = results;
+        }
+
+        @Override
+        public ResultList next(int n) {
+            rankUpTo((long) position + n);
+            int to = (int) Math.min((long) position + n, ranked.size());
+            ResultList page = ranked.subList(position, to);
+            position = Math.max(position, to);
+            return page;
+        }
+
+        @Override
+        public void skip(int n) {
+            rankUpTo((long) position + n);
+            position = (int) Math.min((long) position + n, ranked.size());
+        }
+
+        @Override
+        public boolean hasMore() {
+            return position < ranked.size() || !isComplete();
+        }
+
+        @Override
+        public int getTotal() {
+            return isComplete() ? ranked.size() : -1;
+        }
+    }
+
+    /**
+     * An unranked query whose results are found one document at a time, in
+     * docID order.
+     */
+    abstract static class Streaming extends ResultCursor {
+        /** The next matching docID, or -1 if it has not been looked for yet */
+        private int lookahead = -1;
+        private boolean exhausted = false;
+
+        /** Returns the next matching docID, or -1 if there are no more. */
+        abstract int findNext();
+
+        private int peek() {
+            if (lookahead == -1 && !exhausted) {
+                lookahead = findNext();
+                if (lookahead == -1)
+                    exhausted = true;
+            }
+            return lookahead;
+        }
+
+        private int take() {
+            int docID = peek();
+            lookahead = -1;
+            return docID;
+        }
+
+        @Override
+        public ResultList next(int n) {
+            long start = Metrics.start();
+            ResultList page = new ResultList(Math.min(n, 64));
+            while (page.size() < n && peek() != -1) {
+                page.add(take(), 0.0);
+                position++;
+            }
+            Metrics.stop(Metrics.Stage.INTERSECT, start);
+            return page;
+        }
+
+        @Override
+        public void skip(int n) {
+            for (int i = 0; i < n && peek() != -1; i++) {
+                take();
+                position++;
+            }
+        }
+
+        @Override
+        public boolean hasMore() {
+            return peek() != -1;
+        }
+    }
+
+    /**
+     * The documents of a single postings list.
+     */
+    static class Postings extends Streaming {
+        private final PostingsList pl;
+        private int i = 0;
+
+        Postings(PostingsList pl) {
+            this.pl = pl == null ? new PostingsList() : pl;
+        }
+
+        @Override
+        int findNext() {
+            return i < pl.size() ? pl.get(i++).docID : -1;
+        }
+
+        @Override
+        public int getTotal() {
+            return pl.size();
+        }
+    }
+
+    /**
+     * The documents that occur in all of several postings lists. The
+     * shortest list leads, and the others gallop to its docIDs.
+     */
+    static class Intersection extends Streaming {
+        /** The postings lists, in query order */
+        final List<PostingsList> lists;
+
+        /** Current entry in every list */
+        final int[] pos;
+
+        /** The lists from the shortest to the longest */
+        private final Integer[] order;
+
+        Intersection(List<PostingsList> lists) {
+            this.lists = lists;
+            this.pos = new int[lists.size()];
+            this.order = new Integer[lists.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Integer.compare(lists.get(a).size(), lists.get(b).size()));
+        }
+
+        /**
+         * Positions every list on the next document they all contain, or
+         * returns -1 if there is none.
+         */
+        int align() {
+            if (lists.isEmpty())
+                return -1;
+
+            PostingsList lead = lists.get(order[0]);
+            while (pos[order[0]] < lead.size()) {
+                int docID = lead.get(pos[order[0]]).docID;
+                boolean all = true;
+                for (int k = 1; k < order.length; k++) {
+                    int l = order[k];
+                    PostingsList pl = lists.get(l);
+                    pos[l] = gallop(pl, pos[l], docID);
+                    if (pos[l] == pl.size())
+                        return -1;
+                    int other = pl.get(pos[l]).docID;
+                    if (other != docID) {
+                        pos[order[0]] = gallop(lead, pos[order[0]], other);
+                        all = false;
+                        break;
+                    }
+                }
+                if (all)
+                    return docID;
+            }
+            return -1;
+        }
+
+        @Override
+        int findNext() {
+            int docID = align();
+            if (docID != -1)
+                pos[order[0]]++;
+            return docID;
+        }
+    }
+
+    /**
+     * The documents in which the terms occur as a phrase, i.e. at
+     * consecutive positions in query order.
+     */
+    static class Phrase extends Intersection {
+
+        Phrase(List<PostingsList> lists) {
+            super(lists);
+        }
+
+        @Override
+        int findNext() {
+            for (;;) {
+                int docID = align();
+                if (docID == -1)
+                    return -1;
+
+                boolean match = isPhrase();
+                for (int l = 0; l < pos.length; l++) {
+                    if (pos[l] < lists.get(l).size() && lists.get(l).get(pos[l]).docID == docID)
+                        pos[l]++;
+                }
+                if (match)
+                    return docID;
+            }
+        }
+
+        /** Returns true if the current entries contain the phrase. */
+        private boolean isPhrase() {
+            List<Integer> first = lists.get(0).get(pos[0]).getPositionList();
+            for (int p : first) {
+                boolean found = true;
+                for (int j = 1; j < pos.length && found; j++) {
+                    List<Integer> positions = lists.get(j).get(pos[j]).getPositionList();
+                    found = Collections.binarySearch(positions, p + j) >= 0;
+                }
+                if (found)
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /** Returns the postings lists of the terms, in query order. */
+    static ArrayList<PostingsList> getLists(ArrayList<TokenIndexData> postingsLists) {
+        ArrayList<PostingsList> lists = new ArrayList<>();
+        for (TokenIndexData pt : postingsLists) {
+            lists.add(pt.postingsList);
+        }
+        return lists;
+    }
+}
@@ -0,0 +1,307 @@
+package ir;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * The result of a search: a list of documents with their scores, stored as
+ * parallel docID and score arrays.
+ *
+ * Rankers build a new ResultList for every query instead of writing scores
+ * into the PostingsEntries of the index, so the index can be shared by
+ * concurrent searches. A ResultList must not be modified once it has been
+ * returned by the Searcher, since it may also be shared through the cache;
+ * the cache freezes the lists it holds, and a frozen list throws
+ * UnsupportedOperationException instead of changing.
+ */
+public class ResultList {
+
+    private int[] docIDs;
+    private double[] scores;
+    private int size = 0;
+
+    /** Number of leading documents that are in their final ranked order */
+    private int sortedUpTo = 0;
+
+    /** True once the list may be shared and must no longer change */
+    private volatile boolean frozen = false;
+
+    public ResultList() {
+        this(16);
+    }
+
+    public ResultList(int capacity) {
+        docIDs = new int[Math.max(capacity, 1)];
+        scores = new double[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Creates an unscored result list with the documents of a PostingsList,
+     * in the same order.
+     */
+    public ResultList(PostingsList pl) {
+        this(pl.size());
+        for (PostingsEntry pe : pl) {
+            add(pe.docID, 0.0);
+        }
+    }
+
+    /** Appends a document and returns its index in the list. */
+    public int add(int docID, double score) {
+        checkNotFrozen();
+        if (size == docIDs.length) {
+            docIDs = Arrays.copyOf(docIDs, 2 * size);
+            scores = Arrays.copyOf(scores, 2 * size);
+        }
+        docIDs[size] = docID;
+        scores[size] = score;
+        sortedUpTo = 0;
+        return size++;
+    }
+
+    /** Appends all documents of another list. */
+    public void addAll(ResultList other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.docIDs[i], other.scores[i]);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getDocID(int i) {
+        return docIDs[i];
+    }
+
+    public double getScore(int i) {
+        return scores[i];
+    }
+
+    public void setScore(int i, double score) {
+        checkNotFrozen();
+        scores[i] = score;
+        sortedUpTo = 0;
+    }
+
+    public void addScore(int i, double score) {
+        checkNotFrozen();
+        scores[i] += score;
+        sortedUpTo = 0;
+    }
+
+    /** Returns the sum of all scores. */
+    public double getScoreSum() {
+        double sum = 0.0;
+        for (int i = 0; i < size; i++) {
+            sum += scores[i];
+        }
+        return sum;
+    }
+
+    /** Divides every score by <code>denominator</code>. */
+    public void divideScores(double denominator) {
+        checkNotFrozen();
+        for (int i = 0; i < size; i++) {
+            scores[i] /= denominator;
+        }
+    }
+
+    /**
+     * Sorts the documents by descending score. Documents with equal scores
+     * keep their relative order.
+     */
+    public void sort() {
+        checkNotFrozen();
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(scores[b], scores[a]));
+
+        int[] sortedIDs = new int[docIDs.length];
+        double[] sortedScores = new double[scores.length];
+        for (int i = 0; i < size; i++) {
+            sortedIDs[i] = docIDs[order[i]];
+            sortedScores[i] = scores[order[i]];
+        }
+        docIDs = sortedIDs;
+        scores = sortedScores;
+        sortedUpTo = size;
+    }
+
+    /**
+     * Moves the <code>k</code> best documents to the front of the list, in
+     * the order <code>sort</code> would give them, and leaves the others in
+     * their current relative order. A list that is already sorted that far is
+     * not touched, so fetching the next page of a ranked list only selects
+     * the documents of that page.
+     */
+    public void sortTop(int k) {
+        k = Math.min(k, size);
+        if (k <= sortedUpTo)
+            return;
+        checkNotFrozen();
+
+        int wanted = k - sortedUpTo;
+        if (wanted == size - sortedUpTo) {
+            /** Everything left is wanted, so sort the rest */
+            int from = sortedUpTo;
+            Integer[] order = new Integer[size - from];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = from + i;
+            }
+            Arrays.sort(order, (a, b) -> Double.compare(scores[b], scores[a]));
+            int[] restIDs = new int[order.length];
+            double[] restScores = new double[order.length];
+            for (int i = 0; i < order.length; i++) {
+                restIDs[i] = docIDs[order[i]];
+                restScores[i] = scores[order[i]];
+            }
+            System.arraycopy(restIDs, 0, docIDs, from, restIDs.length);
+            System.arraycopy(restScores, 0, scores, from, restScores.length);
+            sortedUpTo = size;
+            return;
+        }
+
+        /** Select the best remaining documents with a heap whose head is the worst of them */
+        PriorityQueue<Integer> heap = new PriorityQueue<>(wanted, (a, b) -> {
+            int c = Double.compare(scores[a], scores[b]);
+            return c != 0 ? c : Integer.compare(b, a);
+        });
+        for (int i = sortedUpTo; i < size; i++) {
+            if (heap.size() < wanted) {
+                heap.add(i);
+            } else {
+                int worst = heap.peek();
+                if (scores[i] > scores[worst]) {
+                    heap.poll();
+                    heap.add(i);
+                }
+            }
+        }
+
+        Integer[] selected = heap.toArray(new Integer[0]);
+        Arrays.sort(selected, (a, b) -> {
+            int c = Double.compare(scores[b], scores[a]);
+            return c != 0 ? c : Integer.compare(a, b);
+        });
+        boolean[] isSelected = new boolean[size - sortedUpTo];
+        for (int i : selected) {
+            isSelected[i - sortedUpTo] = true;
+        }
+
+        int[] restIDs = new int[size - sortedUpTo];
+        double[] restScores = new double[size - sortedUpTo];
+        int j = 0;
+        for (int i : selected) {
+            restIDs[j] = docIDs[i];
+            restScores[j++] = scores[i];
+        }
+        for (int i = sortedUpTo; i < size; i++) {
+            if (!isSelected[i - sortedUpTo]) {
+                restIDs[j] = docIDs[i];
+                restScores[j++] = scores[i];
+            }
+        }
+        System.arraycopy(restIDs, 0, docIDs, sortedUpTo, restIDs.length);
+        System.arraycopy(restScores, 0, scores, sortedUpTo, restScores.length);
+        sortedUpTo = k;
+    }
+
+    /**
+     * Returns a new list with the documents from <code>from</code> up to,
+     * but not including, <code>to</code>.
+     */
+    public ResultList subList(int from, int to) {
+        to = Math.min(to, size);
+        ResultList sub = new ResultList(Math.max(0, to - from));
+        for (int i = from; i < to; i++) {
+            sub.add(docIDs[i], scores[i]);
+        }
+        return sub;
+    }
+
+    /**
+     * Merges two lists that are sorted by descending score into a new sorted
+     * list. On equal scores, documents from <code>a</code> come first.
+     */
+    public static ResultList merge(ResultList a, ResultList b) {
+        return merge(a, b, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Merges two lists that are sorted by descending score into a new sorted
+     * list of at most <code>limit</code> documents, the best of both.
+     */
+    public static ResultList merge(ResultList a, ResultList b, int limit) {
+        int n = (int) Math.min((long) a.size + b.size, limit);
+        ResultList merged = new ResultList(n);
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size && merged.size < n) {
+            if (a.scores[i] >= b.scores[j]) {
+                merged.add(a.docIDs[i], a.scores[i]);
+                i++;
+            } else {
+                merged.add(b.docIDs[j], b.scores[j]);
+                j++;
+            }
+        }
+        for (; i < a.size && merged.size < n; i++) {
+            merged.add(a.docIDs[i], a.scores[i]);
+        }
+        for (; j < b.size && merged.size < n; j++) {
+            merged.add(b.docIDs[j], b.scores[j]);
+        }
+        merged.sortedUpTo = merged.size;
+        return merged;
+    }
+
+    /** Shrinks the arrays to the number of documents in the list. */
+    public void trimToSize() {
+        checkNotFrozen();
+        if (docIDs.length > size) {
+            docIDs = Arrays.copyOf(docIDs, size);
+            scores = Arrays.copyOf(scores, size);
+        }
+    }
+
+    /**
+     * Makes the list read-only, so it can be shared between searches. A list
+     * that is already sorted as far as it is read keeps working with
+     * <code>sortTop</code>, which does not need to change it.
+     */
+    public void freeze() {
+        frozen = true;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen)
+            throw new UnsupportedOperationException("The result list is shared and cannot be modified");
+    }
+
+    /** Returns an estimate of the memory used by the list, in bytes. */
+    public long getBytes() {
+        return 12L * docIDs.length;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            if (i > 0)
+                sb.append(PostingsList.ENTRY_DELIM);
+            sb.append(docIDs[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ *  Runs a file of queries against the search engine from several client
+ *  threads at once, and reports throughput and latency for an increasing
+ *  number of clients.
+ */
+public class SearchBenchmark {
+
+    String dirName = null;
+    String patternsFile = null;
+    String queriesFile = null;
+    boolean persistent = false;
+    boolean isIndexing = true;
+    boolean useCache = false;
+    boolean orderByPagerank = false;
+    int limit = Integer.MAX_VALUE;
+    long parallelThreshold = Searcher.PARALLEL_THRESHOLD;
+    boolean scoreAtATime = false;
+    boolean useChampionLists = false;
+    int championListSize = ChampionLists.DEFAULT_R;
+    boolean reportRecall = false;
+    boolean reportMetrics = false;
+    boolean usePermuterm = false;
+    boolean useTermDictionary = false;
+    long postingsBudget = Long.MAX_VALUE;
+    int maxThreads = Runtime.getRuntime().availableProcessors();
+    int repetitions = 5;
+    QueryType queryType = QueryType.RANKED_QUERY;
+    RankingType rankingType = RankingType.TF_IDF;
+
+    Index index;
+    KGramIndex kgIndex = new KGramIndex(2);
+    Searcher searcher;
+
+
+    /** Builds or loads the index. */
+    void setup() {
+        Index.championLists.r = championListSize;
+        index = persistent ? new PersistentHashedIndex() : new HashedIndex();
+        if (persistent && !isIndexing) {
+            try {
+                kgIndex.read(PersistentHashedIndex.INDEXDIR);
+            } catch (IOException e) {
+                System.err.println("[INFO] No k-gram index on disk, wildcard queries will find nothing");
+            }
+        }
+        if (isIndexing) {
+            Indexer indexer = new Indexer(index, kgIndex, patternsFile);
+            long startTime = System.currentTimeMillis();
+            if (orderByPagerank)
+                indexer.processFilesByPagerank(Arrays.asList(new File(dirName)));
+            else
+                indexer.processFiles(new File(dirName), true);
+            index.cleanup();
+            if (persistent) {
+                try {
+                    kgIndex.write(PersistentHashedIndex.INDEXDIR);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            System.err.printf("Indexing done in %.1f seconds.%n", (System.currentTimeMillis() - startTime) / 1000.0);
+        }
+        searcher = new Searcher(index, kgIndex);
+        searcher.parallelThreshold = parallelThreshold;
+        searcher.scoreAtATime = scoreAtATime;
+        searcher.postingsBudget = postingsBudget;
+        searcher.useChampionLists = useChampionLists;
+        if (usePermuterm)
+            searcher.wildcardIndex = PermutermIndex.build(kgIndex);
+        if (useTermDictionary)
+            searcher.wildcardIndex = TermDictionary.build(kgIndex);
+        if (!useCache) {
+            searcher.cache = null;
+            searcher.expansions = null;
+        }
+    }
+
+
+    /** Reads one query per line from the queries file. */
+    ArrayList<String> readQueries() throws IOException {
+        ArrayList<String> queries = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(queriesFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.toLowerCase().trim();
+                if (!line.isEmpty())
+                    queries.add(line);
+            }
+        }
+        return queries;
+    }
+
+
+    /**
+     *  Runs every query <code>repetitions</code> times on each of
+     *  <code>threads</code> client threads.
+     */
+    void run(ArrayList<String> queries, int threads) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<long[]>> clients = new ArrayList<>();
+
+        long startTime = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            clients.add(pool.submit(() -> {
+                long[] latencies = new long[queries.size() * repetitions];
+                int k = 0;
+                for (int r = 0; r < repetitions; r++) {
+                    for (String q : queries) {
+                        long start = System.nanoTime();
+                        searcher.search(new Query(q), queryType, rankingType, limit);
+                        latencies[k++] = System.nanoTime() - start;
+                    }
+                }
+                return latencies;
+            }));
+        }
+
+        long[] all = new long[0];
+        for (Future<long[]> client : clients) {
+            long[] latencies = client.get();
+            int offset = all.length;
+            all = Arrays.copyOf(all, offset + latencies.length);
+            System.arraycopy(latencies, 0, all, offset, latencies.length);
+        }
+        double elapsed = (System.nanoTime() - startTime) / 1e9;
+        pool.shutdown();
+
+        Arrays.sort(all);
+        System.out.printf("%2d client(s): %8.1f queries/s, p50 %8.3f ms, p99 %8.3f ms, max %8.3f ms%n",
+                threads, all.length / elapsed, percentile(all, 0.50), percentile(all, 0.99), all[all.length - 1] / 1e6);
+    }
+
+
+    /**
+     *  Compares the top results of every query with those of exhaustive
+     *  ranking, and reports the recall and the mean latency of both.
+     */
+    void reportRecall(ArrayList<String> queries) {
+        Searcher exhaustive = new Searcher(index, kgIndex);
+        exhaustive.parallelThreshold = parallelThreshold;
+        exhaustive.cache = null;
+        int k = limit == Integer.MAX_VALUE ? 10 : limit;
+
+        double recallSum = 0.0;
+        long approximateNanos = 0;
+        long exhaustiveNanos = 0;
+        int measured = 0;
+        for (String q : queries) {
+            long start = System.nanoTime();
+            ResultList exact = null;
+            for (int r = 0; r < repetitions; r++)
+                exact = exhaustive.search(new Query(q), queryType, rankingType, k);
+            long exactTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            ResultList approximate = null;
+            for (int r = 0; r < repetitions; r++)
+                approximate = searcher.search(new Query(q), queryType, rankingType, k);
+            long approximateTime = System.nanoTime() - start;
+
+            if (exact == null || exact.isEmpty())
+                continue;
+
+            HashSet<Integer> relevant = new HashSet<>();
+            for (int i = 0; i < exact.size(); i++)
+                relevant.add(exact.getDocID(i));
+            int found = 0;
+            for (int i = 0; approximate != null && i < approximate.size(); i++) {
+                if (relevant.contains(approximate.getDocID(i)))
+                    found++;
+            }
+            double recall = found / (double) relevant.size();
+
+            System.out.printf("%-40s recall@%d %.2f, %8.3f ms (exhaustive %8.3f ms)%n",
+                    q, k, recall, approximateTime / 1e6 / repetitions, exactTime / 1e6 / repetitions);
+            recallSum += recall;
+            approximateNanos += approximateTime;
+            exhaustiveNanos += exactTime;
+            measured++;
+        }
+
+        if (measured > 0)
+            System.out.printf("Mean recall@%d %.3f, %8.3f ms per query (exhaustive %8.3f ms)%n",
+                    k, recallSum / measured, approximateNanos / 1e6 / repetitions / measured,
+                    exhaustiveNanos / 1e6 / repetitions / measured);
+    }
+
+
+    /** Starts collecting metrics from scratch, if they are reported. */
+    void startMetrics() {
+        if (reportMetrics) {
+            Metrics.reset();
+            Metrics.enable();
+        }
+    }
+
+
+    /** Prints the metrics collected since <code>startMetrics</code>. */
+    void printMetrics() {
+        if (reportMetrics)
+            System.out.print(Metrics.dump());
+    }
+
+
+    /** Returns a percentile of sorted latencies, in milliseconds. */
+    static double percentile(long[] sorted, double p) {
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, i)] / 1e6;
+    }
+
+
+    /** Prints usage information. */
+    static void printHelpMessage() {
+        System.err.println( "The following parameters are available: " );
+        System.err.println( "  -d <dirname> : directory to be indexed (mandatory unless -ni)" );
+        System.err.println( "  -p <filename> : name of the file containing regular expressions for non-standard words (optional)" );
+        System.err.println( "  -q <filename> : file with one query per line (mandatory)" );
+        System.err.println( "  -t <number> : maximal number of client threads (optional)" );
+        System.err.println( "  -n <number> : number of times each client runs the queries (optional)" );
+        System.err.println( "  -qt <type> : query type, e.g. RANKED_QUERY (optional)" );
+        System.err.println( "  -rt <type> : ranking type, e.g. TF_IDF (optional)" );
+        System.err.println( "  -persistent : use the persistent hashed index (optional)" );
+        System.err.println( "  -ni : do not index, use the persistent index on disk (optional)" );
+        System.err.println( "  -cache : enable the query result and expansion caches (optional)" );
+        System.err.println( "  -k <number> : number of results to retrieve per query (optional)" );
+        System.err.println( "  -pr : assign docIDs in descending PageRank order (optional)" );
+        System.err.println( "  -pt <number> : number of postings above which a ranked query is scored in parallel (optional)" );
+        System.err.println( "  -saat : score tf-idf queries a segment at a time over impact-ordered postings (optional)" );
+        System.err.println( "  -pb <number> : maximal number of postings a score-at-a-time query may process (optional)" );
+        System.err.println( "  -cl : score ranked queries against the champion lists first (optional)" );
+        System.err.println( "  -cr <number> : number of postings per criterion in the champion lists that are built (optional)" );
+        System.err.println( "  -recall : report recall and latency against exhaustive ranking instead of throughput (optional)" );
+        System.err.println( "  -permuterm : expand wildcards through a permuterm index (optional)" );
+        System.err.println( "  -termdict : expand wildcards by walking a term dictionary with an automaton (optional)" );
+        System.err.println( "  -metrics : report per-stage latencies and counters after the measured runs (optional)" );
+    }
+
+
+    /** Main */
+    public static void main( String[] args ) throws Exception {
+        SearchBenchmark b = new SearchBenchmark();
+        int i = 0;
+        while ( i < args.length ) {
+            String arg = args[i++];
+            if ( arg.equals( "-persistent" )) {
+                b.persistent = true;
+            } else if ( arg.equals( "-ni" )) {
+                b.persistent = true;
+                b.isIndexing = false;
+            } else if ( arg.equals( "-cache" )) {
+                b.useCache = true;
+            } else if ( arg.equals( "-pr" )) {
+                b.orderByPagerank = true;
+            } else if ( arg.equals( "-saat" )) {
+                b.scoreAtATime = true;
+            } else if ( arg.equals( "-cl" )) {
+                b.useChampionLists = true;
+            } else if ( arg.equals( "-permuterm" )) {
+                b.usePermuterm = true;
+            } else if ( arg.equals( "-termdict" )) {
+                b.useTermDictionary = true;
+            } else if ( arg.equals( "-metrics" )) {
+                b.reportMetrics = true;
+            } else if ( arg.equals( "-recall" )) {
+                b.reportRecall = true;
+            } else if ( i < args.length && arg.equals( "-pb" )) {
+                b.postingsBudget = Long.parseLong( args[i++] );
+            } else if ( i < args.length && arg.equals( "-cr" )) {
+                b.championListSize = Integer.parseInt( args[i++] );
+            } else if ( i < args.length && arg.equals( "-k" )) {
+                b.limit = Integer.parseInt( args[i++] );
+            } else if ( i < args.length && arg.equals( "-d" )) {
+                b.dirName = args[i++];
+            } else if ( i < args.length && arg.equals( "-p" )) {
+                b.patternsFile = args[i++];
+            } else if ( i < args.length && arg.equals( "-q" )) {
+                b.queriesFile = args[i++];
+            } else if ( i < args.length && arg.equals( "-t" )) {
+                b.maxThreads = Integer.parseInt( args[i++] );
+            } else if ( i < args.length && arg.equals( "-n" )) {
+                b.repetitions = Integer.parseInt( args[i++] );
+            } else if ( i < args.length && arg.equals( "-qt" )) {
+                b.queryType = QueryType.valueOf( args[i++] );
+            } else if ( i < args.length && arg.equals( "-pt" )) {
+                b.parallelThreshold = Long.parseLong( args[i++] );
+            } else if ( i < args.length && arg.equals( "-rt" )) {
+                b.rankingType = RankingType.valueOf( args[i++] );
+            } else {
+                System.err.println( "Unrecognized parameter: " + arg );
+                printHelpMessage();
+                return;
+            }
+        }
+        if ( b.queriesFile == null || ( b.isIndexing && b.dirName == null )) {
+            printHelpMessage();
+            return;
+        }
+
+        b.setup();
+        ArrayList<String> queries = b.readQueries();
+
+        if ( b.reportRecall ) {
+            /* Warm up before measuring */
+            b.reportRecall(queries);
+            b.startMetrics();
+            b.reportRecall(queries);
+            b.printMetrics();
+            System.exit(0);
+        }
+
+        /* Warm up before measuring */
+        b.run(queries, 1);
+        b.startMetrics();
+        for ( int threads = 1; threads <= b.maxThreads; threads *= 2 ) {
+            b.run(queries, threads);
+        }
+        b.printMetrics();
+        System.exit(0);
+    }
+}
@@ -10,13 +10,18 @@ package ir;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.io.*;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.StringTokenizer;
 
 
@@ -32,7 +37,10 @@ public class SearchGUI extends JFrame {
     private Query query;
 
     /**  The results of a search query. */
-    private PostingsList results;
+    private ResultList results;
+
+    /**  The evaluation state of the query, from which more results are fetched. */
+    private ResultCursor cursor;
 
     /**  The query type (either intersection, phrase, or ranked). */
     QueryType queryType = QueryType.INTERSECTION_QUERY;
@@ -43,6 +51,9 @@ public class SearchGUI extends JFrame {
     /**  Max number of results to display. */
     static final int MAX_RESULTS = 10;
 
+    /**  Max number of completions suggested while typing. */
+    static final int MAX_COMPLETIONS = 8;
+
     /** Demarkator between file name and file contents in the file contents text area*/
     private static final String MARKER = "----------------------------------------------------";
 
@@ -56,6 +67,9 @@ public class SearchGUI extends JFrame {
     public JTextField queryWindow = new JTextField( "", 28 );
     public JTextArea docTextView = new JTextArea( "", 15, 28 );
     private JScrollPane docViewPane = new JScrollPane( docTextView );
+    private JPopupMenu completionMenu = new JPopupMenu();
+    /**  True while the search box is set to a chosen completion, which should not be completed again. */
+    private boolean choosingCompletion = false;
     private Font queryFont = new Font( "Arial", Font.BOLD, 24 );
     private Font resultFont = new Font( "Arial", Font.BOLD, 16 );
     JMenuBar menuBar = new JMenuBar();
@@ -67,6 +81,7 @@ public class SearchGUI extends JFrame {
     JMenuItem quitItem = new JMenuItem( "Quit" );
     JRadioButtonMenuItem intersectionItem = new JRadioButtonMenuItem( "Intersection query" );
     JRadioButtonMenuItem phraseItem = new JRadioButtonMenuItem( "Phrase query" );
+    JRadioButtonMenuItem booleanItem = new JRadioButtonMenuItem( "Boolean query" );
     JRadioButtonMenuItem rankedItem = new JRadioButtonMenuItem( "Ranked retrieval" );
     JRadioButtonMenuItem tfidfItem = new JRadioButtonMenuItem( "tf-idf" );
     JRadioButtonMenuItem pagerankItem = new JRadioButtonMenuItem( "PageRank" );
@@ -105,6 +120,7 @@ public class SearchGUI extends JFrame {
         fileMenu.add( quitItem );
         optionsMenu.add( intersectionItem );
         optionsMenu.add( phraseItem );
+        optionsMenu.add( booleanItem );
         optionsMenu.add( rankedItem );
         rankingMenu.add( tfidfItem );
         rankingMenu.add( pagerankItem );
@@ -112,6 +128,7 @@ public class SearchGUI extends JFrame {
         rankingMenu.add( HITSItem );
         queries.add( intersectionItem );
         queries.add( phraseItem );
+        queries.add( booleanItem );
         queries.add( rankedItem );
         ranking.add( tfidfItem );
         ranking.add( pagerankItem );
@@ -145,6 +162,7 @@ public class SearchGUI extends JFrame {
          */
         Action search = new AbstractAction() {
             public void actionPerformed( ActionEvent e ) {
+                completionMenu.setVisible( false );
                 // Empty the results window
                 displayInfoText( " " );
                 // Turn the search string into a Query
@@ -160,13 +178,12 @@ public class SearchGUI extends JFrame {
                     }
                     query.relevanceFeedback( results, relevant, engine );
                 }
-                // Search and print results. Access to the index is synchronized since
-                // we don't want to search at the same time we're indexing new files
-                // (this might corrupt the index).
+                // Search and print results. The searcher reads a published snapshot
+                // of the index, so this does not need to wait for indexing.
                 long startTime = System.currentTimeMillis();
-                synchronized ( engine.indexLock ) {
-                    results = engine.searcher.search( query, queryType, rankingType );
-                }
+                // Only the results that are displayed are fetched from the cursor.
+                cursor = engine.searcher.openCursor( query, queryType, rankingType, MAX_RESULTS );
+                results = cursor == null ? null : cursor.next( MAX_RESULTS );
                 long elapsedTime = System.currentTimeMillis() - startTime;
                 // Display the first few results + a button to see all results.
                 //
@@ -174,22 +191,21 @@ public class SearchGUI extends JFrame {
                 // might take a long time, if there are many results.
                 if ( results != null ) {
                     displayResults( MAX_RESULTS, elapsedTime/1000.0 );
+                    if ( engine.autocompleter != null )
+                        engine.autocompleter.recordQuery( queryString );
                 } else {
                     displayInfoText( "Found 0 matching document(s)" );
         		    
                     if (engine.speller != null) {
-                        startTime = System.currentTimeMillis();
                         SpellingOptionsDialog dialog = new SpellingOptionsDialog(50);
+                        long spellingStart = Metrics.start();
                         String[] corrections = engine.speller.check(query, 10);
-                        elapsedTime = System.currentTimeMillis() - startTime;
-                        System.err.println("It took " + elapsedTime / 1000.0 + "s to check spelling.");
+                        Metrics.stop(Metrics.Stage.SPELLING, spellingStart);
                         if (corrections != null && corrections.length > 0) {
                             String choice = dialog.show(corrections, corrections[0]);
                             if (choice != null) {
                                 queryWindow.setText(choice);
                                 queryWindow.grabFocus();
-                                elapsedTime = System.currentTimeMillis() - startTime;
-                                System.err.println("It took " + elapsedTime / 1000.0 + "s to check spelling");
                                 this.actionPerformed(e);
                             }
                         }
@@ -204,6 +220,19 @@ public class SearchGUI extends JFrame {
                             KeyStroke.getKeyStroke( "ENTER" ),
                             JComponent.WHEN_FOCUSED );
 
+        // Completions of the query are suggested while it is typed.
+        completionMenu.setFocusable( false );
+        queryWindow.getDocument().addDocumentListener( new DocumentListener() {
+            public void insertUpdate( DocumentEvent e ) {
+                SwingUtilities.invokeLater( () -> suggestCompletions() );
+            }
+            public void removeUpdate( DocumentEvent e ) {
+                SwingUtilities.invokeLater( () -> suggestCompletions() );
+            }
+            public void changedUpdate( DocumentEvent e ) {
+            }
+            });
+
         Action quit = new AbstractAction() {
             public void actionPerformed( ActionEvent e ) {
                 System.exit( 0 );
@@ -226,6 +255,13 @@ public class SearchGUI extends JFrame {
             };
         phraseItem.addActionListener( setPhraseQuery );
 
+        Action setBooleanQuery = new AbstractAction() {
+            public void actionPerformed( ActionEvent e ) {
+                queryType = QueryType.BOOLEAN_QUERY;
+            }
+            };
+        booleanItem.addActionListener( setBooleanQuery );
+
         Action setRankedQuery = new AbstractAction() {
             public void actionPerformed( ActionEvent e ) {
                 queryType = QueryType.RANKED_QUERY;
@@ -266,6 +302,35 @@ public class SearchGUI extends JFrame {
 
     /* ----------------------------------------------- */
 
+    /**
+     *  Shows the completions of the text in the search box below it. Choosing
+     *  one puts it in the search box.
+     */
+    private void suggestCompletions() {
+        completionMenu.setVisible( false );
+        String prefix = queryWindow.getText();
+        Autocompleter autocompleter = engine.autocompleter;
+        if ( choosingCompletion || autocompleter == null || prefix.trim().isEmpty() || !queryWindow.isShowing() )
+            return;
+        List<String> completions = autocompleter.complete( prefix, MAX_COMPLETIONS );
+        if ( completions.isEmpty() )
+            return;
+
+        completionMenu.removeAll();
+        for ( String completion : completions ) {
+            JMenuItem item = new JMenuItem( completion );
+            item.setFont( resultFont );
+            item.addActionListener( e -> {
+                choosingCompletion = true;
+                queryWindow.setText( completion );
+                SwingUtilities.invokeLater( () -> choosingCompletion = false );
+                queryWindow.grabFocus();
+            });
+            completionMenu.add( item );
+        }
+        completionMenu.show( queryWindow, 0, queryWindow.getHeight() );
+    }
+
     /**
      *  Clears the results window and writes an info text in it.
      */
@@ -285,13 +350,29 @@ public class SearchGUI extends JFrame {
      *  @param elapsedTime Shows how long time it took to compute the results.
      */
     void displayResults( int maxResultsToDisplay, double elapsedTime ) {
-        displayInfoText( String.format( "Found %d matching document(s) in %.3f seconds", results.size(), elapsedTime ));
-        box = new JCheckBox[maxResultsToDisplay];
+        // Fetch the results that have not been displayed before
+        if ( results.size() < maxResultsToDisplay && cursor.hasMore() ) {
+            results.addAll( cursor.next( maxResultsToDisplay - results.size() ));
+        }
+        int total = cursor.getTotal();
+        String found = total >= 0 ? String.valueOf( total ) : results.size() + ( cursor.hasMore() ? "+" : "" );
+        displayInfoText( String.format( "Found %s matching document(s) in %.3f seconds", found, elapsedTime ));
+        box = new JCheckBox[Math.min( maxResultsToDisplay, results.size() )];
         int i;
+        ArrayList<String> terms = new ArrayList<String>();
+        for ( Query.QueryTerm qt : query.queryterm ) {
+            terms.add( qt.term );
+        }
         for ( i=0; i<results.size() && i<maxResultsToDisplay; i++ ) {
-            String description = i + ". " + displayableFileName( engine.index.docNames.get( results.get(i).docID ));
+            final int docID = results.getDocID(i);
+            final String fileName = displayableFileName( engine.index.docNames.get( docID ));
+            String description = i + ". " + fileName;
             if ( queryType == QueryType.RANKED_QUERY ) {
-                description += "   " + String.format( "%.5f", results.get(i).score );
+                description += "   " + String.format( "%.5f", results.getScore(i) );
+            }
+            String snippet = Index.documentStore.getSnippet( docID, terms, engine.index, engine.patterns_file );
+            if ( snippet != null ) {
+                description = "<html>" + DocumentStore.escape( description ) + "<br><small>" + snippet + "</small></html>";
             }
             box[i] = new JCheckBox();
             box[i].setSelected( false );
@@ -305,50 +386,27 @@ public class SearchGUI extends JFrame {
 
             MouseAdapter showDocument = new MouseAdapter() {
                 public void mouseClicked(MouseEvent e) {
-                    String fileName = ((JLabel)e.getSource()).getText().split(" ")[1];
-                    String contents = "Displaying contents of " + fileName + "\n" + MARKER + "\n";
-                    String line;
-
-                    Queue<String> fqueue = new LinkedList<>();
-
-                    for (int j = 0, sz = engine.dirNames.size(); j < sz; j++) {
-                        File curDir = new File(engine.dirNames.get(j));
-                        fqueue.offer(curDir.toString());
-
-                        String[] directories = curDir.list(new FilenameFilter() {
-                            @Override
-                            public boolean accept(File current, String name) {
-                                return new File(current, name).isDirectory();
-                            }
-                        });
-
-                        for (String dir : directories) {
-                            fqueue.offer(new File(curDir.toString(), dir).toString());
+                    StringBuilder contents = new StringBuilder( "Displaying contents of " + fileName + "\n" + MARKER + "\n" );
+
+                    // The document store holds the text of every indexed document;
+                    // documents from an older index are read from their path instead.
+                    String text = Index.documentStore.get( docID );
+                    if ( text == null ) {
+                        try {
+                            text = new String( Files.readAllBytes( Paths.get( Index.docNames.get( docID ))), StandardCharsets.UTF_8 );
+                        } catch ( IOException exc ) {
                         }
                     }
 
-                    boolean foundFile = false;
-                    while(!fqueue.isEmpty()) {
-                        String dirName = fqueue.poll();
-                        File file = new File(dirName, fileName);
-
-                        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-                            while ((line = br.readLine()) != null) {
-                                contents += line.trim() + "\n";
-                            }
-                            foundFile = true;
-                            break;
-                        } catch (FileNotFoundException exc) {
-                        } catch (IOException exc) {
-                        } catch (NullPointerException exc) {
+                    if ( text != null ) {
+                        for ( String line : text.split( "\n" )) {
+                            contents.append( line.trim() ).append( "\n" );
                         }
+                    } else {
+                        contents.append( "No file found\n" );
                     }
 
-                    if (!foundFile) {
-                        contents += "No file found\n";
-                    }
-
-                    docTextView.setText(contents);
+                    docTextView.setText(contents.toString());
                     docTextView.setCaretPosition(0);
                 }
             };
@@ -359,7 +417,7 @@ public class SearchGUI extends JFrame {
             resultWindow.add( result );
         }
         // If there were many results, give the user an option to see all of them.
-        if ( i<results.size() ) {
+        if ( i<results.size() || cursor.hasMore() ) {
             JPanel actionButtons = new JPanel();
             actionButtons.setLayout(new BoxLayout(actionButtons, BoxLayout.X_AXIS));
             actionButtons.setAlignmentX(Component.LEFT_ALIGNMENT);
@@ -377,12 +435,12 @@ public class SearchGUI extends JFrame {
 
             actionButtons.add(Box.createRigidArea(new Dimension(5,0)));
 
-            JButton displayAllBut = new JButton( "Display all " + results.size() + " results" );
+            JButton displayAllBut = new JButton( total >= 0 ? "Display all " + total + " results" : "Display all results" );
             displayAllBut.setFont( resultFont );
             actionButtons.add( displayAllBut );
             Action displayAll = new AbstractAction() {
                 public void actionPerformed( ActionEvent e ) {
-                    displayResults( results.size(), elapsedTime );
+                    displayResults( Integer.MAX_VALUE, elapsedTime );
                 }
             };
             displayAllBut.addActionListener( displayAll );
@@ -8,6 +8,8 @@
 package ir;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Searches an index for results of a query.
@@ -20,6 +22,9 @@ public class Searcher {
     /** The k-gram index to be searched by this Searcher */
     KGramIndex kgIndex;
 
+    /** Expands wildcard terms; the k-gram index unless another one is chosen */
+    volatile WildcardIndex wildcardIndex;
+
     private static final String DATADIR = "data";
     HITSRanker HITSRanker;
 
@@ -28,10 +33,69 @@ public class Searcher {
     /** How much the tfidf weigths during ranked query */
     private static final double RANK_WEIGHT = 0.1;
 
+    /** Cache of recent query results, or null to always search the index */
+    QueryCache cache = new QueryCache();
+
+    /** Cache of recent wildcard expansions, shared with the spell checker, or null to always expand */
+    volatile ExpansionCache expansions = new ExpansionCache();
+
+    /** Default number of postings above which a ranked query is scored in parallel */
+    public static final long PARALLEL_THRESHOLD = 200000;
+
+    /**
+     * A ranked query whose postings lists together hold at least this many
+     * postings is split into docID ranges that are scored in parallel.
+     */
+    long parallelThreshold = PARALLEL_THRESHOLD;
+
+    /** The pool that scores docID ranges of heavy queries */
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    /**
+     * If true, tf-idf queries are scored a segment at a time over
+     * impact-ordered postings, highest impacts first.
+     */
+    boolean scoreAtATime = false;
+
+    /** Maximum number of postings a score-at-a-time query may process */
+    long postingsBudget = Long.MAX_VALUE;
+
+    /**
+     * If true, tf-idf queries with a result limit are first scored against
+     * the champion lists of the index.
+     */
+    boolean useChampionLists = false;
+
+    /** Maximum number of impact-ordered postings built at query time that are kept */
+    private static final int MAX_IMPACT_POSTINGS = 256;
+
+    /**
+     * Impact-ordered postings of terms without an impact list, built at
+     * query time, by index generation and term, in access order
+     */
+    private final LinkedHashMap<String, ImpactPostings> impactPostings = new LinkedHashMap<String, ImpactPostings>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ImpactPostings> eldest) {
+            return size() > MAX_IMPACT_POSTINGS;
+        }
+    };
+
+    /** Maximum number of paginated queries whose evaluation state is kept */
+    private static final int MAX_CURSORS = 16;
+
+    /** Evaluation state of recent paginated queries, in access order */
+    private final LinkedHashMap<String, ResultCursor> cursors = new LinkedHashMap<String, ResultCursor>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ResultCursor> eldest) {
+            return size() > MAX_CURSORS;
+        }
+    };
+
     /** Constructor */
     public Searcher(Index index, KGramIndex kgIndex) {
         this.index = index;
         this.kgIndex = kgIndex;
+        this.wildcardIndex = kgIndex;
 
         HITSRanker = new HITSRanker(DATADIR + "/linksDavis.txt", DATADIR + "/davisTitles.txt", index);
     }
@@ -39,80 +103,181 @@ public class Searcher {
     /**
      * Searches the index for postings matching the query.
      * 
-     * @return A postings list representing the result of the query.
+     * @return The matching documents, ranked by score for ranked queries and
+     *         in docID order otherwise.
      */
-    public PostingsList search(Query query, QueryType queryType, RankingType rankingType) {
+    public ResultList search(Query query, QueryType queryType, RankingType rankingType) {
+        return search(query, queryType, rankingType, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Searches the index for postings matching the query, and returns at most
+     * <code>limit</code> of the best results. Rankings that can stop early,
+     * such as PageRank on an index numbered in PageRank order, only do the
+     * work needed for those results.
+     *
+     * The results may be shared with other searches through the cache, so
+     * they are frozen and cannot be modified.
+     */
+    public ResultList search(Query query, QueryType queryType, RankingType rankingType, int limit) {
 
         if (query.queryterm.size() == 0)
             return null;
 
-        try {
-            if (!query.containsWildcards()) {
-                if (queryType == QueryType.RANKED_QUERY) {
-                    if (rankingType == RankingType.TF_IDF) {
-                        return getTfidfQuery(query);
-                    } else if (rankingType == RankingType.COMBINATION) {
-                        return getCombinedQuery(query);
-                    } else if (rankingType == RankingType.PAGERANK) {
-                        return getPagerankQuery(query);
-                    } else if (rankingType == RankingType.HITS) {
-                        return getHITSQuery(query);
-                    }
-                }
+        long start = Metrics.start();
+        ResultList results = getCachedResults(query, queryType, rankingType, limit);
+        if (results != null)
+            results.freeze();
+        Metrics.stop(Metrics.Stage.SEARCH, start);
+        return results;
+    }
 
-                // Not sufficient number of words for other query
-                if (query.queryterm.size() < 2) {
-                    return index.getPostings(query.queryterm.get(0).term);
-                }
+    /**
+     * Returns the results of a query from the cache, or evaluates the query
+     * and caches them.
+     */
+    private ResultList getCachedResults(Query query, QueryType queryType, RankingType rankingType, int limit) {
+        if (cache == null)
+            return getResults(query, queryType, rankingType, limit);
+
+        String key = QueryCache.getKey(query, queryType, rankingType);
+        if (limit != Integer.MAX_VALUE)
+            key += " #" + limit;
+        ResultList cached = cache.get(key);
+        if (cached != null)
+            return cached;
+
+        int generation = Index.generation.get();
+        long startTime = System.nanoTime();
+        ResultList results = getResults(query, queryType, rankingType, limit);
+        cache.put(key, results, generation, System.nanoTime() - startTime);
 
-                if (queryType == QueryType.INTERSECTION_QUERY) {
-                    return getIntersectionQuery(query, null);
-                } else if (queryType == QueryType.PHRASE_QUERY) {
-                    return getPhraseQuery(query, new HashSet<>());
-                } else {
+        return results;
+    }
 
-                    String token = query.queryterm.get(0).term;
+    /**
+     * Returns the page of results from <code>offset</code> up to
+     * <code>offset + limit</code>. A request for the page that follows the
+     * previous page of the same query resumes the evaluation where that
+     * page stopped.
+     *
+     * @return The page, or null if the query cannot be evaluated
+     */
+    public ResultList search(Query query, QueryType queryType, RankingType rankingType, int offset, int limit) {
+        long start = Metrics.start();
+        String key = QueryCache.getKey(query, queryType, rankingType);
+
+        /** Take the cursor out of the map, so no other search uses it meanwhile */
+        ResultCursor cursor;
+        synchronized (cursors) {
+            cursor = cursors.remove(key);
+        }
+        if (cursor == null || cursor.generation != Index.generation.get() || cursor.getPosition() > offset) {
+            cursor = getCursor(query, queryType, rankingType, (int) Math.min(Integer.MAX_VALUE, (long) offset + limit));
+            if (cursor == null) {
+                Metrics.stop(Metrics.Stage.SEARCH, start);
+                return null;
+            }
+        }
 
-                    PostingsList list = index.getPostings(token);
+        cursor.skip(offset - cursor.getPosition());
+        ResultList page = cursor.next(limit);
 
-                    return list;
-                }
+        if (cursor.hasMore()) {
+            synchronized (cursors) {
+                cursors.put(key, cursor);
+            }
+        }
+        Metrics.stop(Metrics.Stage.SEARCH, start);
+        return page;
+    }
 
-            } else {
+    /**
+     * Starts evaluating a query whose results are fetched a page at a time.
+     * Unranked queries are evaluated as the pages are fetched. A ranked query
+     * is ranked through the query cache up to the first <code>limit</code>
+     * results when the cursor is opened, and ranked again with a larger
+     * limit if the pages go past them.
+     *
+     * @param limit The number of results that will be fetched first
+     * @return The cursor, or null if the query cannot be evaluated
+     */
+    public ResultCursor openCursor(Query query, QueryType queryType, RankingType rankingType, int limit) {
+        long start = Metrics.start();
+        ResultCursor cursor = getCursor(query, queryType, rankingType, limit);
+        Metrics.stop(Metrics.Stage.SEARCH, start);
+        return cursor;
+    }
 
-                List<Query> queries = query.getWildcardQueries(kgIndex);
+    private ResultCursor getCursor(Query query, QueryType queryType, RankingType rankingType, int limit) {
+        if (query.queryterm.size() == 0)
+            return null;
 
-                HashSet<Integer> matchedDocIDs = new HashSet<>();
+        try {
+            if (queryType == QueryType.RANKED_QUERY) {
+                ResultList ranked = getCachedResults(query, queryType, rankingType, limit);
+                return ranked == null ? null
+                        : new ResultCursor.Ranked(ranked, limit, n -> search(query, queryType, rankingType, n));
+            }
 
-                PostingsList res = new PostingsList();
-                if (queryType == QueryType.RANKED_QUERY) {
-                    return getRankedWildcardQuery(query.getWildcards(kgIndex), rankingType);
-                }
+            if (queryType == QueryType.BOOLEAN_QUERY)
+                return getBooleanQuery(query);
 
-                // Not sufficient number of words for other query
-                if (query.queryterm.size() < 2) {
-                    for (Query q: queries)
-                        res.addAll(index.getPostings(q.queryterm.get(0).term));
-                    return res;
-                }
-
-                if (queryType == QueryType.INTERSECTION_QUERY) {
-                    for (Query q: queries)
-                        res.addAll(getIntersectionQuery(q, null));
-                } else if (queryType == QueryType.PHRASE_QUERY) {
-                    for (Query q: queries)
-                        res.addAll(getPhraseQuery(q, matchedDocIDs));
-                } else {
+            if (query.queryterm.size() < 2 || queryType != QueryType.INTERSECTION_QUERY && queryType != QueryType.PHRASE_QUERY) {
+                PostingsList pl = getTermPostings(query.queryterm.get(0).term);
+                return pl == null ? null : new ResultCursor.Postings(pl);
+            }
 
-                    String token = query.queryterm.get(0).term;
+            if (queryType == QueryType.INTERSECTION_QUERY)
+                return new ResultCursor.Intersection(ResultCursor.getLists(getPostingsLists(query)));
 
-                    PostingsList list = index.getPostings(token);
+            return new ResultCursor.Phrase(ResultCursor.getLists(getPostingsLists(query)));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return null;
+        }
+    }
 
-                    return list;
+    /**
+     * Evaluates a query against the index, bypassing the cache.
+     */
+    private ResultList getResults(Query query, QueryType queryType, RankingType rankingType, int limit) {
+        try {
+            if (queryType == QueryType.RANKED_QUERY) {
+                if (query.containsWildcards())
+                    query = query.getWildcards(this::getWildcards);
+                ResultList results = getRankedQuery(query, rankingType, limit);
+                if (results != null) {
+                    long start = Metrics.start();
+                    results.sortTop(limit);
+                    Metrics.stop(Metrics.Stage.SORT, start);
                 }
+                return truncate(results, limit);
+            }
 
-                return removeDuplicates(res);
+            if (queryType == QueryType.BOOLEAN_QUERY)
+                return getBooleanQuery(query).next(limit);
+
+            PostingsList results;
+
+            // Not sufficient number of words for other query
+            if (query.queryterm.size() < 2) {
+                results = getTermPostings(query.queryterm.get(0).term);
+            } else if (queryType == QueryType.INTERSECTION_QUERY) {
+                ArrayList<TokenIndexData> postingsLists = getPostingsLists(query);
+                long start = Metrics.start();
+                results = getIntersectionQuery(postingsLists, null);
+                Metrics.stop(Metrics.Stage.INTERSECT, start);
+            } else if (queryType == QueryType.PHRASE_QUERY) {
+                ArrayList<TokenIndexData> postingsLists = getPostingsLists(query);
+                long start = Metrics.start();
+                results = getPhraseQuery(postingsLists);
+                Metrics.stop(Metrics.Stage.INTERSECT, start);
+            } else {
+                results = getTermPostings(query.queryterm.get(0).term);
             }
+
+            return results == null ? null : truncate(new ResultList(results), limit);
         } catch (IllegalArgumentException e) {
             System.err.println(e.getMessage());
             return null;
@@ -121,246 +286,626 @@ public class Searcher {
     }
 
     /**
-     * Removes duplicates from a PostingsList
-     * @param in The PostingsList which to remove duplicates from
-     * @return A PostingsList without duplicates
+     * Parses a query in the boolean query language, plans it and starts
+     * evaluating it. The query terms are the tokens of the query text.
+     *
+     * @throws IllegalArgumentException If the query is not well-formed
      */
-    private PostingsList removeDuplicates(PostingsList in) {
-        HashSet<Integer> check = new HashSet<>();
+    private ResultCursor getBooleanQuery(Query query) throws IllegalArgumentException {
+        StringBuilder sb = new StringBuilder();
+        for (Query.QueryTerm qt : query.queryterm) {
+            sb.append(qt.term).append(' ');
+        }
+        return BooleanQuery.parse(sb.toString()).open(this::getTermPostings);
+    }
 
-        PostingsList out = new PostingsList();
-        for (PostingsEntry pe: in) {
-            if (check.contains(pe.docID)) continue;
-            else {
-                check.add(pe.docID);
-                out.add(pe);
-            }
+    /**
+     * Returns the terms matching a wildcard pattern, from the expansion
+     * cache if they are there.
+     */
+    private List<String> getWildcards(String pattern) {
+        ExpansionCache cache = expansions;
+        if (cache == null)
+            return wildcardIndex.getWildcards(pattern);
+
+        ExpansionCache.Expansion cached = cache.get(ExpansionCache.Kind.WILDCARD, pattern);
+        if (cached != null)
+            return Collections.unmodifiableList(Arrays.asList(cached.terms));
+
+        int generation = Index.generation.get();
+        List<String> terms = wildcardIndex.getWildcards(pattern);
+        cache.put(ExpansionCache.Kind.WILDCARD, pattern, terms.toArray(new String[0]), null, generation);
+        return terms;
+    }
+
+    /**
+     * Returns the postings for a single query term. A wildcard term is
+     * expanded through the k-gram index and answered with the union of the
+     * postings of all matching terms, so that the wildcard slot takes part
+     * in intersection and phrase queries like a normal term.
+     *
+     * @param token The query term, possibly containing a wildcard
+     * @return The postings of the term, or null if nothing matches
+     */
+    private PostingsList getTermPostings(String token) {
+        if (!token.contains("*"))
+            return index.getPostings(token);
+
+        ArrayList<PostingsList> lists = new ArrayList<>();
+        for (String s: getWildcards(token)) {
+            PostingsList pl = index.getPostings(s);
+            if (pl != null && !pl.isEmpty())
+                lists.add(pl);
         }
 
-        return out;
+        if (lists.isEmpty())
+            return null;
+        if (lists.size() == 1)
+            return lists.get(0);
+
+        return getUnion(lists);
     }
 
-    private void mergeScores(HashMap<Integer, Integer> check, PostingsList in1, PostingsList in2) {
-        /* <docID, index> */
+    /**
+     * Merges several docID-ordered PostingsLists into one using a heap over
+     * the list heads. Entries for the same document are combined into a
+     * single entry whose positions are the sorted union of all positions.
+     *
+     * @param lists The lists to merge
+     * @return A docID-ordered PostingsList with one entry per document
+     */
+    private PostingsList getUnion(ArrayList<PostingsList> lists) {
+        /* Each cursor is {list, position in list} */
+        PriorityQueue<int[]> heap = new PriorityQueue<>(lists.size(),
+                (a, b) -> Integer.compare(lists.get(a[0]).get(a[1]).docID, lists.get(b[0]).get(b[1]).docID));
+
+        int total = 0;
+        for (int i = 0; i < lists.size(); i++) {
+            heap.add(new int[] { i, 0 });
+            total += lists.get(i).size();
+        }
+
+        PostingsList union = new PostingsList();
+        union.ensureCapacity(total);
 
-        for (PostingsEntry pe: in2) {
-            if (check.containsKey(pe.docID)) {
-                in1.get(check.get(pe.docID)).score += pe.score;
-            }
-            else {
-                check.put(pe.docID, in1.size());
-                in1.add(pe);
+        ArrayList<PostingsEntry> same = new ArrayList<>();
+        while (!heap.isEmpty()) {
+            int[] head = heap.poll();
+            PostingsEntry pe = lists.get(head[0]).get(head[1]);
+            same.add(pe);
+
+            if (++head[1] < lists.get(head[0]).size())
+                heap.add(head);
+
+            /* Flush when the next head belongs to another document */
+            if (heap.isEmpty() || lists.get(heap.peek()[0]).get(heap.peek()[1]).docID != pe.docID) {
+                if (same.size() == 1) {
+                    union.add(pe);
+                } else {
+                    ArrayList<Integer> positions = new ArrayList<>();
+                    for (PostingsEntry e: same)
+                        positions.addAll(e.getPositionList());
+                    Collections.sort(positions);
+
+                    PostingsEntry merged = new PostingsEntry(pe.docID, positions.get(0));
+                    merged.reserveOffsetCapacity(positions.size());
+                    for (int i = 1; i < positions.size(); i++)
+                        merged.addPosition(positions.get(i));
+                    union.add(merged);
+                }
+                same.clear();
             }
         }
+
+        return union;
+    }
+
+    /**
+     * Cuts a result list down to at most <code>limit</code> results.
+     */
+    private ResultList truncate(ResultList results, int limit) {
+        if (results == null || results.size() <= limit)
+            return results;
+
+        ResultList truncated = new ResultList(limit);
+        for (int i = 0; i < limit; i++) {
+            truncated.add(results.getDocID(i), results.getScore(i));
+        }
+        return truncated;
     }
 
-    private PostingsList getRankedWildcardQuery(Query q, RankingType rankingType) {
+    private ResultList getRankedQuery(Query q, RankingType rankingType, int limit) {
+        /** The postings are read before the scoring is timed */
+        int generation = Index.generation.get();
+        ArrayList<TokenIndexData> postingsLists = getPostingsLists(q);
+
+        long start = Metrics.start();
+        ResultList results;
 
         if (rankingType == RankingType.TF_IDF) {
-            return getTfidfQuery(q);
+            results = scoreAtATime ? getScoreAtATimeQuery(q, postingsLists, generation, limit)
+                    : getTfidfQuery(q, postingsLists, limit);
         } else if (rankingType == RankingType.COMBINATION) {
-            return getCombinedQuery(q);
+            results = getCombinedQuery(q, postingsLists);
         } else if (rankingType == RankingType.PAGERANK) {
-            return getPagerankQuery(q);
+            results = getPagerankQuery(postingsLists, limit);
         } else if (rankingType == RankingType.HITS) {
-            return getHITSQuery(q);
+            results = getHITSQuery(postingsLists);
         } else {
-            return null;
+            results = null;
         }
+
+        Metrics.stop(Metrics.Stage.SCORE, start);
+        return results;
     }
 
-    private PostingsList getTfidfQuery(Query query) {
+    private ResultList getTfidfQuery(Query query, ArrayList<TokenIndexData> postingsLists, int limit) {
+        return getTfidfQuery(query, postingsLists, limit, limit);
+    }
+
+    /**
+     * Ranks the documents matching a query by tf-idf. When champion lists
+     * are used, the query is first scored against the champion lists only,
+     * and against the full postings lists if that gives fewer than
+     * <code>limit</code> results.
+     *
+     * @param keep The number of best documents the caller needs; the others
+     *             may be left out
+     */
+    private ResultList getTfidfQuery(Query query, ArrayList<TokenIndexData> postingsLists, int limit, int keep) {
 
         /** Build query vector */
         ArrayList<Query.QueryTerm> q = query.queryterm;
-//        ArrayList<Double> q = new ArrayList<>();
-//
-//        HashMap<String, Integer> tkns = new HashMap<>();
-//        for (int i = 0; i < query.queryterm.size(); i++) {
-//            if (!tkns.containsKey(query.queryterm.get(i).term))
-//                q.add(query.queryterm.get(i).weight);
-//            else {
-//                int idx = tkns.get(query.queryterm.get(i).term);
-//                q.set(idx, q.get(idx) + query.queryterm.get(i).weight);
-//            }
-//        }
-
-        /** Normalize q */
-        // int val = 0;
-        // for (double d: q) {
-        //     if (norm == Normalizer.EUCLIDEAN)
-        //         val += Math.pow(d, 2);
-        //     else if (norm == Normalizer.MANHATTAN)
-        //         val += d;
-        // }
-
-        // for (int i = 0; i < q.size(); i++) {
-        //     double denominator = 1.0;
-        //     if (norm == Normalizer.EUCLIDEAN)
-        //         denominator = Math.sqrt(val);
-        //     else if (norm == Normalizer.MANHATTAN)
-        //         denominator = val;
-        //     q.set(i, q.get(i) / denominator);
-        // }
-
-
-        ArrayList<TokenIndexData> postingsLists = getPostingsLists(query);
-        HashMap<Integer, PostingsEntry> scores = new HashMap<>();
-        HashMap<Integer, Double> denom = new HashMap<>();
-
-        /** <docID, index> */
+
+        /** The weight of each term: query weight times idf */
+        double[] weights = getTermWeights(q, postingsLists);
+
+        if (useChampionLists && limit != Integer.MAX_VALUE) {
+            ResultList results = getTfidfScores(weights, getChampionLists(postingsLists), keep);
+            if (results.size() >= limit)
+                return results;
+        }
+
+        return getTfidfScores(weights, postingsLists, keep);
+    }
+
+    /**
+     * Replaces the postings list of every term that has a champion list by
+     * its champion list.
+     */
+    private ArrayList<TokenIndexData> getChampionLists(ArrayList<TokenIndexData> postingsLists) {
+        ArrayList<TokenIndexData> championLists = new ArrayList<>();
+        for (TokenIndexData pt: postingsLists) {
+            PostingsList champions = Index.championLists.get(pt.token);
+            championLists.add(champions == null ? pt : new TokenIndexData(pt.token, pt.order, champions));
+        }
+        return championLists;
+    }
+
+    /**
+     * Scores the documents in the given postings lists. The results are not
+     * necessarily sorted; use <code>sortTop</code> to rank them.
+     *
+     * @param weights       The weight of every term, from <code>getTermWeights</code>
+     * @param postingsLists The postings lists of the terms
+     * @param keep          The number of best documents that must be among
+     *                      the results; a parallel evaluation keeps only those
+     */
+    private ResultList getTfidfScores(double[] weights, ArrayList<TokenIndexData> postingsLists, int keep) {
+
+        /** Estimate the cost of the query by its number of postings */
+        long cost = 0;
+        int maxDocID = 0;
+        for (TokenIndexData pt: postingsLists) {
+            cost += pt.postingsList.size();
+            maxDocID = Math.max(maxDocID, pt.postingsList.get(pt.postingsList.size() - 1).docID);
+        }
+
+        if (cost >= parallelThreshold && pool.getParallelism() > 1) {
+            int rangeSize = Math.max(1, (maxDocID + 1) / (4 * pool.getParallelism()) + 1);
+            return pool.invoke(new TfidfTask(weights, postingsLists, 0, maxDocID + 1, rangeSize, keep));
+        }
+
+        ResultList results = new ResultList();
+
+        /** <docID, index in results> */
+        HashMap<Integer, Integer> slots = new HashMap<>();
+
         int i = 0;
         for (TokenIndexData pt: postingsLists) {
             PostingsList pl = pt.postingsList;
-            // int termID = Index.tokenIndex.get(postingsLists.get(0).token);
             for (PostingsEntry pe: pl) {
-                // double tf = 1.0 + Math.log10(pe.getOccurences());
-                double tfidf = tfidf(pe, pl);
-
-                double score = q.get(i).weight * tfidf;
+                double score = pe.getOccurences() * weights[i];
 
-                if (!scores.containsKey(pe.docID)) {
-                    scores.put(pe.docID, new PostingsEntry(pe.docID, score));
+                Integer slot = slots.get(pe.docID);
+                if (slot == null) {
+                    slots.put(pe.docID, results.add(pe.docID, score));
                 }
                 else {
-                    scores.get(pe.docID).score += score;
+                    results.addScore(slot, score);
                 }
             }
             i++;
         }
 
-        PostingsList results = new PostingsList();
-
         /** Normalize score */
-        for (int docID: scores.keySet()) {
-            PostingsEntry pe = scores.get(docID);
+        for (int j = 0; j < results.size(); j++) {
+            results.setScore(j, results.getScore(j) / getDocNorm(results.getDocID(j)));
+        }
 
-            pe.score /= Index.docLengths.get(pe.docID);
+        /** Left unsorted; only as many results as are asked for get sorted */
+        return results;
+    }
 
-            results.add(pe);
+    /**
+     * Scores the documents in a range of docIDs for a tf-idf query. Ranges
+     * larger than <code>rangeSize</code> are split in two and scored in
+     * parallel, and the two ranked halves are merged. Every range only
+     * returns its best <code>keep</code> documents, so no more than that
+     * are copied at each level of the merge.
+     */
+    private class TfidfTask extends RecursiveTask<ResultList> {
+        private static final long serialVersionUID = 1L;
+
+        double[] weights;
+        ArrayList<TokenIndexData> postingsLists;
+        int from;
+        int to;
+        int rangeSize;
+        int keep;
+
+        TfidfTask(double[] weights, ArrayList<TokenIndexData> postingsLists, int from, int to, int rangeSize, int keep) {
+            this.weights = weights;
+            this.postingsLists = postingsLists;
+            this.from = from;
+            this.to = to;
+            this.rangeSize = rangeSize;
+            this.keep = keep;
         }
-        
-        Collections.sort(results);
 
+        @Override
+        protected ResultList compute() {
+            if (to - from > rangeSize) {
+                int mid = from + (to - from) / 2;
+                TfidfTask left = new TfidfTask(weights, postingsLists, from, mid, rangeSize, keep);
+                TfidfTask right = new TfidfTask(weights, postingsLists, mid, to, rangeSize, keep);
+                left.fork();
+                ResultList rightResults = right.compute();
+                return ResultList.merge(left.join(), rightResults, keep);
+            }
+
+            /** Accumulate scores for the range in dense arrays */
+            double[] scores = new double[to - from];
+            boolean[] matched = new boolean[to - from];
+
+            int i = 0;
+            for (TokenIndexData pt: postingsLists) {
+                PostingsList pl = pt.postingsList;
+                for (int j = lowerBound(pl, from); j < pl.size() && pl.get(j).docID < to; j++) {
+                    PostingsEntry pe = pl.get(j);
+                    scores[pe.docID - from] += pe.getOccurences() * weights[i];
+                    matched[pe.docID - from] = true;
+                }
+                i++;
+            }
+
+            ResultList results = new ResultList();
+            for (int j = 0; j < scores.length; j++) {
+                if (matched[j])
+                    results.add(from + j, scores[j] / getDocNorm(from + j));
+            }
+            if (results.size() > keep) {
+                results.sortTop(keep);
+                return results.subList(0, keep);
+            }
+            results.sort();
+
+            return results;
+        }
+    }
+
+    /**
+     * Returns the index of the first entry in a postings list whose docID is
+     * at least <code>docID</code>.
+     */
+    private static int lowerBound(PostingsList pl, int docID) {
+        int lo = 0;
+        int hi = pl.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (pl.get(mid).docID < docID)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Scores a tf-idf query a segment at a time over impact-ordered postings.
+     * The segment with the highest weighted impact among all terms is always
+     * processed next. Evaluation stops when <code>postingsBudget</code>
+     * postings have been processed, or when the remaining segments can no
+     * longer change which documents are in the top <code>limit</code>.
+     * Scores are built from quantized impacts, so they approximate the
+     * cosine scores of <code>getTfidfQuery</code>.
+     */
+    private ResultList getScoreAtATimeQuery(Query query, ArrayList<TokenIndexData> postingsLists, int generation, int limit) {
+        ArrayList<Query.QueryTerm> q = query.queryterm;
+
+        ImpactPostings[] impacts = new ImpactPostings[postingsLists.size()];
+        for (int i = 0; i < impacts.length; i++) {
+            impacts[i] = getImpactPostings(postingsLists.get(i), generation);
+        }
+
+        /** Next segment to process for every term */
+        int[] next = new int[impacts.length];
+
+        ResultList results = new ResultList();
+
+        /** <docID, index in results> */
+        HashMap<Integer, Integer> slots = new HashMap<>();
+
+        long processed = 0;
+        long nextCheck = 0;
+        while (processed < postingsBudget) {
+            /** Pick the segment with the highest weighted impact */
+            int best = -1;
+            double bestContribution = 0.0;
+            for (int i = 0; i < impacts.length; i++) {
+                if (next[i] == impacts[i].getSegmentCount())
+                    continue;
+                double contribution = q.get(i).weight * ImpactPostings.dequantize(impacts[i].segmentImpacts[next[i]]);
+                if (best == -1 || contribution > bestContribution) {
+                    best = i;
+                    bestContribution = contribution;
+                }
+            }
+            if (best == -1)
+                break;
+
+            ImpactPostings ip = impacts[best];
+            int segment = next[best]++;
+            for (int j = ip.segmentStarts[segment]; j < ip.segmentStarts[segment + 1]; j++) {
+                int docID = ip.docIDs[j];
+                Integer slot = slots.get(docID);
+                if (slot == null)
+                    slots.put(docID, results.add(docID, bestContribution));
+                else
+                    results.addScore(slot, bestContribution);
+            }
+            processed += ip.segmentStarts[segment + 1] - ip.segmentStarts[segment];
+
+            /** Checking is linear in the number of results, so only do it now and then */
+            if (limit < results.size() && processed >= nextCheck) {
+                if (isTopSafe(results, limit, getRemainingImpact(q, impacts, next)))
+                    break;
+                nextCheck = processed + results.size();
+            }
+        }
+
+        results.sort();
         return results;
     }
 
-    private double tfidf(PostingsEntry pe, PostingsList pl) {
-        double tf = pe.getOccurences();
-        double idf = Math.log(Index.docNames.size() / pl.size());
+    /**
+     * Returns the most that the unprocessed segments can add to the score of
+     * a document.
+     */
+    private double getRemainingImpact(ArrayList<Query.QueryTerm> q, ImpactPostings[] impacts, int[] next) {
+        double remaining = 0.0;
+        for (int i = 0; i < impacts.length; i++) {
+            if (next[i] < impacts[i].getSegmentCount())
+                remaining += q.get(i).weight * ImpactPostings.dequantize(impacts[i].segmentImpacts[next[i]]);
+        }
+        return remaining;
+    }
 
-        double tfidf = tf * idf;
-        return tfidf;
+    /**
+     * Returns true if no document outside the current top <code>k</code> can
+     * overtake the k:th best document by gaining <code>remaining</code>.
+     */
+    private static boolean isTopSafe(ResultList results, int k, double remaining) {
+        double[] scores = new double[results.size()];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = results.getScore(i);
+        }
+        Arrays.sort(scores);
+        double kth = scores[scores.length - k];
+        double next = scores[scores.length - k - 1];
+        return kth > next + remaining && kth >= remaining;
+    }
+
+    /**
+     * Returns the impact-ordered postings of a query term: its impact list
+     * if the index has one, and otherwise the postings ordered at query
+     * time, which are kept under the index generation they were read for.
+     *
+     * @param generation The index generation before the postings were read
+     */
+    private ImpactPostings getImpactPostings(TokenIndexData pt, int generation) {
+        ImpactPostings ip = Index.impactLists.get(pt.token);
+        if (ip != null)
+            return ip;
+
+        String key = generation + " " + pt.token;
+        synchronized (impactPostings) {
+            ip = impactPostings.get(key);
+        }
+        if (ip == null) {
+            ip = ImpactPostings.build(pt.postingsList, getIdf(pt), this::getDocNorm);
+            synchronized (impactPostings) {
+                impactPostings.put(key, ip);
+            }
+        }
+        return ip;
+    }
+
+    /**
+     * Returns the weight of every query term, i.e. its weight in the query
+     * times its idf, so that the score of a posting is its tf times the
+     * weight of its term.
+     */
+    private double[] getTermWeights(ArrayList<Query.QueryTerm> q, ArrayList<TokenIndexData> postingsLists) {
+        double[] weights = new double[postingsLists.size()];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = q.get(i).weight * getIdf(postingsLists.get(i));
+        }
+        return weights;
+    }
+
+    /**
+     * Returns the idf of a query term. The idf is precomputed when the index
+     * is built; a term it does not know, such as an expanded wildcard, gets
+     * its idf from the postings list.
+     */
+    private double getIdf(TokenIndexData pt) {
+        double idf = Index.statistics.getIdf(pt.token);
+        if (Double.isNaN(idf))
+            idf = Math.log(Index.docNames.size() * 1.0 / pt.postingsList.size());
+        return idf;
+    }
+
+    /**
+     * Returns the length a document score is divided by: the Euclidean
+     * length of its tf-idf vector, or its number of tokens.
+     */
+    private double getDocNorm(int docID) {
+        if (norm == Normalizer.EUCLIDEAN) {
+            double docNorm = Index.statistics.getDocNorm(docID);
+            if (docNorm > 0.0)
+                return docNorm;
+        }
+        return Index.docLengths.get(docID);
     }
 
-    private PostingsList getPagerankQuery(Query query) {
-        ArrayList<TokenIndexData> postingsLists = getPostingsLists(query);
+    private ResultList getPagerankQuery(ArrayList<TokenIndexData> postingsLists, int limit) {
+        if (Index.staticRanks.isOrdered())
+            return getOrderedPagerankQuery(postingsLists, limit);
 
         HashSet<Integer> savedDocIDs = new HashSet<>();
 
-        PostingsList results = new PostingsList();
+        ResultList results = new ResultList();
 
         for (TokenIndexData pt: postingsLists) {
             PostingsList pl = pt.postingsList;
             for (PostingsEntry pe: pl) {
-                if (!savedDocIDs.contains(pe.docID)) {
-                    String docName = Index.docNames.get(pe.docID);
-                    String strippedDocName = docName.substring(docName.indexOf("/")+1);
-                    try {
-                        pe.score = Index.pageranks.get(strippedDocName);
-                    } catch (NullPointerException e) {
-                        System.err.println(strippedDocName);
-                    } 
-                    
-                    results.add(pe);
-
-                    savedDocIDs.add(pe.docID);
+                if (savedDocIDs.add(pe.docID)) {
+                    results.add(pe.docID, Index.staticRanks.get(pe.docID));
                 }
             }
         }
 
-        Collections.sort(results);
+        results.sort();
+
+        /** Normalize scores by the whole collection, as on the ordered path */
+        normalizePagerank(results);
+
+        return results;
+    }
 
-        /** Normalize scores */
-        double norm = 0.0;
-        for (PostingsEntry pe: results) {
-            norm += pe.score;
+    /**
+     * Ranks by PageRank when docIDs were assigned in descending PageRank
+     * order. The union of the postings lists is then already ranked, so it
+     * is merged in docID order without sorting, and the merge stops after
+     * <code>limit</code> documents. Scores are normalized as on the
+     * unordered path.
+     */
+    private ResultList getOrderedPagerankQuery(ArrayList<TokenIndexData> postingsLists, int limit) {
+        /* Each cursor is {list, position in list} */
+        PriorityQueue<int[]> heap = new PriorityQueue<>(postingsLists.size(),
+                (a, b) -> Integer.compare(postingsLists.get(a[0]).postingsList.get(a[1]).docID,
+                        postingsLists.get(b[0]).postingsList.get(b[1]).docID));
+        for (int i = 0; i < postingsLists.size(); i++) {
+            heap.add(new int[] { i, 0 });
         }
 
-        for (PostingsEntry pe: results) {
-            pe.score /= norm;
+        ResultList results = new ResultList();
+        int lastDocID = -1;
+        while (!heap.isEmpty() && results.size() < limit) {
+            int[] head = heap.poll();
+            PostingsList pl = postingsLists.get(head[0]).postingsList;
+            int docID = pl.get(head[1]).docID;
+
+            if (docID != lastDocID) {
+                results.add(docID, Index.staticRanks.get(docID));
+                lastDocID = docID;
+            }
+
+            if (++head[1] < pl.size())
+                heap.add(head);
         }
 
+        normalizePagerank(results);
+
         return results;
     }
 
-    private PostingsList getCombinedQuery(Query query) {
-        PostingsList tfidf = getTfidfQuery(query);
+    /**
+     * Divides PageRank scores by the PageRank of the whole collection, so a
+     * document gets the same score whichever documents the query matches
+     * and however many of them are returned.
+     */
+    private static void normalizePagerank(ResultList results) {
+        double sum = Index.staticRanks.getSum();
+        if (sum > 0.0)
+            results.divideScores(sum);
+    }
 
-        ArrayList<Double> pagerankScores = new ArrayList<>();
-        pagerankScores.ensureCapacity(tfidf.size());
+    private ResultList getCombinedQuery(Query query, ArrayList<TokenIndexData> postingsLists) {
+        /**
+         * Every tf-idf score counts in the normalization, so all are kept,
+         * and the champion lists are not used: the scores are normalized by
+         * sums over all matching documents, which a champion list leaves out
+         */
+        ResultList results = getTfidfQuery(query, postingsLists, Integer.MAX_VALUE, Integer.MAX_VALUE);
 
-        double tfidfNorm = 0.0;
-        double pagerankNorm = 0.0;
-        for (PostingsEntry pe: tfidf) {
-            tfidfNorm += pe.score;
+        double[] pagerankScores = new double[results.size()];
 
-            String docName = Index.docNames.get(pe.docID);
-            String strippedDocName = docName.substring(docName.indexOf("/")+1);
-            double pagerankScore = Index.pageranks.get(strippedDocName);
-            pagerankScores.add(pagerankScore);
-            pagerankNorm += pagerankScore;
+        double tfidfNorm = results.getScoreSum();
+        double pagerankNorm = 0.0;
+        for (int i = 0; i < results.size(); i++) {
+            pagerankScores[i] = Index.staticRanks.get(results.getDocID(i));
+            pagerankNorm += pagerankScores[i];
         }
 
-        int i = 0;
-        for (PostingsEntry pe: tfidf) {
-            pe.score = RANK_WEIGHT * pe.score/tfidfNorm + (1.0-RANK_WEIGHT) * pagerankScores.get(i) /pagerankNorm;
-            i++;
+        for (int i = 0; i < results.size(); i++) {
+            results.setScore(i, RANK_WEIGHT * results.getScore(i)/tfidfNorm + (1.0-RANK_WEIGHT) * pagerankScores[i] /pagerankNorm);
         }
 
-        Collections.sort(tfidf);
+        results.sort();
 
-        return tfidf;
+        return results;
     }
 
-    private PostingsList getHITSQuery(Query query) {
-        ArrayList<TokenIndexData> postingsLists = getPostingsLists(query);
-
-        HashSet<Integer> savedDocIDs = new HashSet<>();
-
-        PostingsList results = new PostingsList();
+    private ResultList getHITSQuery(ArrayList<TokenIndexData> postingsLists) {
+        LinkedHashSet<Integer> docIDs = new LinkedHashSet<>();
 
         for (TokenIndexData pt: postingsLists) {
-            PostingsList pl = pt.postingsList;
-            for (PostingsEntry pe: pl) {
-                if (!savedDocIDs.contains(pe.docID)) {
-                    String docName = Index.docNames.get(pe.docID);
-                    results.add(pe);
-
-                    savedDocIDs.add(pe.docID);
-                }
+            for (PostingsEntry pe: pt.postingsList) {
+                docIDs.add(pe.docID);
             }
         }
 
-        return HITSRanker.rank(results);
+        return HITSRanker.rank(docIDs);
     }
 
     /**
      * Computes the results of a phrase query
      * 
-     * @param query The query to process
+     * @param postingsLists The postings of each query term, in query order
      * 
      * @return A PostingsList with the results
      */
-    private PostingsList getPhraseQuery(Query query, HashSet<Integer> matchedDocIDs) {
+    private PostingsList getPhraseQuery(ArrayList<TokenIndexData> postingsLists) {
         ArrayList<LinkedHashMap<Integer, Integer>> indexes = new ArrayList<>();
-        for (int i = 0; i < query.queryterm.size(); i++) {
+        for (int i = 0; i < postingsLists.size(); i++) {
             indexes.add(new LinkedHashMap<Integer, Integer>());
         }
         try {
-            getIntersectionQuery(query, indexes);
+            getIntersectionQuery(new ArrayList<>(postingsLists), indexes);
 
-            ArrayList<PostingsList> orderPostingsList = getLists(query, indexes, matchedDocIDs);
+            ArrayList<PostingsList> orderPostingsList = getLists(postingsLists, indexes);
 
             Collections.reverse(orderPostingsList);
 
@@ -368,12 +913,7 @@ public class Searcher {
 
             orderPostingsList.remove(orderPostingsList.size() - 1);
 
-            PostingsList results = getRecursivePhrase(p1, orderPostingsList);
-
-            for (PostingsEntry pe: results)
-                matchedDocIDs.add(pe.docID);
-
-            return results;
+            return getRecursivePhrase(p1, orderPostingsList);
         } catch (IllegalArgumentException e) {
             return new PostingsList();
         }
@@ -382,33 +922,33 @@ public class Searcher {
     /**
      * Finds the postings entries corresponding to the docIDs in `postingsList`.
      * 
-     * @param query        The tokens to fetch postings entries for
-     * @param postingsList A list of docIDs to find postings entries for
+     * @param postingsLists The full postings of each query token, in query order
+     * @param indexes       For each token, a map from docID to its index in the
+     *                      full postings list
      * 
      * @return An ArrayList of PostingsLists with postings entries for each token in
-     *         `query` and docID in `postingsList`.
+     *         `postingsLists` and docID in `indexes`.
      */
     @SuppressWarnings("MagicConstant")
-    private ArrayList<PostingsList> getLists(Query query, ArrayList<LinkedHashMap<Integer, Integer>> indexes, HashSet<Integer> matchedDocIDs) throws IllegalArgumentException {
+    private ArrayList<PostingsList> getLists(ArrayList<TokenIndexData> postingsLists, ArrayList<LinkedHashMap<Integer, Integer>> indexes) throws IllegalArgumentException {
 
         /** Allocate return variable */
         ArrayList<PostingsList> ret = new ArrayList<>();
-        for (int i = 0; i < query.queryterm.size(); i++) {
+        for (int i = 0; i < postingsLists.size(); i++) {
             ret.add(new PostingsList());
         }
 
         /** Loop over tokens */
-        for (int i = 0; i < query.queryterm.size(); i++) {
+        for (int i = 0; i < postingsLists.size(); i++) {
             LinkedHashMap<Integer, Integer> tokenIndexes = indexes.get(i);
             PostingsList list = ret.get(i);
-            PostingsList fullList = index.getPostings(query.queryterm.get(i).term);
+            PostingsList fullList = postingsLists.get(i).postingsList;
 
             if (tokenIndexes.isEmpty())
-                throw new IllegalArgumentException("Token" + query.queryterm.get(i).term + " does not match a phrase query.");
+                throw new IllegalArgumentException("Token" + postingsLists.get(i).token + " does not match a phrase query.");
 
             for (Map.Entry<Integer, Integer> entry : tokenIndexes.entrySet()) {
-                if (!matchedDocIDs.contains(entry.getKey()))
-                    list.add(fullList.get(entry.getValue()));
+                list.add(fullList.get(entry.getValue()));
             }
         }
         return ret;
@@ -438,8 +978,8 @@ public class Searcher {
         PostingsEntry docID1 = (PostingsEntry) itp1.next();
         PostingsEntry docID2 = (PostingsEntry) itp2.next();
 
-        ArrayList<Integer> pList1;
-        ArrayList<Integer> pList2;
+        List<Integer> pList1;
+        List<Integer> pList2;
 
         Iterator<Integer> itps1;
         Iterator<Integer> itps2;
@@ -454,8 +994,6 @@ public class Searcher {
                     /* Get positional indexes */
                     pList1 = docID1.getPositionList();
                     pList2 = docID2.getPositionList();
-                    Collections.sort(pList1);
-                    Collections.sort(pList2);
 
                     itps1 = pList1.iterator();
                     itps2 = pList2.iterator();
@@ -517,14 +1055,13 @@ public class Searcher {
     /**
      * Retrieves the intersection query for the given query
      * 
-     * @param query The query containing tokens
+     * @param postingsLists The postings of each query token, in query order
      * @return A PostingsList with the matches
      * @throws IllegalArgumentException When a token in the query does not exist in
      *                                  the index.
      */
-    private PostingsList getIntersectionQuery(Query query, ArrayList<LinkedHashMap<Integer, Integer>> indexes) throws IllegalArgumentException {
+    private PostingsList getIntersectionQuery(ArrayList<TokenIndexData> postingsLists, ArrayList<LinkedHashMap<Integer, Integer>> indexes) throws IllegalArgumentException {
 
-        ArrayList<TokenIndexData> postingsLists = getPostingsLists(query);
         PostingsList intersection;
 
         if (indexes != null) {
@@ -611,7 +1148,7 @@ public class Searcher {
         for (int i = 0; i < query.queryterm.size(); i++) {
             String token = query.queryterm.get(i).term;
 
-            PostingsList tokenList = index.getPostings(token);
+            PostingsList tokenList = getTermPostings(token);
 
             // If one term does not exist, whole intersection query fails
             if (tokenList != null)
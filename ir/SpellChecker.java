@@ -17,6 +17,27 @@ public class SpellChecker {
     /** K-gram index to be used by the spell checker */
     KGramIndex kgIndex;
 
+    /**
+     * If set, candidates are found by walking the dictionary with an edit
+     * distance automaton instead of through the k-gram index
+     */
+    volatile TermDictionary dictionary;
+
+    /**
+     * If set, candidates are found by looking up the deletions of a query
+     * term among the precomputed deletions of the vocabulary
+     */
+    volatile DeletionIndex deletions;
+
+    /**
+     * If set, corrections of multi-word queries are also scored by how
+     * often their adjacent words occur next to each other
+     */
+    volatile BigramStatistics bigrams;
+
+    /** If set, the candidates of recently checked terms are cached here */
+    volatile ExpansionCache expansions;
+
     /** The auxiliary class for containing the value of your ranking function for a token */
     class KGramStat implements Comparable {
         double score;
@@ -53,6 +74,18 @@ public class SpellChecker {
       */
     private static final int MAX_EDIT_DISTANCE = 2;
 
+    /**
+     * The weight of the bigram score of each pair of adjacent words in a
+     * corrected phrase, next to the scores of the words themselves.
+     */
+    private static final double BIGRAM_WEIGHT = 1.0;
+
+    /**
+     * The smallest number of partial phrases kept after each word when the
+     * corrections are scored by bigrams.
+     */
+    private static final int BEAM_WIDTH = 64;
+
 
     public SpellChecker(Index index, KGramIndex kgIndex) {
         this.index = index;
@@ -68,34 +101,139 @@ public class SpellChecker {
         return intersection * 1.0 / (szA + szB - intersection);
     }
 
+    /** Reusable rows of the edit distance matrix, per thread */
+    private static final ThreadLocal<int[][]> rows = ThreadLocal.withInitial(() -> new int[2][64]);
+
+    /** Reusable bit masks of the ASCII chars of a term, per thread */
+    private static final ThreadLocal<long[]> masks = ThreadLocal.withInitial(() -> new long[128]);
+
     /**
-     * Computing Levenshtein edit distance using dynamic programming.
+     * Computes the edit distance between two terms, without a bound.
      * Allowed operations are:
      *      => insert (cost 1)
      *      => delete (cost 1)
      *      => substitute (cost 2)
+     * See <code>editDistance(x, y, max)</code> for how it is computed.
      */
     static int editDistance(String x, String y) {
-        int[][] dp = new int[x.length() + 1][y.length() + 1];
+        return editDistance(x, y, x.length() + y.length());
+    }
 
-        for (int i = 0; i <= x.length(); i++) {
-            for (int j = 0; j <= y.length(); j++) {
-                if (i == 0) {
-                    dp[i][j] = j;
-                }
-                else if (j == 0) {
-                    dp[i][j] = i;
-                }
-                else {
-                    dp[i][j] = Math.min(dp[i - 1][j - 1] // substitute
-                                    + costOfSubstitution(x.charAt(i - 1), y.charAt(j - 1)), Math.min(
-                            dp[i - 1][j] + 1, // insert
-                            dp[i][j - 1] + 1)); // delete
-                }
-            }
+    /**
+     * Computes the edit distance between two terms if it is at most
+     * <code>max</code>, and returns <code>max + 1</code> otherwise.
+     *
+     * Since a substitution costs as much as a deletion and an insertion,
+     * the distance is the number of chars outside a longest common
+     * subsequence, which is computed a bit per char for terms of at most 64
+     * chars. Longer terms fill only the band of the matrix within
+     * <code>max</code> of the diagonal, and stop as soon as a whole row of
+     * the band exceeds <code>max</code>.
+     */
+    static int editDistance(String x, String y, int max) {
+        int n = x.length();
+        int m = y.length();
+        if (Math.abs(n - m) > max)
+            return max + 1;
+        if (n == 0 || m == 0)
+            return Math.max(n, m);
+
+        if (Math.min(n, m) <= 64) {
+            int lcs = n <= m ? lcsLength(x, y) : lcsLength(y, x);
+            return Math.min(n + m - 2 * lcs, max + 1);
+        }
+        return bandedEditDistance(x, y, max);
+    }
+
+    /**
+     * Returns the length of a longest common subsequence of two terms, the
+     * first of at most 64 chars, by the bit-parallel algorithm of Hyyrö.
+     * A zero bit in <code>v</code> is a char of <code>x</code> in the
+     * common subsequence of <code>x</code> and the part of <code>y</code>
+     * read so far.
+     */
+    private static int lcsLength(String x, String y) {
+        int n = x.length();
+        long[] ascii = masks.get();
+        for (int i = 0; i < n; i++) {
+            char c = x.charAt(i);
+            if (c < 128)
+                ascii[c] |= 1L << i;
         }
 
-        return dp[x.length()][y.length()];
+        long v = -1L;
+        for (int j = 0; j < y.length(); j++) {
+            char c = y.charAt(j);
+            long match = c < 128 ? ascii[c] : mask(x, c);
+            long u = v & match;
+            v = (v + u) | (v - u);
+        }
+
+        for (int i = 0; i < n; i++) {
+            char c = x.charAt(i);
+            if (c < 128)
+                ascii[c] = 0;
+        }
+        long used = n == 64 ? -1L : (1L << n) - 1;
+        return n - Long.bitCount(v & used);
+    }
+
+    /** Returns the positions of a char in a term as a bit mask. */
+    private static long mask(String x, char c) {
+        long mask = 0;
+        for (int i = 0; i < x.length(); i++) {
+            if (x.charAt(i) == c)
+                mask |= 1L << i;
+        }
+        return mask;
+    }
+
+    /**
+     * Computes the edit distance between two terms within the band of
+     * <code>max</code> around the diagonal, with two reused rows.
+     */
+    private static int bandedEditDistance(String x, String y, int max) {
+        int n = x.length();
+        int m = y.length();
+        int inf = max + 1;
+        int[][] buffers = rows.get();
+        if (buffers[0].length < m + 2) {
+            buffers[0] = new int[2 * m + 2];
+            buffers[1] = new int[2 * m + 2];
+        }
+        int[] previous = buffers[0];
+        int[] current = buffers[1];
+
+        for (int j = 0; j <= Math.min(m, max); j++) {
+            previous[j] = j;
+        }
+        if (max + 1 <= m)
+            previous[max + 1] = inf;
+
+        for (int i = 1; i <= n; i++) {
+            int from = Math.max(1, i - max);
+            int to = Math.min(m, i + max);
+            current[from - 1] = from == 1 && i <= max ? i : inf;
+            int rowMin = current[from - 1];
+            char c = x.charAt(i - 1);
+            for (int j = from; j <= to; j++) {
+                int d = previous[j - 1] + costOfSubstitution(c, y.charAt(j - 1));
+                d = Math.min(d, previous[j] + 1);
+                d = Math.min(d, current[j - 1] + 1);
+                current[j] = Math.min(d, inf);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            /** Outside the band on the right, for the next row */
+            if (to < m)
+                current[to + 1] = inf;
+            if (rowMin > max)
+                return inf;
+
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return Math.min(previous[m], inf);
     }
 
     private static int costOfSubstitution(char a, char b) {
@@ -115,27 +253,7 @@ public class SpellChecker {
         List<List<KGramStat>> unsortedResults = new ArrayList<>();
 
         for (Query.QueryTerm qt: query.queryterm) {
-            Set<String> kgrams = KGramIndex.getKGrams(qt.term);
-
-            HashMap<String, KGramIndex.MutableInteger> words = kgIndex.getTokensFromKgrams(kgrams);
-            List<KGramStat> passJaccard = new ArrayList<>();
-
-            /* Check which words pass the jaccard threshold */
-            for (String kgramToken: words.keySet()) {
-                double jScore = jaccard(kgrams.size(), kgIndex.numberOfKgrams.get(kgramToken), words.get(kgramToken).i);
-                if (jScore >= JACCARD_THRESHOLD) {
-                    passJaccard.add(new KGramStat(kgramToken, jScore));
-                }
-            }
-
-            /* Check which words pass edit distance threshold */
-            ArrayList<KGramStat> results = new ArrayList<>();
-            for (KGramStat kstat: passJaccard) {
-                int editDistance = editDistance(qt.term, kstat.token);
-                if (editDistance <= MAX_EDIT_DISTANCE) {
-                    results.add(kstat);
-                }
-            }
+            List<KGramStat> results = getCandidates(qt.term);
 
             /* Normalize */
             Collections.sort(results, Collections.reverseOrder());
@@ -178,37 +296,283 @@ public class SpellChecker {
         return finalResults;
     }
 
+    /**
+     *  Returns the terms that pass both the Jaccard and the edit distance
+     *  thresholds for a query term, scored by their Jaccard coefficient.
+     *  The returned candidates are new objects, even if they come from the
+     *  expansion cache, so they may be modified.
+     */
+    List<KGramStat> getCandidates(String term) {
+        ExpansionCache cache = expansions;
+        if (cache == null)
+            return findCandidates(term);
+
+        ExpansionCache.Expansion cached = cache.get(ExpansionCache.Kind.SPELLING, term);
+        if (cached != null) {
+            List<KGramStat> results = new ArrayList<>(cached.terms.length);
+            for (int i = 0; i < cached.terms.length; i++) {
+                results.add(new KGramStat(cached.terms[i], cached.scores[i]));
+            }
+            return results;
+        }
+
+        int generation = Index.generation.get();
+        List<KGramStat> results = findCandidates(term);
+        String[] terms = new String[results.size()];
+        double[] scores = new double[results.size()];
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = results.get(i).token;
+            scores[i] = results.get(i).score;
+        }
+        cache.put(ExpansionCache.Kind.SPELLING, term, terms, scores, generation);
+        return results;
+    }
+
+    /**
+     *  Finds the candidates of a query term through the deletion index, the
+     *  term dictionary or the k-gram index, whichever is set.
+     */
+    private List<KGramStat> findCandidates(String term) {
+        long[] kgrams = KGramIndex.getKGrams(term);
+
+        /* The deletion index and the term dictionary only return terms within the edit distance */
+        TermDictionary automatonDictionary = dictionary;
+        DeletionIndex deletionIndex = deletions;
+        if (deletionIndex != null)
+            return getJaccardScores(deletionIndex.getCandidates(term, MAX_EDIT_DISTANCE), kgrams);
+        if (automatonDictionary != null)
+            return getJaccardScores(automatonDictionary.getFuzzyMatches(term, MAX_EDIT_DISTANCE, 2), kgrams);
+
+        List<KGramStat> passJaccard = getJaccardCandidates(kgrams);
+
+        /* Check which words pass edit distance threshold */
+        ArrayList<KGramStat> results = new ArrayList<>();
+        for (KGramStat kstat: passJaccard) {
+            int editDistance = editDistance(term, kstat.token, MAX_EDIT_DISTANCE);
+            if (editDistance <= MAX_EDIT_DISTANCE) {
+                results.add(kstat);
+            }
+        }
+        return results;
+    }
+
+    /**
+     *  Returns the terms sharing enough k-grams with a query term, found
+     *  through the postings of its k-grams.
+     */
+    private List<KGramStat> getJaccardCandidates(long[] kgrams) {
+        KGramIndex.Overlaps words = kgIndex.getTokensFromKgrams(kgrams);
+        List<KGramStat> passJaccard = new ArrayList<>();
+
+        /* Check which words pass the jaccard threshold */
+        for (int j = 0; j < words.size; j++) {
+            int termID = words.termIDs[j];
+            double jScore = jaccard(kgrams.length, kgIndex.getKGramCount(termID), words.counts[j]);
+            if (jScore >= JACCARD_THRESHOLD) {
+                passJaccard.add(new KGramStat(kgIndex.getTermByID(termID), jScore));
+            }
+        }
+        return passJaccard;
+    }
+
+    /**
+     *  Returns the terms, already known to be within the maximal edit
+     *  distance of a query term, that share enough k-grams with it. These
+     *  are the same candidates as the k-gram path lets through to the edit
+     *  distance check, but only the terms within the edit distance are
+     *  ever looked at.
+     */
+    private List<KGramStat> getJaccardScores(List<String> candidates, long[] kgrams) {
+        List<KGramStat> passJaccard = new ArrayList<>();
+        for (String candidate : candidates) {
+            long[] candidateKgrams = KGramIndex.getKGrams(candidate);
+            double jScore = jaccard(kgrams.length, candidateKgrams.length, countShared(kgrams, candidateKgrams));
+            if (jScore >= JACCARD_THRESHOLD) {
+                passJaccard.add(new KGramStat(candidate, jScore));
+            }
+        }
+        return passJaccard;
+    }
+
+    /** Counts the k-grams two sorted sets of packed k-grams share. */
+    private static int countShared(long[] a, long[] b) {
+        int shared = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] == b[j]) {
+                shared++;
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return shared;
+    }
+
     /**
      *  Merging ranked candidate spelling corrections for all query terms available in
      *  <code>qCorrections</code> into one final merging of query phrases. Returns up
      *  to <code>limit</code> corrected phrases.
+     *
+     *  The score of a phrase is the sum of the scores of its words, so the best
+     *  phrases are enumerated from the one made of every term's best candidate:
+     *  a phrase is taken from a heap, and the phrases that use the next candidate
+     *  for one of its terms are added. Each phrase has a single predecessor, by
+     *  moving back the last term that is not at its best candidate, so nothing is
+     *  added twice, and at most <code>limit</code> times the number of terms are
+     *  ever in the heap. Phrases with equal scores come out in the same order as
+     *  in a full cartesian product.
      */
     private List<KGramStat> mergeCorrections(List<List<KGramStat>> qCorrections, int limit) {
         List<KGramStat> results = new ArrayList<>();
-        List<KGramStat> newResults;
-
-        /* Merge scores for several tokens and construct all queries */
-        for (List<KGramStat> tknList: qCorrections) {
-            newResults = new ArrayList<>();
-
-            if (!results.isEmpty())
-                for (KGramStat kstat: tknList) {
-                    for (KGramStat kstatRes: results) {
-                        KGramStat combined = new KGramStat(kstat.token + " " + kstatRes.token, kstat.score +  kstatRes.score);
-                        newResults.add(combined);
-                    }
+
+        /* As in the product, a term without candidates starts the phrases over */
+        int first = 0;
+        for (int t = 0; t < qCorrections.size(); t++) {
+            if (qCorrections.get(t).isEmpty())
+                first = t + 1;
+        }
+        List<List<KGramStat>> lists = qCorrections.subList(first, qCorrections.size());
+        int n = lists.size();
+        if (n == 0 || limit <= 0)
+            return results;
+
+        BigramStatistics statistics = bigrams;
+        if (statistics != null && n > 1)
+            return beamSearch(lists, limit, statistics);
+
+        /* The candidates of every term by decreasing score, ties in their original order */
+        int[][] order = new int[n][];
+        for (int t = 0; t < n; t++) {
+            List<KGramStat> list = lists.get(t);
+            Integer[] byScore = new Integer[list.size()];
+            for (int i = 0; i < byScore.length; i++) {
+                byScore[i] = i;
+            }
+            Arrays.sort(byScore, (i, j) -> Double.compare(list.get(j).score, list.get(i).score));
+            order[t] = new int[byScore.length];
+            for (int i = 0; i < byScore.length; i++) {
+                order[t][i] = byScore[i];
+            }
+        }
+
+        PriorityQueue<Phrase> heap = new PriorityQueue<>((a, b) -> {
+            if (a.score != b.score)
+                return Double.compare(b.score, a.score);
+            /* The product puts the candidates of the last term outermost */
+            for (int t = n - 1; t >= 0; t--) {
+                if (a.ranks[t] != b.ranks[t])
+                    return Integer.compare(order[t][a.ranks[t]], order[t][b.ranks[t]]);
+            }
+            return 0;
+        });
+        heap.add(new Phrase(new int[n], 0, lists, order));
+
+        while (!heap.isEmpty() && results.size() < limit) {
+            Phrase best = heap.poll();
+
+            StringBuilder token = new StringBuilder();
+            for (int t = 0; t < n; t++) {
+                if (t > 0)
+                    token.append(' ');
+                token.append(lists.get(t).get(order[t][best.ranks[t]]).token);
+            }
+            results.add(new KGramStat(token.toString(), best.score));
+
+            for (int t = best.last; t < n; t++) {
+                if (best.ranks[t] + 1 < order[t].length) {
+                    int[] ranks = best.ranks.clone();
+                    ranks[t]++;
+                    heap.add(new Phrase(ranks, t, lists, order));
                 }
-            else {
-                newResults.addAll(tknList);
             }
-            results = newResults;
         }
 
-        Collections.sort(results, Collections.reverseOrder());
+        return results;
+    }
 
-        if (results.size() > limit)
-            return results.subList(0, limit);
-        else
-            return results;
+    /**
+     *  Returns up to <code>limit</code> corrected phrases, scored by the sum of
+     *  the scores of their words plus the weighted bigram score of every pair
+     *  of adjacent words.
+     *
+     *  The bigram scores make the best phrases no longer follow from the best
+     *  candidates of each term, so the phrases are built a word at a time,
+     *  keeping only the best partial phrases after each word. Every partial
+     *  phrase is extended by every candidate of the next term, which costs one
+     *  bigram lookup, a constant number of array reads.
+     */
+    private List<KGramStat> beamSearch(List<List<KGramStat>> lists, int limit, BigramStatistics statistics) {
+        int width = Math.max(limit, BEAM_WIDTH);
+        Comparator<Phrase> byScore = (a, b) -> Double.compare(b.score, a.score);
+
+        List<Phrase> beam = new ArrayList<>();
+        List<KGramStat> firstList = lists.get(0);
+        for (int c = 0; c < firstList.size(); c++) {
+            beam.add(new Phrase(new int[] { c }, firstList.get(c).score));
+        }
+        beam.sort(byScore);
+
+        for (int t = 1; t < lists.size(); t++) {
+            List<KGramStat> previous = lists.get(t - 1);
+            List<KGramStat> list = lists.get(t);
+            List<Phrase> extended = new ArrayList<>();
+            for (int p = 0; p < Math.min(width, beam.size()); p++) {
+                Phrase phrase = beam.get(p);
+                String word = previous.get(phrase.ranks[t - 1]).token;
+                for (int c = 0; c < list.size(); c++) {
+                    KGramStat kstat = list.get(c);
+                    int[] ranks = Arrays.copyOf(phrase.ranks, t + 1);
+                    ranks[t] = c;
+                    double score = phrase.score + kstat.score + BIGRAM_WEIGHT * statistics.getScore(word, kstat.token);
+                    extended.add(new Phrase(ranks, score));
+                }
+            }
+            extended.sort(byScore);
+            beam = extended;
+        }
+
+        List<KGramStat> results = new ArrayList<>();
+        for (int p = 0; p < Math.min(limit, beam.size()); p++) {
+            Phrase phrase = beam.get(p);
+            StringBuilder token = new StringBuilder();
+            for (int t = 0; t < lists.size(); t++) {
+                if (t > 0)
+                    token.append(' ');
+                token.append(lists.get(t).get(phrase.ranks[t]).token);
+            }
+            results.add(new KGramStat(token.toString(), phrase.score));
+        }
+        return results;
+    }
+
+    /** A phrase of one candidate per term, by the rank of each candidate */
+    private static class Phrase {
+        final int[] ranks;
+
+        /** The last term whose candidate was moved to reach this phrase */
+        final int last;
+
+        final double score;
+
+        /** A phrase of the beam search, where the ranks are indexes into the candidate lists */
+        Phrase(int[] ranks, double score) {
+            this.ranks = ranks;
+            this.last = 0;
+            this.score = score;
+        }
+
+        Phrase(int[] ranks, int last, List<List<KGramStat>> lists, int[][] order) {
+            this.ranks = ranks;
+            this.last = last;
+            /* Summed in the same order as the product, for the same rounding */
+            double sum = lists.get(0).get(order[0][ranks[0]]).score;
+            for (int t = 1; t < ranks.length; t++) {
+                sum = lists.get(t).get(order[t][ranks[t]]).score + sum;
+            }
+            this.score = sum;
+        }
     }
 }
@@ -0,0 +1,113 @@
+package ir;
+
+import java.util.Arrays;
+
+/**
+ * Static (query-independent) ranks of the documents, stored in an array
+ * indexed by docID.
+ *
+ * The PageRank of each document is looked up by name once, when the
+ * document is indexed or its name is loaded from disk, so ranking code
+ * only needs an array read per candidate document.
+ */
+public class StaticRanks {
+
+    /** Ranks by docID; documents without a rank have 0 */
+    private volatile double[] ranks = new double[1024];
+
+    /** Sum of the ranks of all documents */
+    private volatile double sum = 0.0;
+
+    /** Number of documents that had no PageRank */
+    private int missing = 0;
+
+    /** The largest docID seen so far */
+    private int maxDocID = -1;
+
+    /** Whether ranks are non-increasing in docID, or null if not yet checked */
+    private volatile Boolean ordered = null;
+
+    /**
+     * Returns the PageRank of a document by its name, or 0 if it has none.
+     * The pageranks are keyed by the document name without its top directory.
+     */
+    public static double lookup(String docName) {
+        String strippedDocName = docName.substring(docName.indexOf("/")+1);
+        Double pagerank = Index.pageranks.get(strippedDocName);
+        return pagerank == null ? 0.0 : pagerank;
+    }
+
+    /**
+     * Resolves the PageRank of a document from its name.
+     */
+    public synchronized void put(int docID, String docName) {
+        maxDocID = Math.max(maxDocID, docID);
+        ordered = null;
+
+        double pagerank = lookup(docName);
+        if (pagerank == 0.0) {
+            missing++;
+            return;
+        }
+
+        double[] r = ranks;
+        if (docID >= r.length) {
+            r = Arrays.copyOf(r, Math.max(2 * r.length, docID + 1));
+        }
+        sum += pagerank - r[docID];
+        r[docID] = pagerank;
+        ranks = r;
+    }
+
+    /**
+     * Returns the PageRank of a document, or 0 if it has none.
+     */
+    public double get(int docID) {
+        double[] r = ranks;
+        return docID < r.length ? r[docID] : 0.0;
+    }
+
+    /**
+     * Returns true if the documents were numbered in descending PageRank
+     * order, so that any docID-ordered postings list is also ordered by
+     * PageRank.
+     */
+    public boolean isOrdered() {
+        Boolean o = ordered;
+        if (o == null) {
+            synchronized (this) {
+                o = maxDocID >= 0;
+                for (int i = 1; i <= maxDocID && o; i++) {
+                    o = get(i) <= get(i - 1);
+                }
+                ordered = o;
+            }
+        }
+        return o;
+    }
+
+    /**
+     * Returns the highest PageRank of any document.
+     */
+    public double getMax() {
+        double[] r = ranks;
+        double max = 0.0;
+        for (double rank : r) {
+            max = Math.max(max, rank);
+        }
+        return max;
+    }
+
+    /**
+     * Returns the sum of the PageRanks of all documents, which PageRank
+     * scores are divided by so that they do not depend on which documents
+     * a query matches.
+     */
+    public double getSum() {
+        return sum;
+    }
+
+    public synchronized int getMissing() {
+        return missing;
+    }
+}
@@ -0,0 +1,174 @@
+package ir;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The vocabulary as a trie, for expanding patterns given as automata.
+ *
+ * Every node but the root is the last char of a prefix of some term, and
+ * the children of a node are numbered consecutively in the order of their
+ * chars, so a node needs its char, where its children start and whether a
+ * term ends there. The trie is walked together with an automaton: a child
+ * is only visited if the automaton is not dead after its char, so the walk
+ * touches the prefixes the pattern can still match instead of the whole
+ * vocabulary, and finds the terms in sorted order.
+ */
+public class TermDictionary implements WildcardIndex {
+
+    /** The char leading to every node */
+    private final char[] labels;
+
+    /** The first child of every node, followed by the end of the last node's children */
+    private final int[] children;
+
+    /** The nodes where a term ends */
+    private final BitSet terminal;
+
+    private TermDictionary(char[] labels, int[] children, BitSet terminal) {
+        this.labels = labels;
+        this.children = children;
+        this.terminal = terminal;
+    }
+
+    /** Builds the dictionary of the vocabulary of a k-gram index. */
+    public static TermDictionary build(KGramIndex kgIndex) {
+        String[] terms = new String[kgIndex.getTermCount()];
+        for (int id = 0; id < terms.length; id++) {
+            terms[id] = kgIndex.getTermByID(id);
+        }
+        return build(terms);
+    }
+
+    /** Builds the dictionary of some terms. */
+    public static TermDictionary build(String[] terms) {
+        terms = terms.clone();
+        Arrays.sort(terms);
+
+        TrieLayout trie = TrieLayout.build(terms);
+        BitSet terminal = new BitSet(trie.size);
+        for (int node = 0; node < trie.size; node++) {
+            if (trie.ending[node] > 0)
+                terminal.set(node);
+        }
+        return new TermDictionary(trie.labels, trie.children, terminal);
+    }
+
+    /** Returns the terms the automaton accepts, in sorted order. */
+    public List<String> getMatches(Automaton automaton) {
+        List<String> matches = new ArrayList<>();
+        int start = automaton.start();
+        if (start != Automaton.DEAD)
+            walk(0, start, automaton, new StringBuilder(), matches);
+        return matches;
+    }
+
+    private void walk(int node, int state, Automaton automaton, StringBuilder prefix, List<String> matches) {
+        if (terminal.get(node) && automaton.isAccepting(state))
+            matches.add(prefix.toString());
+
+        for (int child = children[node]; child < children[node + 1]; child++) {
+            int next = automaton.step(state, labels[child]);
+            if (next == Automaton.DEAD)
+                continue;
+            prefix.append(labels[child]);
+            walk(child, next, automaton, prefix, matches);
+            prefix.setLength(prefix.length() - 1);
+        }
+    }
+
+    /** Returns the terms that match a regular expression. */
+    public List<String> getRegexMatches(String regex) {
+        return getMatches(new Automaton.Regex(regex));
+    }
+
+    /**
+     * Returns the terms within an edit distance of a word.
+     *
+     * @param substitutionCost The cost of substituting a char; inserting or deleting one costs 1
+     */
+    public List<String> getFuzzyMatches(String word, int maxDistance, int substitutionCost) {
+        return getMatches(new Automaton.Levenshtein(word, maxDistance, substitutionCost));
+    }
+
+    /**
+     * Returns the terms matching a wildcard pattern. As with the k-gram
+     * index, a pattern of nothing but stars matches nothing.
+     */
+    @Override
+    public List<String> getWildcards(String pattern) {
+        if (pattern.replace("*", "").isEmpty())
+            return new ArrayList<>();
+        return getMatches(Automaton.Regex.glob(pattern));
+    }
+
+    /** Returns the number of nodes. */
+    public int size() {
+        return labels.length;
+    }
+
+    /** Returns the bytes used by the dictionary. */
+    public long getBytes() {
+        return 2L * labels.length + 4L * children.length + labels.length / 8;
+    }
+
+    /**
+     * Builds the k-gram index and the dictionary of the terms in a file, and
+     * compares how long wildcard expansion and finding spelling candidates
+     * take with either.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java ir.TermDictionary <file> <patterns file>");
+            System.exit(1);
+        }
+
+        KGramIndex kgIndex = new KGramIndex(2);
+        Reader reader = new InputStreamReader(new FileInputStream(new File(args[0])), StandardCharsets.UTF_8);
+        Tokenizer tok = new Tokenizer(reader, true, false, true, args[1]);
+        while (tok.hasMoreTokens()) {
+            kgIndex.insert(tok.nextToken());
+        }
+
+        long startTime = System.nanoTime();
+        TermDictionary dictionary = build(kgIndex);
+        System.err.printf("Built %d nodes for %d terms in %.1f ms, %d bytes%n", dictionary.size(),
+                kgIndex.getTermCount(), (System.nanoTime() - startTime) / 1e6, dictionary.getBytes());
+
+        System.err.printf("%-22s %8s %12s %12s%n", "pattern", "matches", "k-gram (us)", "automaton (us)");
+        for (String pattern : new String[] { "ca*", "*tion", "re*ion", "s*e*s" }) {
+            System.err.printf("%-22s %8d %12.1f %12.1f%n", pattern, dictionary.getWildcards(pattern).size(),
+                    time(() -> kgIndex.getWildcards(pattern)), time(() -> dictionary.getWildcards(pattern)));
+        }
+        for (String regex : new String[] { "[0-9]+", "(north|south)[a-z]*", "da.is" }) {
+            System.err.printf("%-22s %8d %12s %12.1f%n", regex, dictionary.getRegexMatches(regex).size(), "-",
+                    time(() -> dictionary.getRegexMatches(regex)));
+        }
+        for (String word : new String[] { "univresity", "libary", "resturant", "davs" }) {
+            /** The k-gram path of the spell checker: every term sharing a k-gram is a candidate */
+            System.err.printf("%-22s %8d %12.1f %12.1f%n", "~" + word, dictionary.getFuzzyMatches(word, 2, 2).size(),
+                    time(() -> kgIndex.getTokensFromKgrams(KGramIndex.getKGrams(word))),
+                    time(() -> dictionary.getFuzzyMatches(word, 2, 2)));
+        }
+    }
+
+    /** Returns the median time of a lookup, in microseconds. */
+    private static double time(Runnable lookup) {
+        long[] nanos = new long[51];
+        for (int i = 0; i < nanos.length; i++) {
+            long start = System.nanoTime();
+            lookup.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        return nanos[nanos.length / 2] / 1e3;
+    }
+}
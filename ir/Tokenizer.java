@@ -100,11 +100,26 @@ public class Tokenizer {
         this.remove_diacritics = remove_diacritics;
         this.remove_punctuation = remove_punctuation;
         if ( pattern_file != null ) {
-            readPatterns( pattern_file );
+            patterns = readPatterns( pattern_file );
         }
     }
 
 
+    /**
+     *  Constructor for tokenizing many short texts with the same patterns,
+     *  without reading and compiling them for every text.
+     *  @param patterns The patterns for non-standard words, as returned by
+     *         <code>readPatterns</code>, or null. They are not copied.
+     */
+    public Tokenizer( Reader reader, boolean case_folding, boolean remove_diacritics, boolean remove_punctuation, ArrayList<Pattern> patterns ) {
+        this.reader = reader;
+        this.case_folding = case_folding;
+        this.remove_diacritics = remove_diacritics;
+        this.remove_punctuation = remove_punctuation;
+        this.patterns = patterns;
+    }
+
+
     /** 
      *  Returns true if the character is a punctuation character.
      */
@@ -124,8 +139,8 @@ public class Tokenizer {
     /**
      *  Read the patterns that match non-standard words  
      */
-    private void readPatterns( String filename ) {
-        patterns = new ArrayList<Pattern>();
+    public static ArrayList<Pattern> readPatterns( String filename ) {
+        ArrayList<Pattern> patterns = new ArrayList<Pattern>();
         String line = null;
         try {
             BufferedReader in = new BufferedReader( new FileReader( filename ));
@@ -142,6 +157,7 @@ public class Tokenizer {
         catch ( PatternSyntaxException e ) {
             System.err.println( "ERROR: Malformed regular expression: " + line );
         }
+        return patterns;
     }
 
 
@@ -0,0 +1,101 @@
+package ir;
+
+import java.util.Arrays;
+
+/**
+ * The nodes of a trie of sorted strings, numbered breadth first, as the
+ * term dictionary and the completion trie lay them out.
+ *
+ * Every node but the root is the last char of a prefix of some string, and
+ * the children of a node are numbered consecutively in the order of their
+ * chars, so a child is found by binary search. A node covers the range of
+ * sorted strings that start with its prefix; the strings equal to the
+ * prefix come first in that range.
+ */
+class TrieLayout {
+
+    /** Number of nodes */
+    final int size;
+
+    /** The char leading to every node */
+    final char[] labels;
+
+    /** The first child of every node, followed by the end of the last node's children */
+    final int[] children;
+
+    /** The parent of every node, and -1 for the root */
+    final int[] parents;
+
+    /** The first string covered by every node */
+    final int[] from;
+
+    /** The number of strings ending at every node; more than one if a string is repeated */
+    final int[] ending;
+
+    private TrieLayout(int size, char[] labels, int[] children, int[] parents, int[] from, int[] ending) {
+        this.size = size;
+        this.labels = labels;
+        this.children = children;
+        this.parents = parents;
+        this.from = from;
+        this.ending = ending;
+    }
+
+    /**
+     * Lays out the trie of some strings.
+     *
+     * @param strings The strings, sorted
+     */
+    static TrieLayout build(String[] strings) {
+        int capacity = 1024;
+        char[] labels = new char[capacity];
+        int[] from = new int[capacity];
+        int[] to = new int[capacity];
+        int[] depth = new int[capacity];
+        int[] children = new int[capacity + 1];
+        int[] parents = new int[capacity];
+        int[] ending = new int[capacity];
+        from[0] = 0;
+        to[0] = strings.length;
+        parents[0] = -1;
+        int nodes = 1;
+
+        for (int node = 0; node < nodes; node++) {
+            int f = from[node];
+            int d = depth[node];
+            while (f < to[node] && strings[f].length() == d)
+                f++;
+            ending[node] = f - from[node];
+
+            children[node] = nodes;
+            while (f < to[node]) {
+                char c = strings[f].charAt(d);
+                int end = f + 1;
+                while (end < to[node] && strings[end].charAt(d) == c)
+                    end++;
+
+                if (nodes == capacity) {
+                    capacity *= 2;
+                    labels = Arrays.copyOf(labels, capacity);
+                    from = Arrays.copyOf(from, capacity);
+                    to = Arrays.copyOf(to, capacity);
+                    depth = Arrays.copyOf(depth, capacity);
+                    children = Arrays.copyOf(children, capacity + 1);
+                    parents = Arrays.copyOf(parents, capacity);
+                    ending = Arrays.copyOf(ending, capacity);
+                }
+                labels[nodes] = c;
+                from[nodes] = f;
+                to[nodes] = end;
+                depth[nodes] = d + 1;
+                parents[nodes] = node;
+                nodes++;
+                f = end;
+            }
+        }
+        children[nodes] = nodes;
+
+        return new TrieLayout(nodes, Arrays.copyOf(labels, nodes), Arrays.copyOf(children, nodes + 1),
+                Arrays.copyOf(parents, nodes), Arrays.copyOf(from, nodes), Arrays.copyOf(ending, nodes));
+    }
+}
@@ -8,14 +8,17 @@ import java.util.ArrayList;
 
 public class Utils{
 
-    private static MessageDigest messageDigest;
-
-    public static void initialize() {
+    /** MessageDigest is not thread-safe, so every thread gets its own */
+    private static final ThreadLocal<MessageDigest> messageDigest = ThreadLocal.withInitial(() -> {
         try {
-            messageDigest = MessageDigest.getInstance("SHA-256");
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+            throw new IllegalStateException(e);
         }
+    });
+
+    public static void initialize() {
+        messageDigest.get();
     }
 
     public static int hash(String s) {
@@ -35,9 +38,10 @@ public class Utils{
     }
 
     public static int improvedHash(String s) {
-        messageDigest.update(s.getBytes());
-        int hash = Arrays.hashCode(messageDigest.digest());
-        messageDigest.reset();
+        MessageDigest md = messageDigest.get();
+        md.update(s.getBytes());
+        int hash = Arrays.hashCode(md.digest());
+        md.reset();
         return hash;
     }
 
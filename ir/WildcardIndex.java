@@ -0,0 +1,13 @@
+package ir;
+
+import java.util.List;
+
+/**
+ * Expands a wildcard pattern into the terms of the vocabulary it matches.
+ * A <code>*</code> in a pattern stands for any sequence of chars.
+ */
+public interface WildcardIndex {
+
+    /** Returns the terms matching a pattern. */
+    List<String> getWildcards(String pattern);
+}
@@ -306,7 +306,7 @@ public class PageRankSparse {
      *
      * @throws IOException { exception_description }
      */
-    public static void readPageranks(HashMap<String, Double> map) throws IOException {
+    public static void readPageranks(Map<String, Double> map) throws IOException {
 
         File file = new File(INDEXDIR + "/pageranks");
         FileReader freader = new FileReader(file);
@@ -0,0 +1,2 @@
+#!/bin/sh
+java -cp build -Xmx1g ir.SearchBenchmark -d davisWiki -p patterns.txt -q queries.txt -qt RANKED_QUERY -rt TF_IDF